@@ -24,20 +24,31 @@
 
 package de.hardwarespielerei.can.canusb;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
 import de.hardwarespielerei.can.canusb.jna.NativeAccess.CANMsgByReference;
 import de.hardwarespielerei.can.canusb.jna.NativeAccess.NativeReceiveCallback;
 
 /**
  * Represents a channel to a CANBUS adapter.
  * 
+ * A channel may be used by one reading thread, any number of writing threads
+ * and threads polling status concurrently. Reading, writing and control calls
+ * (status, version info, receive call back) are serialized by separate locks,
+ * so a reader never waits for a writer and vice versa.
+ * 
  * @author gabriel
  */
 public class Channel
 {
 	private static final byte[] DUMMY_BYTE = new byte[1];
+	private static final int RECEIVE_QUEUE_CAPACITY = 1024;
 
 	private class ReceiveCallbackTranslator implements NativeReceiveCallback
 	{
@@ -51,14 +62,27 @@ public class Channel
 		@Override
 		public void callback(CANMsgByReference msg)
 		{
-			this.callback.callback(new NativeMessage(msg));
+			NativeMessage received = new NativeMessage(msg);
+			Channel.this.pendingRequests.dispatch(received);
+			if (Channel.this.accepts(received))
+			{
+				this.callback.callback(received);
+			}
 		}
 
 	}
 
-	private String adapterID;
-	private NativeLong handle;
-	private NativeReceiveCallback nativeCallBack;
+	private final String adapterID;
+	private final NativeLong handle;
+	private volatile NativeReceiveCallback nativeCallBack;
+	private final PendingRequests pendingRequests = new PendingRequests();
+	private volatile ChannelIO io;
+	private volatile boolean closed;
+	private volatile Predicate<? super CANMessage> filter;
+
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
+	private final Object controlLock = new Object();
 
 	protected Channel(String adapterID, Bitrate bitrate,
 			AcceptanceCode acceptanceCode, AcceptanceMask acceptanceMask,
@@ -81,15 +105,44 @@ public class Channel
 	}
 
 	/**
-	 * Closes this channel.
+	 * Closes this channel. Waits for running read, write and control calls to
+	 * return.
 	 * 
 	 * @throws CANUSBException
 	 *             on errors while accessing CANUSB.
 	 */
 	public void close() throws CANUSBException
 	{
-		CANUSBException.throwOnErrorCode(
-				Library.call().canusb_Close(this.handle),
+		ChannelIO currentIO;
+		synchronized (this.controlLock)
+		{
+			// no I/O thread may be started after this point...
+			this.closed = true;
+			currentIO = this.io;
+		}
+		if (null != currentIO)
+		{
+			try
+			{
+				currentIO.shutdown();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.pendingRequests.cancelAll();
+		int rc;
+		synchronized (this.readLock)
+		{
+			synchronized (this.writeLock)
+			{
+				synchronized (this.controlLock)
+				{
+					rc = Library.call().canusb_Close(this.handle);
+				}
+			}
+		}
+		CANUSBException.throwOnErrorCode(rc,
 				"Error while closing channel to adapter " + this.adapterID
 						+ "!");
 	}
@@ -108,7 +161,11 @@ public class Channel
 	 */
 	public Status getStatus() throws CANUSBException
 	{
-		int status = Library.call().canusb_Status(this.handle);
+		int status;
+		synchronized (this.controlLock)
+		{
+			status = Library.call().canusb_Status(this.handle);
+		}
 		if (status < 0)
 		{
 			CANUSBException.throwOnErrorCode(status,
@@ -128,12 +185,44 @@ public class Channel
 	{
 		byte[] buffer = Native
 				.toByteArray("VHhFf - Nxxxx - n.n.n - CCCCCCCCCC");
-		CANUSBException.throwOnErrorCode(
-				Library.call().canusb_VersionInfo(this.handle, buffer),
+		int rc;
+		synchronized (this.controlLock)
+		{
+			rc = Library.call().canusb_VersionInfo(this.handle, buffer);
+		}
+		CANUSBException.throwOnErrorCode(rc,
 				"Can't get version info from adapter " + this.adapterID + "!");
 		return Native.toString(buffer);
 	}
 
+	/**
+	 * Sets a filter for received messages, e. g. a {@link RuleSet} or a
+	 * {@link FrameFilter}. Messages not passing the filter are skipped by
+	 * {@link #read()}, {@link #poll()}, {@link #receive(long, TimeUnit)} and
+	 * the receive call back, but still complete requests.
+	 * 
+	 * @param filter
+	 *            references the filter or NULL to receive all messages.
+	 */
+	public void setReceiveFilter(Predicate<? super CANMessage> filter)
+	{
+		this.filter = filter;
+	}
+
+	/**
+	 * @return filter for received messages or NULL.
+	 */
+	public Predicate<? super CANMessage> getReceiveFilter()
+	{
+		return this.filter;
+	}
+
+	private boolean accepts(CANMessage msg)
+	{
+		Predicate<? super CANMessage> current = this.filter;
+		return null == current || current.test(msg);
+	}
+
 	/**
 	 * Read message from this channel.
 	 * 
@@ -146,19 +235,139 @@ public class Channel
 	 */
 	public CANMessage read() throws CANUSBException
 	{
-		CANMessage msg = null;
-		CANMsgByReference nativeMsg = new CANMsgByReference();
-		int status = Library.call().canusb_Read(this.handle, nativeMsg);
-		if (status > 0)
-		{
-			msg = new NativeMessage(nativeMsg);
-		} else if (status < 0)
+		return this.readAccepted(true);
+	}
+
+	/**
+	 * Read message from this channel if there is one, like {@link #read()}
+	 * but without the cost of an exception per empty poll.
+	 * 
+	 * @return next message or NULL if there is no message to read.
+	 * @throws CANUSBException
+	 *             if a callback function is defined and on all other CANUSB
+	 *             errors.
+	 */
+	public CANMessage poll() throws CANUSBException
+	{
+		return this.readAccepted(false);
+	}
+
+	/**
+	 * Reads messages until one passes the receive filter. Every message read
+	 * is dispatched to the pending requests.
+	 * 
+	 * @param throwIfNone
+	 *            true to throw a {@link NoMessageException} if there is no
+	 *            message to read, false to return NULL.
+	 * @return next message passing the filter or NULL.
+	 * @throws CANUSBException
+	 *             on CANUSB errors.
+	 */
+	private CANMessage readAccepted(boolean throwIfNone)
+			throws CANUSBException
+	{
+		while (true)
 		{
-			CANUSBException.throwOnErrorCode(status, "Can't read from adapter "
-					+ this.adapterID + "!");
+			CANMsgByReference nativeMsg = new CANMsgByReference();
+			int status;
+			synchronized (this.readLock)
+			{
+				status = Library.call().canusb_Read(this.handle, nativeMsg);
+			}
+			if (status > 0)
+			{
+				CANMessage msg = new NativeMessage(nativeMsg);
+				this.pendingRequests.dispatch(msg);
+				if (this.accepts(msg))
+				{
+					return msg;
+				}
+			} else
+			{
+				boolean none = NativeAccess.ERROR_CANUSB_NO_MESSAGE == status;
+				if (status < 0 && (throwIfNone || !none))
+				{
+					CANUSBException.throwOnErrorCode(status,
+							"Can't read from adapter " + this.adapterID + "!");
+				}
+				return null;
+			}
 		}
+	}
+
+	/**
+	 * Wait for the next message received on this channel. The native calls are
+	 * done by a dedicated platform thread started on first use of
+	 * {@link #receive(long, TimeUnit)} or {@link #send(CANMessage)}; the
+	 * calling thread only parks, so this method is suitable for virtual
+	 * threads. Once this method was called, {@link #read()} must not be used
+	 * and no receive call back may be set.
+	 * 
+	 * @param timeout
+	 *            contains the time to wait for a message.
+	 * @param unit
+	 *            references the unit of timeout.
+	 * @return next message or NULL if no message was received in time.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 * @throws NotOpenException
+	 *             if this channel is closed.
+	 * @throws CANUSBException
+	 *             if reading from CANUSB failed since the last call.
+	 */
+	public CANMessage receive(long timeout, TimeUnit unit)
+			throws CANUSBException, InterruptedException
+	{
+		return this.io().receive(timeout, unit);
+	}
+
+	/**
+	 * Write message to this channel and wait until it is written. The native
+	 * call is done by the same dedicated platform thread as for
+	 * {@link #receive(long, TimeUnit)}, so this method is suitable for virtual
+	 * threads.
+	 * 
+	 * @param msg
+	 *            references the message structure.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting. The message may be written
+	 *             anyway.
+	 * @throws NotOpenException
+	 *             if this channel is closed.
+	 * @throws CANUSBException
+	 *             on errors while accessing CANUSB.
+	 * @throws IllegalArgumentException
+	 *             if the message can't be converted to a native message.
+	 */
+	public void send(CANMessage msg) throws CANUSBException,
+			InterruptedException
+	{
+		this.io().send(msg);
+	}
 
-		return msg;
+	private ChannelIO io() throws NotOpenException
+	{
+		ChannelIO result = this.io;
+		if (null == result || this.closed)
+		{
+			synchronized (this.controlLock)
+			{
+				if (this.closed)
+				{
+					throw new NotOpenException(
+							NativeAccess.ERROR_CANUSB_NOT_OPEN, this
+									+ " is closed!");
+				}
+				result = this.io;
+				if (null == result)
+				{
+					result = new ChannelIO(this, RECEIVE_QUEUE_CAPACITY);
+					result.start();
+					this.io = result;
+				}
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -179,12 +388,15 @@ public class Channel
 		{
 			nextNativeCallBack = new ReceiveCallbackTranslator(callBack);
 		}
-		CANUSBException.throwOnErrorCode(Library.call()
-				.canusb_setReceiveCallBack(this.handle, nextNativeCallBack),
-				"Can't set receive call back to " + callBack + " on adapter "
-						+ this.adapterID + "!");
-		// success - store in member variable...
-		this.nativeCallBack = nextNativeCallBack;
+		synchronized (this.controlLock)
+		{
+			CANUSBException.throwOnErrorCode(Library.call()
+					.canusb_setReceiveCallBack(this.handle, nextNativeCallBack),
+					"Can't set receive call back to " + callBack
+							+ " on adapter " + this.adapterID + "!");
+			// success - store in member variable...
+			this.nativeCallBack = nextNativeCallBack;
+		}
 	}
 
 	/**
@@ -209,10 +421,54 @@ public class Channel
 					// Workaround: CANUSB doesn't like arrays of length zero!
 					(0 == msg.getLength() ? DUMMY_BYTE : msg.getData()));
 		}
-		CANUSBException.throwOnErrorCode(
-				Library.call().canusb_Write(this.handle,
-						nativeMsg.getNativeMessage()),
-				"Can't write to adapter " + this.adapterID + "!");
+		int rc;
+		synchronized (this.writeLock)
+		{
+			rc = Library.call().canusb_Write(this.handle,
+					nativeMsg.getNativeMessage());
+		}
+		CANUSBException.throwOnErrorCode(rc, "Can't write to adapter "
+				+ this.adapterID + "!");
+	}
+
+	/**
+	 * Write a request to this channel and wait asynchronously for its
+	 * response. The response is detected on the receive path of this channel,
+	 * i. e. by {@link #read()} or by the receive call back, and is delivered
+	 * there as well. Each received message completes at most one request. The
+	 * future is completed by {@link java.util.concurrent.ForkJoinPool#commonPool()}
+	 * , so its continuations don't run on the receive thread.
+	 * 
+	 * @param request
+	 *            references the request message.
+	 * @param response
+	 *            references the description of the expected response.
+	 * @param timeout
+	 *            contains the time to wait for the response.
+	 * @param unit
+	 *            references the unit of timeout.
+	 * @return future completed by the first matching message, by a
+	 *         {@link java.util.concurrent.TimeoutException} if no response is
+	 *         received in time, or cancelled if this channel is closed.
+	 * @throws CANUSBException
+	 *             on errors while writing the request.
+	 */
+	public CompletableFuture<CANMessage> request(CANMessage request,
+			ResponseMatcher response, long timeout, TimeUnit unit)
+			throws CANUSBException
+	{
+		// register first - the response may arrive before write returns...
+		CompletableFuture<CANMessage> result = this.pendingRequests.register(
+				response, timeout, unit);
+		try
+		{
+			this.write(request);
+		} catch (CANUSBException e)
+		{
+			result.cancel(false);
+			throw e;
+		}
+		return result;
 	}
 
 	/**
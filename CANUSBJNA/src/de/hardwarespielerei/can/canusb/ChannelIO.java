@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * Platform thread doing all native reads and writes of a channel on behalf of
+ * {@link Channel#receive(long, TimeUnit)} and {@link Channel#send(CANMessage)}
+ * . Callers only wait on java.util.concurrent hand-off structures, which park
+ * virtual threads without pinning their carrier thread.
+ * 
+ * @author gabriel
+ */
+class ChannelIO extends Thread
+{
+	private static final long MIN_IDLE_NANOS = 50000;
+	private static final long MAX_IDLE_NANOS = 1000000;
+
+	private static class Transmission
+	{
+		private final CANMessage msg;
+		private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		private Transmission(CANMessage msg)
+		{
+			this.msg = msg;
+		}
+	}
+
+	private final Channel channel;
+	private final ArrayBlockingQueue<CANMessage> received;
+	private final ConcurrentLinkedQueue<Transmission> transmissions = new ConcurrentLinkedQueue<Transmission>();
+	private volatile CANUSBException readError;
+	private volatile boolean running = true;
+
+	/**
+	 * @param channel
+	 *            references the channel to serve.
+	 * @param capacity
+	 *            contains the number of received messages to buffer. If the
+	 *            buffer is full, reading pauses and messages queue up in the
+	 *            adapter.
+	 */
+	ChannelIO(Channel channel, int capacity)
+	{
+		super("CANUSB I/O " + channel);
+		this.channel = channel;
+		this.received = new ArrayBlockingQueue<CANMessage>(capacity);
+		this.setDaemon(true);
+	}
+
+	/**
+	 * @see Channel#receive(long, TimeUnit)
+	 */
+	CANMessage receive(long timeout, TimeUnit unit) throws CANUSBException,
+			InterruptedException
+	{
+		CANMessage msg = this.received.poll(timeout, unit);
+		if (null == msg)
+		{
+			CANUSBException error = this.readError;
+			if (null != error)
+			{
+				this.readError = null;
+				throw error;
+			}
+			if (!this.running)
+			{
+				throw this.notOpen();
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * @see Channel#send(CANMessage)
+	 * @throws IllegalArgumentException
+	 *             if the message can't be converted to a native message.
+	 */
+	void send(CANMessage msg) throws CANUSBException, InterruptedException
+	{
+		Transmission transmission = new Transmission(msg);
+		this.transmissions.add(transmission);
+		if (!this.running)
+		{
+			this.fail(transmission);
+		}
+		LockSupport.unpark(this);
+		try
+		{
+			transmission.done.get();
+		} catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof CANUSBException)
+			{
+				throw (CANUSBException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Can't send " + msg + "!", cause);
+		}
+	}
+
+	/**
+	 * Stops this thread and waits for it to terminate. Transmissions still
+	 * queued fail with a {@link NotOpenException}.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	void shutdown() throws InterruptedException
+	{
+		this.running = false;
+		LockSupport.unpark(this);
+		this.join();
+		Transmission transmission;
+		while (null != (transmission = this.transmissions.poll()))
+		{
+			this.fail(transmission);
+		}
+	}
+
+	private void fail(Transmission transmission)
+	{
+		transmission.done.completeExceptionally(this.notOpen());
+	}
+
+	private NotOpenException notOpen()
+	{
+		return new NotOpenException(NativeAccess.ERROR_CANUSB_NOT_OPEN,
+				this.channel + " is closed!");
+	}
+
+	@Override
+	public void run()
+	{
+		long idleNanos = MIN_IDLE_NANOS;
+		while (this.running)
+		{
+			boolean busy = false;
+			Transmission transmission;
+			while (null != (transmission = this.transmissions.poll()))
+			{
+				try
+				{
+					this.channel.write(transmission.msg);
+					transmission.done.complete(null);
+				} catch (CANUSBException | RuntimeException e)
+				{
+					// fail this transmission only, keep serving the channel
+					transmission.done.completeExceptionally(e);
+				}
+				busy = true;
+			}
+			if (this.received.remainingCapacity() > 0)
+			{
+				try
+				{
+					CANMessage msg = this.channel.poll();
+					if (null != msg)
+					{
+						this.received.offer(msg);
+						busy = true;
+					}
+				} catch (CANUSBException e)
+				{
+					this.readError = e;
+				}
+			}
+			if (busy)
+			{
+				idleNanos = MIN_IDLE_NANOS;
+			} else
+			{
+				// back off while the bus is idle, send() wakes us up...
+				LockSupport.parkNanos(this, idleNanos);
+				idleNanos = Math.min(2 * idleNanos, MAX_IDLE_NANOS);
+			}
+		}
+	}
+}
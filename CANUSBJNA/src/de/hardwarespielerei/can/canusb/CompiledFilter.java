@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.function.Predicate;
+
+/**
+ * Template of the hidden classes defined by {@link FrameFilter}: every
+ * compiled filter gets a class of its own holding its method handle in a
+ * static final field, which the JIT treats as constant, so it can inline the
+ * whole handle chain into {@link #test(CANMessage)}.
+ * 
+ * @author gabriel
+ */
+final class CompiledFilter implements Predicate<CANMessage>
+{
+	private static final MethodHandle FILTER = filter();
+
+	private static MethodHandle filter()
+	{
+		try
+		{
+			return MethodHandles.classData(MethodHandles.lookup(),
+					ConstantDescs.DEFAULT_NAME, MethodHandle.class);
+		} catch (IllegalAccessException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Override
+	public boolean test(CANMessage msg)
+	{
+		try
+		{
+			return (boolean) FILTER.invokeExact(msg);
+		} catch (RuntimeException | Error e)
+		{
+			throw e;
+		} catch (Throwable t)
+		{
+			throw new UndeclaredThrowableException(t);
+		}
+	}
+}
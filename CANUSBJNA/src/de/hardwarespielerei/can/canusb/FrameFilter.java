@@ -0,0 +1,772 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.function.Predicate;
+
+/**
+ * Filter over the fields and payload of {@link CANMessage}s, given as an
+ * expression like
+ * 
+ * <pre>
+ * id in 0x100..0x1FF &amp;&amp; data[0] &gt; 10 &amp;&amp; !rtr
+ * </pre>
+ * 
+ * The expression is parsed once and compiled into a chain of method handles,
+ * not interpreted. Each filter gets a hidden class of its own holding the
+ * chain as a constant, so the JIT can inline the chain like hand written
+ * code.
+ * 
+ * Values are 64 bit integers, written in decimal, hex (0x) or binary (0b):
+ * <ul>
+ * <li>id, len (or dlc), timestamp, reserver: fields of the message</li>
+ * <li>data[n]: data byte n 0..7 as unsigned value, 0 beyond the frame size</li>
+ * <li>data: data bytes 0..7, data byte 0 being the most significant byte</li>
+ * </ul>
+ * Conditions are ext, rtr, bit[n] (bit n % 8 of data byte n / 8), true and
+ * false. Operators from highest to lowest precedence: unary ! ~ -, binary +
+ * -, &lt;&lt; &gt;&gt;, &lt; &lt;= &gt; &gt;= and x in a..b (inclusive), ==
+ * !=, &amp;, ^, |, &amp;&amp;, ||. Parentheses group as usual.
+ * 
+ * @author gabriel
+ */
+public final class FrameFilter implements Predicate<CANMessage>
+{
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodType LONG_FIELD = MethodType.methodType(
+			long.class, CANMessage.class);
+	private static final MethodType BOOLEAN_FIELD = MethodType.methodType(
+			boolean.class, CANMessage.class);
+	private static final MethodType LONG_OPERATOR = MethodType.methodType(
+			long.class, long.class, long.class);
+	private static final MethodType COMPARISON = MethodType.methodType(
+			boolean.class, long.class, long.class);
+	private static final byte[] TEMPLATE = template();
+
+	private final String expression;
+	private final MethodHandle handle;
+	private final Predicate<CANMessage> compiled;
+
+	private FrameFilter(String expression, MethodHandle handle)
+	{
+		this.expression = expression;
+		this.handle = handle;
+		this.compiled = define(handle);
+	}
+
+	/**
+	 * Parses and compiles a filter expression.
+	 * 
+	 * @param expression
+	 *            references the expression.
+	 * @return compiled filter.
+	 * @throws IllegalArgumentException
+	 *             if the expression is invalid.
+	 */
+	public static FrameFilter compile(String expression)
+	{
+		return new FrameFilter(expression,
+				new Parser(expression).parseFilter());
+	}
+
+	/**
+	 * @param msg
+	 *            references the message.
+	 * @return true if the message passes the filter, false otherwise.
+	 */
+	@Override
+	public boolean test(CANMessage msg)
+	{
+		return this.compiled.test(msg);
+	}
+
+	/**
+	 * @param target
+	 *            references the call back to pass messages to.
+	 * @return call back passing only messages passing this filter.
+	 */
+	public ReceiveCallback filter(ReceiveCallback target)
+	{
+		return msg -> {
+			if (this.compiled.test(msg))
+			{
+				target.callback(msg);
+			}
+		};
+	}
+
+	/**
+	 * @return compiled method handle of type (CANMessage)boolean.
+	 */
+	public MethodHandle getHandle()
+	{
+		return this.handle;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.expression;
+	}
+
+	private static byte[] template()
+	{
+		try (InputStream in = CompiledFilter.class
+				.getResourceAsStream("CompiledFilter.class"))
+		{
+			return null == in ? null : in.readAllBytes();
+		} catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Predicate<CANMessage> define(MethodHandle handle)
+	{
+		if (null != TEMPLATE)
+		{
+			try
+			{
+				MethodHandles.Lookup hidden = LOOKUP
+						.defineHiddenClassWithClassData(TEMPLATE, handle, true);
+				return (Predicate<CANMessage>) hidden.findConstructor(
+						hidden.lookupClass(), MethodType.methodType(void.class))
+						.invoke();
+			} catch (Throwable t)
+			{
+				// fall back to calling the handle below...
+			}
+		}
+		return msg -> {
+			try
+			{
+				return (boolean) handle.invokeExact(msg);
+			} catch (RuntimeException | Error e)
+			{
+				throw e;
+			} catch (Throwable t)
+			{
+				throw new UndeclaredThrowableException(t);
+			}
+		};
+	}
+
+	// fields and operators called by the compiled handles...
+
+	private static long id(CANMessage msg)
+	{
+		return msg.getId() & 0xFFFFFFFFL;
+	}
+
+	private static long length(CANMessage msg)
+	{
+		return msg.getLength() & 0xFF;
+	}
+
+	private static long timestamp(CANMessage msg)
+	{
+		return msg.getTimestamp() & 0xFFFFFFFFL;
+	}
+
+	private static long reserver(CANMessage msg)
+	{
+		return msg.getReserver();
+	}
+
+	private static boolean ext(CANMessage msg)
+	{
+		return msg.isExtendedID();
+	}
+
+	private static boolean rtr(CANMessage msg)
+	{
+		return msg.isRemoteFrame();
+	}
+
+	private static long data(CANMessage msg)
+	{
+		return ResponseMatcher.toLong(msg.getData(), msg.getLength() & 0xFF);
+	}
+
+	private static long dataByte(CANMessage msg, int index)
+	{
+		byte[] data = msg.getData();
+		return index < (msg.getLength() & 0xFF) && index < data.length ? data[index] & 0xFF
+				: 0;
+	}
+
+	private static boolean bit(CANMessage msg, int bit)
+	{
+		return 0 != (dataByte(msg, bit >>> 3) & (1 << (bit & 7)));
+	}
+
+	private static long add(long a, long b)
+	{
+		return a + b;
+	}
+
+	private static long subtract(long a, long b)
+	{
+		return a - b;
+	}
+
+	private static long shiftLeft(long a, long b)
+	{
+		return a << b;
+	}
+
+	private static long shiftRight(long a, long b)
+	{
+		return a >>> b;
+	}
+
+	private static long and(long a, long b)
+	{
+		return a & b;
+	}
+
+	private static long xor(long a, long b)
+	{
+		return a ^ b;
+	}
+
+	private static long or(long a, long b)
+	{
+		return a | b;
+	}
+
+	private static long negate(long a)
+	{
+		return -a;
+	}
+
+	private static long complement(long a)
+	{
+		return ~a;
+	}
+
+	private static boolean not(boolean a)
+	{
+		return !a;
+	}
+
+	private static boolean equal(long a, long b)
+	{
+		return a == b;
+	}
+
+	private static boolean notEqual(long a, long b)
+	{
+		return a != b;
+	}
+
+	private static boolean less(long a, long b)
+	{
+		return a < b;
+	}
+
+	private static boolean lessOrEqual(long a, long b)
+	{
+		return a <= b;
+	}
+
+	private static boolean greater(long a, long b)
+	{
+		return a > b;
+	}
+
+	private static boolean greaterOrEqual(long a, long b)
+	{
+		return a >= b;
+	}
+
+	private static boolean booleanEqual(boolean a, boolean b)
+	{
+		return a == b;
+	}
+
+	private static boolean booleanNotEqual(boolean a, boolean b)
+	{
+		return a != b;
+	}
+
+	private static boolean in(long x, long from, long to)
+	{
+		return from <= x && x <= to;
+	}
+
+	private static MethodHandle find(String name, MethodType type)
+	{
+		try
+		{
+			return LOOKUP.findStatic(FrameFilter.class, name, type);
+		} catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Recursive descent parser building the method handle chain. Every parse
+	 * method returns a handle taking the message, returning long or boolean.
+	 */
+	private static class Parser
+	{
+		private final String text;
+		private int pos;
+
+		private Parser(String text)
+		{
+			this.text = text;
+		}
+
+		private MethodHandle parseFilter()
+		{
+			MethodHandle result = this.requireBoolean(this.parseOr());
+			this.skipSpace();
+			if (this.pos < this.text.length())
+			{
+				throw this.error("Unexpected \""
+						+ this.text.substring(this.pos) + "\"");
+			}
+			return result;
+		}
+
+		private MethodHandle parseOr()
+		{
+			MethodHandle left = this.parseAnd();
+			while (this.accept("||"))
+			{
+				MethodHandle right = this.requireBoolean(this.parseAnd());
+				// short-circuit: left ? true : right
+				left = MethodHandles.guardWithTest(this.requireBoolean(left),
+						constant(true), right);
+			}
+			return left;
+		}
+
+		private MethodHandle parseAnd()
+		{
+			MethodHandle left = this.parseBitOr();
+			while (this.accept("&&"))
+			{
+				MethodHandle right = this.requireBoolean(this.parseBitOr());
+				// short-circuit: left ? right : false
+				left = MethodHandles.guardWithTest(this.requireBoolean(left),
+						right, constant(false));
+			}
+			return left;
+		}
+
+		private MethodHandle parseBitOr()
+		{
+			MethodHandle left = this.parseXor();
+			while (!this.peek("||") && this.accept("|"))
+			{
+				left = this.combine("or", left, this.parseXor());
+			}
+			return left;
+		}
+
+		private MethodHandle parseXor()
+		{
+			MethodHandle left = this.parseBitAnd();
+			while (this.accept("^"))
+			{
+				left = this.combine("xor", left, this.parseBitAnd());
+			}
+			return left;
+		}
+
+		private MethodHandle parseBitAnd()
+		{
+			MethodHandle left = this.parseEquality();
+			while (!this.peek("&&") && this.accept("&"))
+			{
+				left = this.combine("and", left, this.parseEquality());
+			}
+			return left;
+		}
+
+		private MethodHandle parseEquality()
+		{
+			MethodHandle left = this.parseRelation();
+			while (true)
+			{
+				boolean equal;
+				if (this.accept("=="))
+				{
+					equal = true;
+				} else if (this.accept("!="))
+				{
+					equal = false;
+				} else
+				{
+					return left;
+				}
+				MethodHandle right = this.parseRelation();
+				if (isBoolean(left) && isBoolean(right))
+				{
+					left = combine(find(equal ? "booleanEqual"
+							: "booleanNotEqual", MethodType.methodType(
+							boolean.class, boolean.class, boolean.class)),
+							left, right);
+				} else
+				{
+					left = this.compare(equal ? "equal" : "notEqual", left,
+							right);
+				}
+			}
+		}
+
+		private MethodHandle parseRelation()
+		{
+			MethodHandle left = this.parseShift();
+			if (this.accept("<="))
+			{
+				return this.compare("lessOrEqual", left, this.parseShift());
+			} else if (this.peek("<") && !this.peek("<<") && this.accept("<"))
+			{
+				return this.compare("less", left, this.parseShift());
+			} else if (this.accept(">="))
+			{
+				return this.compare("greaterOrEqual", left, this.parseShift());
+			} else if (this.peek(">") && !this.peek(">>") && this.accept(">"))
+			{
+				return this.compare("greater", left, this.parseShift());
+			} else if (this.acceptWord("in"))
+			{
+				MethodHandle from = this.requireLong(this.parseShift());
+				this.expect("..");
+				MethodHandle to = this.requireLong(this.parseShift());
+				MethodHandle in = MethodHandles.filterArguments(
+						find("in", MethodType.methodType(boolean.class,
+								long.class, long.class, long.class)), 0,
+						this.requireLong(left), from, to);
+				return MethodHandles.permuteArguments(in, BOOLEAN_FIELD, 0, 0,
+						0);
+			}
+			return left;
+		}
+
+		private MethodHandle parseShift()
+		{
+			MethodHandle left = this.parseAdditive();
+			while (true)
+			{
+				if (this.accept("<<"))
+				{
+					left = this.combine("shiftLeft", left,
+							this.parseAdditive());
+				} else if (this.accept(">>"))
+				{
+					left = this.combine("shiftRight", left,
+							this.parseAdditive());
+				} else
+				{
+					return left;
+				}
+			}
+		}
+
+		private MethodHandle parseAdditive()
+		{
+			MethodHandle left = this.parseUnary();
+			while (true)
+			{
+				if (this.accept("+"))
+				{
+					left = this.combine("add", left, this.parseUnary());
+				} else if (this.accept("-"))
+				{
+					left = this.combine("subtract", left, this.parseUnary());
+				} else
+				{
+					return left;
+				}
+			}
+		}
+
+		private MethodHandle parseUnary()
+		{
+			if (this.peek("!") && !this.peek("!=") && this.accept("!"))
+			{
+				return MethodHandles.filterReturnValue(
+						this.requireBoolean(this.parseUnary()),
+						find("not", MethodType.methodType(boolean.class,
+								boolean.class)));
+			} else if (this.accept("~"))
+			{
+				return MethodHandles.filterReturnValue(
+						this.requireLong(this.parseUnary()),
+						find("complement", MethodType.methodType(long.class,
+								long.class)));
+			} else if (this.accept("-"))
+			{
+				return MethodHandles.filterReturnValue(
+						this.requireLong(this.parseUnary()),
+						find("negate", MethodType.methodType(long.class,
+								long.class)));
+			}
+			return this.parsePrimary();
+		}
+
+		private MethodHandle parsePrimary()
+		{
+			this.skipSpace();
+			if (this.accept("("))
+			{
+				MethodHandle result = this.parseOr();
+				this.expect(")");
+				return result;
+			}
+			if (this.pos < this.text.length()
+					&& Character.isDigit(this.text.charAt(this.pos)))
+			{
+				return constant(this.parseNumber());
+			}
+			int start = this.pos;
+			String word = this.parseWord();
+			switch (word)
+			{
+				case "id":
+					return find("id", LONG_FIELD);
+				case "len":
+				case "dlc":
+					return find("length", LONG_FIELD);
+				case "timestamp":
+					return find("timestamp", LONG_FIELD);
+				case "reserver":
+					return find("reserver", LONG_FIELD);
+				case "ext":
+					return find("ext", BOOLEAN_FIELD);
+				case "rtr":
+					return find("rtr", BOOLEAN_FIELD);
+				case "true":
+					return constant(true);
+				case "false":
+					return constant(false);
+				case "data":
+					if (!this.accept("["))
+					{
+						return find("data", LONG_FIELD);
+					}
+					return MethodHandles.insertArguments(
+							find("dataByte", MethodType.methodType(long.class,
+									CANMessage.class, int.class)), 1,
+							Integer.valueOf(this.parseIndex(7)));
+				case "bit":
+					this.expect("[");
+					return MethodHandles.insertArguments(
+							find("bit", MethodType.methodType(boolean.class,
+									CANMessage.class, int.class)), 1,
+							Integer.valueOf(this.parseIndex(63)));
+				default:
+					this.pos = start;
+					throw this.error(word.isEmpty() ? "Value expected"
+							: "Unknown field \"" + word + "\"");
+			}
+		}
+
+		private int parseIndex(int max)
+		{
+			this.skipSpace();
+			long index = this.parseNumber();
+			if (index < 0 || index > max)
+			{
+				throw this.error("Index " + index + " out of range 0.." + max);
+			}
+			this.expect("]");
+			return (int) index;
+		}
+
+		private long parseNumber()
+		{
+			int radix = 10;
+			if (this.text.startsWith("0x", this.pos)
+					|| this.text.startsWith("0X", this.pos))
+			{
+				radix = 16;
+				this.pos += 2;
+			} else if (this.text.startsWith("0b", this.pos)
+					|| this.text.startsWith("0B", this.pos))
+			{
+				radix = 2;
+				this.pos += 2;
+			}
+			int start = this.pos;
+			while (this.pos < this.text.length()
+					&& Character.digit(this.text.charAt(this.pos), radix) >= 0)
+			{
+				this.pos++;
+			}
+			try
+			{
+				return Long.parseUnsignedLong(
+						this.text.substring(start, this.pos), radix);
+			} catch (NumberFormatException e)
+			{
+				this.pos = start;
+				throw this.error("Number expected");
+			}
+		}
+
+		private String parseWord()
+		{
+			this.skipSpace();
+			int start = this.pos;
+			while (this.pos < this.text.length()
+					&& Character.isLetterOrDigit(this.text.charAt(this.pos)))
+			{
+				this.pos++;
+			}
+			return this.text.substring(start, this.pos);
+		}
+
+		private MethodHandle combine(String operator, MethodHandle left,
+				MethodHandle right)
+		{
+			return combine(find(operator, LONG_OPERATOR),
+					this.requireLong(left), this.requireLong(right));
+		}
+
+		private MethodHandle compare(String operator, MethodHandle left,
+				MethodHandle right)
+		{
+			return combine(find(operator, COMPARISON), this.requireLong(left),
+					this.requireLong(right));
+		}
+
+		private static MethodHandle combine(MethodHandle operator,
+				MethodHandle left, MethodHandle right)
+		{
+			// operator(left(msg), right(msg))
+			MethodHandle both = MethodHandles.filterArguments(operator, 0,
+					left, right);
+			return MethodHandles.permuteArguments(both, MethodType
+					.methodType(operator.type().returnType(),
+							CANMessage.class), 0, 0);
+		}
+
+		private static MethodHandle constant(long value)
+		{
+			return MethodHandles.dropArguments(
+					MethodHandles.constant(long.class, Long.valueOf(value)),
+					0, CANMessage.class);
+		}
+
+		private static MethodHandle constant(boolean value)
+		{
+			return MethodHandles.dropArguments(MethodHandles.constant(
+					boolean.class, Boolean.valueOf(value)), 0,
+					CANMessage.class);
+		}
+
+		private static boolean isBoolean(MethodHandle handle)
+		{
+			return boolean.class == handle.type().returnType();
+		}
+
+		private MethodHandle requireBoolean(MethodHandle handle)
+		{
+			if (!isBoolean(handle))
+			{
+				throw this.error("Condition expected");
+			}
+			return handle;
+		}
+
+		private MethodHandle requireLong(MethodHandle handle)
+		{
+			if (isBoolean(handle))
+			{
+				throw this.error("Value expected");
+			}
+			return handle;
+		}
+
+		private void skipSpace()
+		{
+			while (this.pos < this.text.length()
+					&& Character.isWhitespace(this.text.charAt(this.pos)))
+			{
+				this.pos++;
+			}
+		}
+
+		private boolean peek(String token)
+		{
+			this.skipSpace();
+			return this.text.startsWith(token, this.pos);
+		}
+
+		private boolean accept(String token)
+		{
+			if (this.peek(token))
+			{
+				this.pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private boolean acceptWord(String word)
+		{
+			if (!this.peek(word))
+			{
+				return false;
+			}
+			int end = this.pos + word.length();
+			if (end < this.text.length()
+					&& Character.isLetterOrDigit(this.text.charAt(end)))
+			{
+				return false;
+			}
+			this.pos = end;
+			return true;
+		}
+
+		private void expect(String token)
+		{
+			if (!this.accept(token))
+			{
+				throw this.error("\"" + token + "\" expected");
+			}
+		}
+
+		private IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException(message + " at position "
+					+ this.pos + " of filter \"" + this.text + "\"!");
+		}
+	}
+}
@@ -31,18 +31,18 @@ import de.hardwarespielerei.can.canusb.jna.NativeAccess;
 
 /**
  * Controls loading and unloading of the library and provides access to the
- * library.
+ * library. The library handle is safely published to all threads.
  * 
  * @author gabriel
  */
 public class Library
 {
-	private static NativeAccess nativeAccess;
+	private static volatile NativeAccess nativeAccess;
 
 	/**
 	 * Loads the library.
 	 */
-	public static void load()
+	public static synchronized void load()
 	{
 		if (null == nativeAccess)
 		{
@@ -55,10 +55,22 @@ public class Library
 		}
 	}
 
+	/**
+	 * Uses the given implementation instead of the native library, e. g. to
+	 * test applications without CANUSB hardware.
+	 * 
+	 * @param nativeAccess
+	 *            references the implementation to use.
+	 */
+	public static synchronized void load(NativeAccess nativeAccess)
+	{
+		Library.nativeAccess = nativeAccess;
+	}
+
 	/**
 	 * Unloads the library.
 	 */
-	public static void unload()
+	public static synchronized void unload()
 	{
 		nativeAccess = null;
 	}
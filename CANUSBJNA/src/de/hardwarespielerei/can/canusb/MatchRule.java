@@ -0,0 +1,205 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+/**
+ * Rule matching frames with a given ID whose payload, packed into a long with
+ * data byte 0 being the most significant byte, masked with a mask equals a
+ * value, e. g. "ID 0x123 and (byte 2 &amp; 0xF0) == 0x30". Rules are immutable,
+ * conditions on further bytes give new rules. Compile rules into a
+ * {@link RuleSet} to check frames.
+ * 
+ * @author gabriel
+ */
+public class MatchRule
+{
+	private final String name;
+	private final int id;
+	private final boolean extendedID;
+	private final long mask;
+	private final long value;
+
+	/**
+	 * Constructs a rule matching any frame with the given ID.
+	 * 
+	 * @param name
+	 *            references the name of the rule, e. g. for reports.
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @throws IllegalArgumentException
+	 *             if the ID has too many bits.
+	 */
+	public MatchRule(String name, int id, boolean extendedID)
+	{
+		this(name, id, extendedID, 0, 0);
+	}
+
+	/**
+	 * Constructs a rule matching frames with the given ID whose payload
+	 * masked with mask equals value masked with mask.
+	 * 
+	 * @param name
+	 *            references the name of the rule, e. g. for reports.
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param mask
+	 *            contains the payload mask, data byte 0 being the most
+	 *            significant byte.
+	 * @param value
+	 *            contains the expected payload, data byte 0 being the most
+	 *            significant byte.
+	 * @throws IllegalArgumentException
+	 *             if the ID has too many bits.
+	 */
+	public MatchRule(String name, int id, boolean extendedID, long mask,
+			long value)
+	{
+		if (0 != (id & (extendedID ? ~0x1FFFFFFF : ~0x7FF)))
+		{
+			throw new IllegalArgumentException("Invalid ID 0x"
+					+ Integer.toHexString(id) + "!");
+		}
+		this.name = name;
+		this.id = id;
+		this.extendedID = extendedID;
+		this.mask = mask;
+		this.value = value & mask;
+	}
+
+	/**
+	 * Adds a condition on one data byte.
+	 * 
+	 * @param index
+	 *            contains the index of the data byte 0..7.
+	 * @param byteMask
+	 *            contains the mask of the data byte.
+	 * @param byteValue
+	 *            contains the expected value of the data byte masked with
+	 *            byteMask.
+	 * @return new rule with the additional condition.
+	 * @throws IllegalArgumentException
+	 *             if index is out of range or the byte conflicts with a
+	 *             condition already set.
+	 */
+	public MatchRule withByte(int index, int byteMask, int byteValue)
+	{
+		if (index < 0 || index > 7)
+		{
+			throw new IllegalArgumentException("Invalid data byte " + index
+					+ "!");
+		}
+		int shift = 56 - 8 * index;
+		long m = (byteMask & 0xFFL) << shift;
+		long v = (byteValue & byteMask & 0xFFL) << shift;
+		if ((this.value & m) != (v & this.mask))
+		{
+			throw new IllegalArgumentException("Data byte " + index
+					+ " conflicts with " + this + "!");
+		}
+		return new MatchRule(this.name, this.id, this.extendedID, this.mask
+				| m, this.value | v);
+	}
+
+	/**
+	 * @return name of this rule.
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/**
+	 * @return message ID.
+	 */
+	public int getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return true if the rule matches extended IDs, false otherwise.
+	 */
+	public boolean isExtendedID()
+	{
+		return this.extendedID;
+	}
+
+	/**
+	 * @return payload mask, data byte 0 being the most significant byte.
+	 */
+	public long getMask()
+	{
+		return this.mask;
+	}
+
+	/**
+	 * @return expected payload masked with the payload mask.
+	 */
+	public long getValue()
+	{
+		return this.value;
+	}
+
+	/**
+	 * @return minimum frame size for the bytes of the mask to be present.
+	 */
+	public int getMinLength()
+	{
+		return minLength(this.mask);
+	}
+
+	/**
+	 * @param mask
+	 *            contains a payload mask, data byte 0 being the most
+	 *            significant byte.
+	 * @return minimum frame size for the bytes of the mask to be present.
+	 */
+	static int minLength(long mask)
+	{
+		return 0 == mask ? 0 : 8 - Long.numberOfTrailingZeros(mask) / 8;
+	}
+
+	/**
+	 * @return key of this rule in an ID-indexed table.
+	 */
+	protected int getKey()
+	{
+		return ResponseMatcher.key(this.id, this.extendedID);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Rule " + this.name + ": ID 0x" + Integer.toHexString(this.id)
+				+ (this.extendedID ? " (extended)" : "")
+				+ (0 == this.mask ? "" : " data 0x"
+						+ Long.toHexString(this.value) + " mask 0x"
+						+ Long.toHexString(this.mask));
+	}
+}
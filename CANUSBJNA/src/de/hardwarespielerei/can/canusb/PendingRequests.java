@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Table of requests waiting for their response, indexed by the ID of the
+ * expected response. A received message only visits the waiters registered
+ * for its own ID. Responses are matched on the receive thread, but futures
+ * are completed by {@link ForkJoinPool#commonPool()}, so continuations of a
+ * request never block reception.
+ * 
+ * @author gabriel
+ */
+class PendingRequests
+{
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(
+			1, r -> {
+				Thread thread = new Thread(r, "CANUSB request timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	static
+	{
+		// answered requests shall not keep their timeouts in the queue
+		TIMER.setRemoveOnCancelPolicy(true);
+	}
+
+	private static class Waiter implements Runnable
+	{
+		private ResponseMatcher matcher;
+		private CompletableFuture<CANMessage> future;
+		private ScheduledFuture<?> timeout;
+		private final AtomicBoolean answered = new AtomicBoolean();
+
+		private Waiter(ResponseMatcher matcher)
+		{
+			this.matcher = matcher;
+			this.future = new CompletableFuture<CANMessage>();
+		}
+
+		@Override
+		public void run()
+		{
+			if (!this.answered.compareAndSet(false, true))
+			{
+				// the response is being delivered...
+				return;
+			}
+			this.future.completeExceptionally(new java.util.concurrent.TimeoutException(
+					"No " + this.matcher + " received in time!"));
+		}
+	}
+
+	private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Waiter>> waiters = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Waiter>>();
+
+	/**
+	 * Registers a waiter for a response. The waiter is removed from the table
+	 * as soon as its future completes in any way.
+	 * 
+	 * @param matcher
+	 *            references the description of the expected response.
+	 * @param timeout
+	 *            contains the time to wait for the response.
+	 * @param unit
+	 *            references the unit of timeout.
+	 * @return future completed by the response or by a
+	 *         {@link java.util.concurrent.TimeoutException}.
+	 */
+	CompletableFuture<CANMessage> register(ResponseMatcher matcher,
+			long timeout, TimeUnit unit)
+	{
+		final Waiter waiter = new Waiter(matcher);
+		final Integer key = Integer.valueOf(matcher.getKey());
+		waiter.timeout = TIMER.schedule(waiter, timeout, unit);
+		this.waiters.compute(key, (k, queue) -> {
+			if (null == queue)
+			{
+				queue = new ConcurrentLinkedQueue<Waiter>();
+			}
+			queue.add(waiter);
+			return queue;
+		});
+		waiter.future.whenComplete((msg, t) -> {
+			waiter.timeout.cancel(false);
+			this.unregister(key, waiter);
+		});
+		return waiter.future;
+	}
+
+	private void unregister(Integer key, Waiter waiter)
+	{
+		this.waiters.computeIfPresent(key, (k, queue) -> {
+			queue.remove(waiter);
+			return queue.isEmpty() ? null : queue;
+		});
+	}
+
+	/**
+	 * Completes the first waiter matching the received message.
+	 * 
+	 * @param msg
+	 *            references a received message.
+	 */
+	void dispatch(CANMessage msg)
+	{
+		if (this.waiters.isEmpty())
+		{
+			return;
+		}
+		ConcurrentLinkedQueue<Waiter> queue = this.waiters.get(Integer
+				.valueOf(ResponseMatcher.key(msg.getId(), msg.isExtendedID())));
+		if (null != queue)
+		{
+			for (Waiter waiter : queue)
+			{
+				if (waiter.matcher.matches(msg) && !waiter.future.isDone()
+						&& waiter.answered.compareAndSet(false, true))
+				{
+					ForkJoinPool.commonPool().execute(
+							() -> waiter.future.complete(msg));
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cancels all pending requests.
+	 */
+	void cancelAll()
+	{
+		for (ConcurrentLinkedQueue<Waiter> queue : this.waiters.values())
+		{
+			for (Waiter waiter : queue)
+			{
+				waiter.future.cancel(false);
+			}
+		}
+	}
+}
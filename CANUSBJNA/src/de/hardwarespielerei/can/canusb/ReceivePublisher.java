@@ -0,0 +1,334 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the messages received on a channel to one subscriber, honoring its
+ * demand. The publisher takes over the receive call back of the channel when
+ * subscribed: the native call back thread only stores the message into a
+ * bounded, pre-allocated buffer, messages are delivered to the subscriber by
+ * an executor. If the subscriber falls behind and the buffer is full, the
+ * configured {@link OverflowPolicy} applies. Once the subscriber cancels,
+ * the publisher accepts a new subscriber.
+ * 
+ * @author gabriel
+ */
+public class ReceivePublisher implements Flow.Publisher<CANMessage>
+{
+	private class ReceiveSubscription implements Flow.Subscription,
+			ReceiveCallback
+	{
+		private final Flow.Subscriber<? super CANMessage> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable error;
+
+		private ReceiveSubscription(
+				Flow.Subscriber<? super CANMessage> subscriber)
+		{
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void callback(CANMessage msg)
+		{
+			if (this.cancelled)
+			{
+				// call back still set while releasing...
+				return;
+			}
+			if (!ReceivePublisher.this.offer(msg))
+			{
+				this.error = new IllegalStateException(
+						"Subscriber can't keep up with "
+								+ ReceivePublisher.this.channel + "!");
+			}
+			this.drainLater();
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				this.error = new IllegalArgumentException(
+						"Non-positive request " + n + "!");
+			} else
+			{
+				long current;
+				long next;
+				do
+				{
+					current = this.requested.get();
+					next = current + n;
+					if (next < 0)
+					{
+						// unbounded...
+						next = Long.MAX_VALUE;
+					}
+				} while (!this.requested.compareAndSet(current, next));
+			}
+			this.drainLater();
+		}
+
+		@Override
+		public void cancel()
+		{
+			if (!this.cancelled)
+			{
+				this.cancelled = true;
+				ReceivePublisher.this.release(this);
+			}
+		}
+
+		private void drainLater()
+		{
+			if (0 == this.wip.getAndIncrement())
+			{
+				ReceivePublisher.this.executor.execute(this::drain);
+			}
+		}
+
+		private void drain()
+		{
+			int missed = 1;
+			do
+			{
+				long demand = this.requested.get();
+				long emitted = 0;
+				while (!this.cancelled)
+				{
+					Throwable t = this.error;
+					if (null != t)
+					{
+						this.cancel();
+						this.subscriber.onError(t);
+						return;
+					}
+					if (emitted == demand)
+					{
+						break;
+					}
+					CANMessage msg = ReceivePublisher.this.poll();
+					if (null == msg)
+					{
+						break;
+					}
+					this.subscriber.onNext(msg);
+					emitted++;
+				}
+				if (0 != emitted && Long.MAX_VALUE != demand)
+				{
+					this.requested.addAndGet(-emitted);
+				}
+				missed = this.wip.addAndGet(-missed);
+			} while (0 != missed);
+		}
+	}
+
+	private final Channel channel;
+	private final OverflowPolicy policy;
+	private final Executor executor;
+	private final CANMessage[] buffer;
+	private long head;
+	private long tail;
+	private long dropped;
+	private ReceiveSubscription subscription;
+
+	/**
+	 * Constructs a publisher delivering messages on the common fork join pool.
+	 * 
+	 * @param channel
+	 *            references the channel to receive messages from.
+	 * @param capacity
+	 *            contains the number of messages to buffer.
+	 * @param policy
+	 *            references the policy to apply if the buffer is full.
+	 */
+	public ReceivePublisher(Channel channel, int capacity,
+			OverflowPolicy policy)
+	{
+		this(channel, capacity, policy, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a publisher.
+	 * 
+	 * @param channel
+	 *            references the channel to receive messages from.
+	 * @param capacity
+	 *            contains the number of messages to buffer.
+	 * @param policy
+	 *            references the policy to apply if the buffer is full.
+	 * @param executor
+	 *            references the executor delivering messages to the
+	 *            subscriber.
+	 */
+	public ReceivePublisher(Channel channel, int capacity,
+			OverflowPolicy policy, Executor executor)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Capacity must be positive!");
+		}
+		this.channel = channel;
+		this.policy = policy;
+		this.executor = executor;
+		this.buffer = new CANMessage[capacity];
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super CANMessage> subscriber)
+	{
+		ReceiveSubscription next = new ReceiveSubscription(subscriber);
+		boolean subscribed;
+		synchronized (this.buffer)
+		{
+			subscribed = null == this.subscription;
+			if (subscribed)
+			{
+				this.subscription = next;
+			}
+		}
+		if (!subscribed)
+		{
+			// must not touch the buffer of the active subscription...
+			subscriber.onSubscribe(new Flow.Subscription()
+			{
+				@Override
+				public void request(long n)
+				{
+					// rejected
+				}
+
+				@Override
+				public void cancel()
+				{
+					// rejected
+				}
+			});
+			subscriber.onError(new IllegalStateException(this
+					+ " supports only one subscriber!"));
+			return;
+		}
+		subscriber.onSubscribe(next);
+		try
+		{
+			this.channel.setReceiveCallBack(next);
+		} catch (CANUSBException e)
+		{
+			next.error = e;
+			next.drainLater();
+		}
+	}
+
+	/**
+	 * @return number of messages discarded because the buffer was full.
+	 */
+	public long getDropped()
+	{
+		synchronized (this.buffer)
+		{
+			return this.dropped;
+		}
+	}
+
+	private boolean offer(CANMessage msg)
+	{
+		synchronized (this.buffer)
+		{
+			if (this.tail - this.head == this.buffer.length)
+			{
+				this.dropped++;
+				switch (this.policy)
+				{
+					case DROP:
+						return true;
+					case CONFLATE:
+						this.buffer[(int) (this.head++ % this.buffer.length)] = null;
+						break;
+					default:
+						return false;
+				}
+			}
+			this.buffer[(int) (this.tail++ % this.buffer.length)] = msg;
+			return true;
+		}
+	}
+
+	private CANMessage poll()
+	{
+		synchronized (this.buffer)
+		{
+			if (this.head == this.tail)
+			{
+				return null;
+			}
+			int index = (int) (this.head++ % this.buffer.length);
+			CANMessage msg = this.buffer[index];
+			this.buffer[index] = null;
+			return msg;
+		}
+	}
+
+	private void release(ReceiveSubscription released)
+	{
+		synchronized (this.buffer)
+		{
+			if (released != this.subscription)
+			{
+				return;
+			}
+		}
+		try
+		{
+			this.channel.setReceiveCallBack(null);
+		} catch (CANUSBException e)
+		{
+			// channel closed already, nothing to release
+		}
+		synchronized (this.buffer)
+		{
+			while (this.head != this.tail)
+			{
+				this.buffer[(int) (this.head++ % this.buffer.length)] = null;
+			}
+			this.subscription = null;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Publisher of " + this.channel;
+	}
+}
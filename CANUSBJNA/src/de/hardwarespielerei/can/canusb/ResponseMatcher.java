@@ -0,0 +1,266 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * Describes the response expected for a request sent by
+ * {@link Channel#request(CANMessage, ResponseMatcher, long, java.util.concurrent.TimeUnit)}
+ * : a message ID and optionally a masked comparison of the data bytes.
+ * 
+ * The static helpers turn the ID, data bytes and flags of a message into the
+ * primitive keys, payloads and flag bytes used by the tables and rings of
+ * this library.
+ * 
+ * @author gabriel
+ */
+public class ResponseMatcher
+{
+	private int id;
+	private boolean extendedID;
+	private long dataMask;
+	private long dataValue;
+	private int minLength;
+
+	/**
+	 * Constructs a matcher accepting any message with the given ID.
+	 * 
+	 * @param id
+	 *            contains the message ID of the response.
+	 * @param extendedID
+	 *            contains the extended ID flag of the response.
+	 */
+	public ResponseMatcher(int id, boolean extendedID)
+	{
+		this(id, extendedID, null, null);
+	}
+
+	/**
+	 * Constructs a matcher accepting messages with the given ID whose data
+	 * bytes masked with dataMask equal dataValue masked with dataMask. The
+	 * message must be long enough to contain all masked bytes.
+	 * 
+	 * @param id
+	 *            contains the message ID of the response.
+	 * @param extendedID
+	 *            contains the extended ID flag of the response.
+	 * @param dataMask
+	 *            contains up to 8 mask bytes or NULL to accept any data.
+	 * @param dataValue
+	 *            contains up to 8 expected data bytes or NULL to accept any
+	 *            data.
+	 * @throws IllegalArgumentException
+	 *             if mask or value is more than 8 bytes long or only one of
+	 *             them is given.
+	 */
+	public ResponseMatcher(int id, boolean extendedID, byte[] dataMask,
+			byte[] dataValue)
+	{
+		if ((null != dataMask && dataMask.length > 8)
+				|| (null != dataValue && dataValue.length > 8))
+		{
+			throw new IllegalArgumentException(
+					"Data mask or value is more than 8 bytes long!");
+		}
+		if ((null == dataMask) != (null == dataValue))
+		{
+			throw new IllegalArgumentException(
+					"Data mask and value must be given together!");
+		}
+		this.id = id;
+		this.extendedID = extendedID;
+		if (null != dataMask && null != dataValue)
+		{
+			this.dataMask = toLong(dataMask, dataMask.length);
+			this.dataValue = toLong(dataValue, dataValue.length)
+					& this.dataMask;
+			this.minLength = MatchRule.minLength(this.dataMask);
+		}
+	}
+
+	/**
+	 * @return message ID of the response.
+	 */
+	public int getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return true if the response has an extended ID, false otherwise.
+	 */
+	public boolean isExtendedID()
+	{
+		return this.extendedID;
+	}
+
+	/**
+	 * @param msg
+	 *            references a received message.
+	 * @return true if the message is an expected response, false otherwise.
+	 */
+	public boolean matches(CANMessage msg)
+	{
+		if (msg.getId() != this.id || msg.isExtendedID() != this.extendedID)
+		{
+			return false;
+		}
+		return 0 == this.dataMask
+				|| (msg.getLength() >= this.minLength
+						&& (payload(msg) & this.dataMask) == this.dataValue);
+	}
+
+	/**
+	 * @return key of this matcher in an ID-indexed table.
+	 */
+	protected int getKey()
+	{
+		return key(this.id, this.extendedID);
+	}
+
+	/**
+	 * Calculates a key for ID-indexed tables. Extended IDs have 29 bits, so
+	 * the most significant bit is used to separate them from standard IDs.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @return key of the ID.
+	 */
+	public static int key(int id, boolean extendedID)
+	{
+		return extendedID ? (id | 0x80000000) : id;
+	}
+
+	/**
+	 * Calculates the key of a message's ID for ID-indexed tables.
+	 * 
+	 * @param msg
+	 *            references a CAN message.
+	 * @return key of the message's ID.
+	 * @see #key(int, boolean)
+	 */
+	public static int key(CANMessage msg)
+	{
+		return key(msg.getId(), msg.isExtendedID());
+	}
+
+	/**
+	 * Spreads a key over the bits of a hash table index.
+	 * 
+	 * @param key
+	 *            contains a key, see {@link #key(int, boolean)}.
+	 * @return hash of the key. Mask it with the table size minus one.
+	 */
+	public static int hash(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Packs the data bytes of a message into a long, see
+	 * {@link #toLong(byte[], int)}.
+	 * 
+	 * @param msg
+	 *            references a CAN message.
+	 * @return packed data bytes.
+	 */
+	public static long payload(CANMessage msg)
+	{
+		return toLong(msg.getData(), msg.getLength() & 0xFF);
+	}
+
+	/**
+	 * Packs data bytes into a long, byte 0 being the most significant byte.
+	 * Missing bytes are zero.
+	 * 
+	 * @param data
+	 *            references the data bytes or NULL.
+	 * @param length
+	 *            contains the number of valid data bytes.
+	 * @return packed data bytes.
+	 */
+	public static long toLong(byte[] data, int length)
+	{
+		if (null == data)
+		{
+			return 0;
+		}
+		long result = 0;
+		int valid = Math.min(Math.min(length, 8), data.length);
+		for (int i = 0; i < valid; i++)
+		{
+			result |= (data[i] & 0xFFL) << (56 - 8 * i);
+		}
+		return result;
+	}
+
+	/**
+	 * Unpacks data bytes packed by {@link #toLong(byte[], int)}.
+	 * 
+	 * @param payload
+	 *            contains the packed data bytes.
+	 * @param data
+	 *            references the array to fill.
+	 * @param length
+	 *            contains the number of data bytes to unpack, at most 8.
+	 */
+	public static void toBytes(long payload, byte[] data, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			data[i] = (byte) (payload >>> (56 - 8 * i));
+		}
+	}
+
+	/**
+	 * Encodes the flags of a message into one byte: the native
+	 * {@link NativeAccess#CANMSG_EXTENDED} and {@link NativeAccess#CANMSG_RTR}
+	 * flags plus the reserved bits in the lower six bits.
+	 * 
+	 * @param msg
+	 *            references a CAN message.
+	 * @return flag byte.
+	 */
+	public static byte flags(CANMessage msg)
+	{
+		return (byte) ((msg.isExtendedID() ? NativeAccess.CANMSG_EXTENDED : 0)
+				| (msg.isRemoteFrame() ? NativeAccess.CANMSG_RTR : 0) | (msg
+				.getReserver() & 0x3F));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Response 0x" + Integer.toHexString(this.id)
+				+ (this.extendedID ? " (extended)" : "")
+				+ (0 == this.dataMask ? "" : " data 0x"
+						+ Long.toHexString(this.dataValue) + " mask 0x"
+						+ Long.toHexString(this.dataMask));
+	}
+}
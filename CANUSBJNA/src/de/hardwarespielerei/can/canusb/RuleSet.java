@@ -0,0 +1,305 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * Set of {@link MatchRule}s compiled into an ID-indexed table. Standard IDs
+ * index an array directly, extended IDs are looked up in an open addressing
+ * hash table. Both give the slice of the rules for that ID in flat arrays of
+ * masks and values, so a frame is checked with one AND and one compare per
+ * rule of its own ID, independent of the number of rules for other IDs.
+ * 
+ * Hits are counted per rule. A rule set is immutable apart from its hit
+ * counts and may be used by any number of threads, e. g. to scan the ranges
+ * of a capture in parallel.
+ * 
+ * @author gabriel
+ */
+public class RuleSet implements ReceiveCallback, Predicate<CANMessage>
+{
+	private static final int STANDARD_IDS = 0x800;
+
+	private final MatchRule[] rules;
+	private final int[] standardStart = new int[STANDARD_IDS + 1];
+	private final int[] extendedKeys;
+	private final int[] extendedStart;
+	private final int[] extendedEnd;
+	private final int extendedMask;
+	private final long[] masks;
+	private final long[] values;
+	private final byte[] minLengths;
+	private final int[] ruleIndex;
+	private final AtomicLongArray hits;
+
+	/**
+	 * Compiles rules.
+	 * 
+	 * @param rules
+	 *            references the rules. Their order gives the rule numbers.
+	 */
+	public RuleSet(Collection<MatchRule> rules)
+	{
+		this.rules = rules.toArray(new MatchRule[rules.size()]);
+		int n = this.rules.length;
+		this.hits = new AtomicLongArray(n);
+		// sort rule numbers by key, keeping the order within a key...
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+		{
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, (a, b) -> Integer.compareUnsigned(
+				this.rules[a.intValue()].getKey(),
+				this.rules[b.intValue()].getKey()));
+		this.masks = new long[n];
+		this.values = new long[n];
+		this.minLengths = new byte[n];
+		this.ruleIndex = new int[n];
+		int extendedIDs = 0;
+		for (int i = 0; i < n; i++)
+		{
+			MatchRule rule = this.rules[order[i].intValue()];
+			this.masks[i] = rule.getMask();
+			this.values[i] = rule.getValue();
+			this.minLengths[i] = (byte) rule.getMinLength();
+			this.ruleIndex[i] = order[i].intValue();
+			if (rule.isExtendedID()
+					&& (0 == i || rule.getKey() != this.rules[order[i - 1]
+							.intValue()].getKey()))
+			{
+				extendedIDs++;
+			}
+		}
+		// standard IDs: rules of ID i are at standardStart[i]..[i + 1]
+		int pos = 0;
+		for (int id = 0; id <= STANDARD_IDS; id++)
+		{
+			while (pos < n && !this.rules[this.ruleIndex[pos]].isExtendedID()
+					&& this.rules[this.ruleIndex[pos]].getId() < id)
+			{
+				pos++;
+			}
+			this.standardStart[id] = pos;
+		}
+		// extended IDs: hash table at most half full
+		int size = Integer.highestOneBit(Math.max(1, 2 * extendedIDs)) << 1;
+		this.extendedMask = size - 1;
+		this.extendedKeys = new int[size];
+		this.extendedStart = new int[size];
+		this.extendedEnd = new int[size];
+		while (pos < n)
+		{
+			int key = this.rules[this.ruleIndex[pos]].getKey();
+			int end = pos;
+			while (end < n && this.rules[this.ruleIndex[end]].getKey() == key)
+			{
+				end++;
+			}
+			int slot = ResponseMatcher.hash(key) & this.extendedMask;
+			while (0 != this.extendedKeys[slot])
+			{
+				slot = (slot + 1) & this.extendedMask;
+			}
+			this.extendedKeys[slot] = key;
+			this.extendedStart[slot] = pos;
+			this.extendedEnd[slot] = end;
+			pos = end;
+		}
+	}
+
+
+	/**
+	 * Checks a frame against the rules of its ID and counts the hits.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param length
+	 *            contains the frame size.
+	 * @param data
+	 *            contains the payload, data byte 0 being the most significant
+	 *            byte and missing bytes being zero.
+	 * @return number of rules matching.
+	 */
+	public int match(int id, boolean extendedID, int length, long data)
+	{
+		int from;
+		int to;
+		if (extendedID)
+		{
+			int key = ResponseMatcher.key(id, true);
+			int slot = ResponseMatcher.hash(key) & this.extendedMask;
+			int k;
+			while ((k = this.extendedKeys[slot]) != key)
+			{
+				if (0 == k)
+				{
+					return 0;
+				}
+				slot = (slot + 1) & this.extendedMask;
+			}
+			from = this.extendedStart[slot];
+			to = this.extendedEnd[slot];
+		} else
+		{
+			if (id < 0 || id >= STANDARD_IDS)
+			{
+				return 0;
+			}
+			from = this.standardStart[id];
+			to = this.standardStart[id + 1];
+		}
+		int matched = 0;
+		for (int i = from; i < to; i++)
+		{
+			if ((data & this.masks[i]) == this.values[i]
+					&& length >= this.minLengths[i])
+			{
+				this.hits.incrementAndGet(this.ruleIndex[i]);
+				matched++;
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Checks a message against the rules of its ID and counts the hits.
+	 * Remote frames only match rules without payload condition.
+	 * 
+	 * @param msg
+	 *            references the message.
+	 * @return number of rules matching.
+	 */
+	public int match(CANMessage msg)
+	{
+		int length = msg.getLength() & 0xFF;
+		return this.match(msg.getId(), msg.isExtendedID(),
+				msg.isRemoteFrame() ? 0 : length, msg.isRemoteFrame() ? 0
+						: ResponseMatcher.toLong(msg.getData(), length));
+	}
+
+	/**
+	 * @param msg
+	 *            references the message.
+	 * @return true if any rule matches, false otherwise.
+	 */
+	public boolean matches(CANMessage msg)
+	{
+		return this.match(msg) > 0;
+	}
+
+	/**
+	 * @see #matches(CANMessage)
+	 */
+	@Override
+	public boolean test(CANMessage msg)
+	{
+		return this.match(msg) > 0;
+	}
+
+	/**
+	 * Counts the hits of a received message.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		this.match(msg);
+	}
+
+	/**
+	 * @param target
+	 *            references the call back to pass matching messages to.
+	 * @return call back passing only messages matching any rule.
+	 */
+	public ReceiveCallback filter(ReceiveCallback target)
+	{
+		return msg -> {
+			if (this.match(msg) > 0)
+			{
+				target.callback(msg);
+			}
+		};
+	}
+
+	/**
+	 * @return number of rules.
+	 */
+	public int size()
+	{
+		return this.rules.length;
+	}
+
+	/**
+	 * @param rule
+	 *            contains the rule number.
+	 * @return rule.
+	 */
+	public MatchRule getRule(int rule)
+	{
+		return this.rules[rule];
+	}
+
+	/**
+	 * @param rule
+	 *            contains the rule number.
+	 * @return number of frames the rule matched.
+	 */
+	public long getHits(int rule)
+	{
+		return this.hits.get(rule);
+	}
+
+	/**
+	 * Resets all hit counts.
+	 */
+	public void resetHits()
+	{
+		for (int i = 0; i < this.rules.length; i++)
+		{
+			this.hits.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < this.rules.length; i++)
+		{
+			result.append(this.rules[i]).append(": ")
+					.append(this.hits.get(i)).append(" hits\n");
+		}
+		return result.toString();
+	}
+}
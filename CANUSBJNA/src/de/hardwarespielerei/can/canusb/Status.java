@@ -47,6 +47,15 @@ public class Status
 		this.status = status;
 	}
 
+	/**
+	 * @return native CANUSB status bits, see the CANSTATUS constants of
+	 *         {@link NativeAccess}.
+	 */
+	public int getBits()
+	{
+		return this.status;
+	}
+
 	/**
 	 * @return true if CAN status is OK, false otherwise.
 	 */
@@ -134,4 +143,4 @@ public class Status
 						: "unknown error(s), ") + "0x"
 				+ Integer.toHexString(this.status);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
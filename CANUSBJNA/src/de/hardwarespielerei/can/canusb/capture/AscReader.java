@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+import de.hardwarespielerei.can.canusb.util.Ascii;
+
+/**
+ * Reads CAN frames from a Vector ASC log file, see {@link AscWriter}. Frame
+ * times are relative to the date in the header, or to the epoch if there is
+ * no readable date. Error frames, CAN FD frames and events are skipped.
+ * 
+ * @author gabriel
+ */
+public class AscReader extends TextLogReader
+{
+	private static final DateTimeFormatter[] DATES = {
+			formatter("EEE MMM d hh:mm:ss.SSS a yyyy"),
+			formatter("EEE MMM d HH:mm:ss.SSS yyyy"),
+			formatter("EEE MMM d hh:mm:ss a yyyy"),
+			formatter("EEE MMM d HH:mm:ss yyyy") };
+
+	private long startMicros;
+	private boolean decimal;
+
+	/**
+	 * Opens an ASC log file.
+	 * 
+	 * @param path
+	 *            references the file to read.
+	 * @throws IOException
+	 *             if the file can't be opened.
+	 */
+	public AscReader(Path path) throws IOException
+	{
+		super(open(path));
+	}
+
+	/**
+	 * Reads an ASC log from a channel, e. g. standard input.
+	 * 
+	 * @param channel
+	 *            references the channel to read from.
+	 */
+	public AscReader(ReadableByteChannel channel)
+	{
+		super(channel);
+	}
+
+	private static DateTimeFormatter formatter(String pattern)
+	{
+		return new DateTimeFormatterBuilder().parseCaseInsensitive()
+				.appendPattern(pattern).toFormatter(Locale.ENGLISH);
+	}
+
+	/**
+	 * Imports an ASC log file into a capture file.
+	 * 
+	 * @param log
+	 *            references the ASC log file to read.
+	 * @param capture
+	 *            references the capture file to create.
+	 * @return number of frames imported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long convert(Path log, Path capture) throws IOException
+	{
+		try (AscReader reader = new AscReader(log))
+		{
+			return reader.convert(capture, "ASC");
+		}
+	}
+
+	/**
+	 * @return start of the measurement in microseconds since epoch, as read
+	 *         from the header so far.
+	 */
+	public long getStartTime()
+	{
+		return this.startMicros;
+	}
+
+	@Override
+	boolean parse(byte[] line, int from, int to, TimedFrame frame)
+			throws IOException
+	{
+		this.cursor = from;
+		this.skipSpaces(line, to);
+		if (this.cursor == to)
+		{
+			return false;
+		}
+		if (line[this.cursor] < '0' || line[this.cursor] > '9')
+		{
+			this.parseHeader(line, to);
+			return false;
+		}
+		long time = this.parseSeconds(line, to);
+		this.skipSpaces(line, to);
+		if (this.parseDecimal(line, to) < 0)
+		{
+			// no channel: an event...
+			return false;
+		}
+		this.skipSpaces(line, to);
+		long id = this.decimal ? this.parseDecimal(line, to) : this
+				.parseHex(line, to);
+		boolean extended = this.accept(line, to, "x");
+		if (id < 0 || (this.cursor < to && ' ' != line[this.cursor]))
+		{
+			// error frame or other event...
+			return false;
+		}
+		this.skipSpaces(line, to);
+		this.skipToken(line, to);
+		this.skipSpaces(line, to);
+		if (this.accept(line, to, "r"))
+		{
+			this.skipSpaces(line, to);
+			int length = this.cursor < to ? Ascii.hexValue(line[this.cursor])
+					: 0;
+			frame.set(this.startMicros + time, (int) id, extended, true,
+					Math.max(0, length));
+			return length <= 8;
+		}
+		if (!this.accept(line, to, "d"))
+		{
+			return false;
+		}
+		this.skipSpaces(line, to);
+		int length = (int) this.parseHex(line, to);
+		if (length < 0 || length > 8)
+		{
+			return false;
+		}
+		byte[] data = frame.getData();
+		for (int i = 0; i < length; i++)
+		{
+			this.skipSpaces(line, to);
+			long value = this.decimal ? this.parseDecimal(line, to) : this
+					.parseHex(line, to);
+			if (value < 0)
+			{
+				throw new IOException("Corrupt ASC line!");
+			}
+			data[i] = (byte) value;
+		}
+		frame.set(this.startMicros + time, (int) id, extended, false, length);
+		return true;
+	}
+
+	private void parseHeader(byte[] line, int to)
+	{
+		if (this.accept(line, to, "date "))
+		{
+			String text = new String(line, this.cursor, to - this.cursor,
+					StandardCharsets.US_ASCII).trim().replaceAll("\\s+", " ");
+			for (DateTimeFormatter date : DATES)
+			{
+				try
+				{
+					this.startMicros = LocalDateTime.parse(text, date)
+							.atZone(ZoneId.systemDefault()).toInstant()
+							.toEpochMilli() * 1000;
+					return;
+				} catch (DateTimeParseException e)
+				{
+					// try the next format...
+				}
+			}
+		} else if (this.accept(line, to, "base "))
+		{
+			this.decimal = this.accept(line, to, "dec");
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.util.Ascii;
+
+/**
+ * Writes frames in the Vector ASC log format with hex IDs and times relative
+ * to the start of the measurement, e. g.
+ * 
+ * <pre>
+ * date Fri Jul 10 08:57:32.249 am 2015
+ * base hex  timestamps absolute
+ * internal events logged
+ * Begin Triggerblock Fri Jul 10 08:57:32.249 am 2015
+ *    0.000000 Start of measurement
+ *    0.011200 1  123             Rx   d 4 DE AD BE EF
+ *    0.012000 1  12345678x       Rx   r 8
+ * End TriggerBlock
+ * </pre>
+ * 
+ * @author gabriel
+ * @see AscReader
+ */
+public class AscWriter extends TextLogWriter
+{
+	static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern(
+			"EEE MMM dd hh:mm:ss.SSS a yyyy", Locale.ENGLISH);
+
+	private final long startMicros;
+	private final String date;
+
+	/**
+	 * Creates an ASC log file.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param startMicros
+	 *            contains the start of the measurement in microseconds since
+	 *            epoch.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public AscWriter(Path path, long startMicros) throws IOException
+	{
+		this(create(path), startMicros);
+	}
+
+	/**
+	 * Writes an ASC log to a channel, e. g. standard output.
+	 * 
+	 * @param channel
+	 *            references the channel to write to.
+	 * @param startMicros
+	 *            contains the start of the measurement in microseconds since
+	 *            epoch.
+	 */
+	public AscWriter(WritableByteChannel channel, long startMicros)
+	{
+		super(channel);
+		// the date has millisecond resolution...
+		this.startMicros = startMicros - Math.floorMod(startMicros, 1000);
+		this.date = DATE
+				.format(Instant.ofEpochMilli(startMicros / 1000).atZone(
+						ZoneId.systemDefault())).replace(" AM ", " am ")
+				.replace(" PM ", " pm ");
+	}
+
+	/**
+	 * Exports a capture file, measured from the start time of its header.
+	 * 
+	 * @param capture
+	 *            references the capture file to read.
+	 * @param log
+	 *            references the ASC log file to create.
+	 * @return number of frames exported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long export(Path capture, Path log) throws IOException
+	{
+		long startMicros;
+		try (CaptureReader reader = new CaptureReader(capture))
+		{
+			startMicros = reader.getHeader().getStartTime() * 1000;
+		}
+		return export(capture, new AscWriter(log, startMicros));
+	}
+
+	@Override
+	int header(byte[] b, int p)
+	{
+		p = Ascii.putAscii(b, p, "date " + this.date + "\n");
+		p = Ascii.putAscii(b, p, "base hex  timestamps absolute\n");
+		p = Ascii.putAscii(b, p, "internal events logged\n");
+		p = Ascii.putAscii(b, p, "Begin Triggerblock " + this.date + "\n");
+		return Ascii.putAscii(b, p, "   0.000000 Start of measurement\n");
+	}
+
+	@Override
+	int footer(byte[] b, int p)
+	{
+		return Ascii.putAscii(b, p, "End TriggerBlock\n");
+	}
+
+	@Override
+	int format(byte[] b, int p, CANMessage msg, long timeMicros)
+	{
+		long relative = Math.max(0, timeMicros - this.startMicros);
+		long seconds = relative / 1000000;
+		for (long limit = 1000; limit > 1 && seconds < limit; limit /= 10)
+		{
+			b[p++] = ' ';
+		}
+		p = Ascii.putDecimal(b, p, seconds);
+		b[p++] = '.';
+		p = Ascii.putDecimal(b, p, relative % 1000000, 6);
+		b[p++] = ' ';
+		b[p++] = '1';
+		b[p++] = ' ';
+		b[p++] = ' ';
+		int idFrom = p;
+		int id = msg.getId();
+		int digits = 1;
+		while (digits < 8 && 0 != (id >>> (4 * digits)))
+		{
+			digits++;
+		}
+		p = Ascii.putHex(b, p, id, digits);
+		if (msg.isExtendedID())
+		{
+			b[p++] = 'x';
+		}
+		while (p - idFrom < 16)
+		{
+			b[p++] = ' ';
+		}
+		b[p++] = 'R';
+		b[p++] = 'x';
+		b[p++] = ' ';
+		b[p++] = ' ';
+		b[p++] = ' ';
+		int length = Math.min(msg.getLength() & 0xFF, 8);
+		if (msg.isRemoteFrame())
+		{
+			// Vector writes the requested length after the r
+			b[p++] = 'r';
+			b[p++] = ' ';
+			b[p++] = (byte) ('0' + length);
+		} else
+		{
+			b[p++] = 'd';
+			b[p++] = ' ';
+			b[p++] = (byte) ('0' + length);
+			byte[] data = msg.getData();
+			int valid = null == data ? 0 : Math.min(length, data.length);
+			for (int i = 0; i < length; i++)
+			{
+				b[p++] = ' ';
+				p = Ascii.putHexByte(b, p, i < valid ? data[i] : 0);
+			}
+		}
+		b[p++] = '\n';
+		return p;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+import de.hardwarespielerei.can.canusb.util.Ascii;
+
+/**
+ * Reads frames from a log file of candump (can-utils), see
+ * {@link CandumpWriter}. IDs with more than three hex digits are extended
+ * IDs. CAN FD frames and other lines are skipped.
+ * 
+ * @author gabriel
+ */
+public class CandumpReader extends TextLogReader
+{
+	/**
+	 * Opens a candump log file.
+	 * 
+	 * @param path
+	 *            references the file to read.
+	 * @throws IOException
+	 *             if the file can't be opened.
+	 */
+	public CandumpReader(Path path) throws IOException
+	{
+		super(open(path));
+	}
+
+	/**
+	 * Reads a candump log from a channel, e. g. standard input.
+	 * 
+	 * @param channel
+	 *            references the channel to read from.
+	 */
+	public CandumpReader(ReadableByteChannel channel)
+	{
+		super(channel);
+	}
+
+	/**
+	 * Imports a candump log file into a capture file.
+	 * 
+	 * @param log
+	 *            references the candump log file to read.
+	 * @param capture
+	 *            references the capture file to create.
+	 * @return number of frames imported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long convert(Path log, Path capture) throws IOException
+	{
+		try (CandumpReader reader = new CandumpReader(log))
+		{
+			return reader.convert(capture, "candump");
+		}
+	}
+
+	@Override
+	boolean parse(byte[] line, int from, int to, TimedFrame frame)
+			throws IOException
+	{
+		this.cursor = from;
+		this.skipSpaces(line, to);
+		if (!this.accept(line, to, "("))
+		{
+			return false;
+		}
+		long time = this.parseSeconds(line, to);
+		if (time < 0 || !this.accept(line, to, ")"))
+		{
+			throw new IOException("Corrupt candump line!");
+		}
+		this.skipSpaces(line, to);
+		this.skipToken(line, to);
+		this.skipSpaces(line, to);
+		int idFrom = this.cursor;
+		long id = this.parseHex(line, to);
+		boolean extended = this.cursor - idFrom > 3;
+		if (id < 0 || !this.accept(line, to, "#"))
+		{
+			throw new IOException("Corrupt candump line!");
+		}
+		if (this.accept(line, to, "#"))
+		{
+			// CAN FD...
+			return false;
+		}
+		if (this.accept(line, to, "R"))
+		{
+			int length = this.cursor < to ? Ascii.hexValue(line[this.cursor])
+					: 0;
+			frame.set(time, (int) id, extended, true, Math.max(0, length));
+			return length <= 8;
+		}
+		byte[] data = frame.getData();
+		int length = 0;
+		while (this.cursor + 1 < to)
+		{
+			if ('.' == line[this.cursor])
+			{
+				this.cursor++;
+				continue;
+			}
+			int high = Ascii.hexValue(line[this.cursor]);
+			int low = Ascii.hexValue(line[this.cursor + 1]);
+			if (high < 0 || low < 0)
+			{
+				break;
+			}
+			if (length == 8)
+			{
+				return false;
+			}
+			data[length++] = (byte) ((high << 4) | low);
+			this.cursor += 2;
+		}
+		frame.set(time, (int) id, extended, false, length);
+		return true;
+	}
+}
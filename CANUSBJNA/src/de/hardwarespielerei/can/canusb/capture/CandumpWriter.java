@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.util.Ascii;
+
+/**
+ * Writes frames in the log file format of candump (can-utils), e. g.
+ * 
+ * <pre>
+ * (1436509052.249713) can0 123#DEADBEEF
+ * (1436509052.250100) can0 12345678#R
+ * </pre>
+ * 
+ * @author gabriel
+ * @see CandumpReader
+ */
+public class CandumpWriter extends TextLogWriter
+{
+	private final byte[] interfaceName;
+
+	/**
+	 * Creates a candump log file.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param interfaceName
+	 *            references the interface name written to every line, e. g.
+	 *            "can0".
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public CandumpWriter(Path path, String interfaceName) throws IOException
+	{
+		this(create(path), interfaceName);
+	}
+
+	/**
+	 * Writes a candump log to a channel, e. g. standard output.
+	 * 
+	 * @param channel
+	 *            references the channel to write to.
+	 * @param interfaceName
+	 *            references the interface name written to every line, e. g.
+	 *            "can0".
+	 * @throws IllegalArgumentException
+	 *             if the interface name is longer than 64 characters or
+	 *             contains white space.
+	 */
+	public CandumpWriter(WritableByteChannel channel, String interfaceName)
+	{
+		super(channel);
+		if (interfaceName.length() > 64 || interfaceName.isEmpty()
+				|| interfaceName.matches(".*\\s.*"))
+		{
+			throw new IllegalArgumentException("Invalid interface name \""
+					+ interfaceName + "\"!");
+		}
+		this.interfaceName = new byte[interfaceName.length()];
+		Ascii.putAscii(this.interfaceName, 0, interfaceName);
+	}
+
+	/**
+	 * Exports a capture file.
+	 * 
+	 * @param capture
+	 *            references the capture file to read.
+	 * @param log
+	 *            references the candump log file to create.
+	 * @param interfaceName
+	 *            references the interface name written to every line.
+	 * @return number of frames exported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long export(Path capture, Path log, String interfaceName)
+			throws IOException
+	{
+		return export(capture, new CandumpWriter(log, interfaceName));
+	}
+
+	@Override
+	int format(byte[] b, int p, CANMessage msg, long timeMicros)
+	{
+		b[p++] = '(';
+		p = Ascii.putDecimal(b, p, Math.floorDiv(timeMicros, 1000000));
+		b[p++] = '.';
+		p = Ascii.putDecimal(b, p, Math.floorMod(timeMicros, 1000000), 6);
+		b[p++] = ')';
+		b[p++] = ' ';
+		System.arraycopy(this.interfaceName, 0, b, p,
+				this.interfaceName.length);
+		p += this.interfaceName.length;
+		b[p++] = ' ';
+		p = msg.isExtendedID() ? Ascii.putHex(b, p, msg.getId(), 8) : Ascii
+				.putHex(b, p, msg.getId(), 3);
+		b[p++] = '#';
+		int length = Math.min(msg.getLength() & 0xFF, 8);
+		if (msg.isRemoteFrame())
+		{
+			b[p++] = 'R';
+			if (length > 0)
+			{
+				b[p++] = (byte) ('0' + length);
+			}
+		} else
+		{
+			byte[] data = msg.getData();
+			int valid = null == data ? 0 : Math.min(length, data.length);
+			for (int i = 0; i < valid; i++)
+			{
+				p = Ascii.putHexByte(b, p, data[i]);
+			}
+		}
+		b[p++] = '\n';
+		return p;
+	}
+}
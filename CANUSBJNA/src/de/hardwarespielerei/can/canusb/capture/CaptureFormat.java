@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of CANUSB capture files. A capture file consists of a header of
+ * {@link #HEADER_SIZE} bytes followed by frame records of
+ * {@link #RECORD_SIZE} bytes each. All values are little endian.
+ * 
+ * Header:
+ * 
+ * <pre>
+ *  0  8 bytes magic "CANUSBCP"
+ *  8  short   format version
+ * 10  short   header size
+ * 12  short   record size
+ * 14  short   state: bit 0 closed, bit 1 records checksummed in groups,
+ *             bit 2 last segment of a segmented recording
+ * 16  long    start time in milliseconds since epoch
+ * 24  int     bit rate in kbps
+ * 28  int     acceptance code
+ * 32  int     acceptance mask
+ * 36  int     open flags
+ * 40 16 bytes serial number of the adapter, zero padded
+ * 56  long    number of committed frame records
+ * </pre>
+ * 
+ * The frame count is the write position marker: a writer publishes it with
+ * release semantics after writing a record, so readers following a capture
+ * being written see complete records up to the count read with acquire
+ * semantics. The state is published the same way after the last frame.
+ * 
+ * Frame record:
+ * 
+ * <pre>
+ *  0  long    receive time in microseconds since epoch
+ *  8  int     message ID
+ * 12  int     adapter timestamp in milliseconds
+ * 16  byte    flags [extended_id:1][RTR:1][reserver:6]
+ * 17  byte    frame size
+ * 18  byte    1 if the record ends a commit group, 0 otherwise
+ * 19  byte    reserved
+ * 20  int     CRC-32C of the commit group if the record ends it
+ * 24  8 bytes data
+ * </pre>
+ * 
+ * The checksum of a commit group covers bytes 0..17 and 24..31 of all its
+ * records. Captures written without group commit have zeros there.
+ * 
+ * @author gabriel
+ */
+public final class CaptureFormat
+{
+	/**
+	 * Magic bytes at the start of every capture file.
+	 */
+	public static final byte[] MAGIC = { 'C', 'A', 'N', 'U', 'S', 'B', 'C',
+			'P' };
+
+	/**
+	 * Version of the capture format.
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Byte order of all values.
+	 */
+	public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * Size of the header in bytes.
+	 */
+	public static final int HEADER_SIZE = 64;
+
+	/**
+	 * Size of a frame record in bytes.
+	 */
+	public static final int RECORD_SIZE = 32;
+
+	/**
+	 * Maximum length of the serial number in bytes.
+	 */
+	public static final int SERIAL_NUMBER_SIZE = 16;
+
+	// header offsets
+
+	static final int HEADER_VERSION = 8;
+	static final int HEADER_HEADER_SIZE = 10;
+	static final int HEADER_RECORD_SIZE = 12;
+	static final int HEADER_STATE = 14;
+	static final int HEADER_START_TIME = 16;
+	static final int HEADER_BITRATE = 24;
+	static final int HEADER_ACCEPTANCE_CODE = 28;
+	static final int HEADER_ACCEPTANCE_MASK = 32;
+	static final int HEADER_FLAGS = 36;
+	static final int HEADER_SERIAL_NUMBER = 40;
+	static final int HEADER_FRAME_COUNT = 56;
+
+	// header states
+
+	static final short STATE_RECORDING = 0;
+	static final short STATE_CLOSED = 1;
+	static final short STATE_CHECKSUMMED = 2;
+	static final short STATE_LAST = 4;
+
+	// ordered access to the header of a mapped capture
+
+	static final VarHandle SHORT = MethodHandles.byteBufferViewVarHandle(
+			short[].class, ORDER);
+	static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ORDER);
+
+	// record offsets
+
+	static final int RECORD_TIME = 0;
+	static final int RECORD_ID = 8;
+	static final int RECORD_TIMESTAMP = 12;
+	static final int RECORD_FLAGS = 16;
+	static final int RECORD_LENGTH = 17;
+	static final int RECORD_COMMIT = 18;
+	static final int RECORD_CHECKSUM = 20;
+
+	static final byte COMMIT_MARK = 1;
+	static final int RECORD_DATA = 24;
+
+	private CaptureFormat()
+	{
+		// constants only
+	}
+}
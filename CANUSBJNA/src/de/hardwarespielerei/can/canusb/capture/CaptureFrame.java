@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.nio.ByteBuffer;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * Flyweight view of a frame record inside a mapped capture. A frame can be
+ * moved to other records without any allocation, so don't keep references to
+ * it: copy the values you need.
+ * 
+ * @author gabriel
+ * @see CaptureReader#get(long, CaptureFrame)
+ */
+public class CaptureFrame implements CANMessage
+{
+	private final byte[] data = new byte[8];
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * Moves this view to a record.
+	 * 
+	 * @param buffer
+	 *            references the buffer containing the record.
+	 * @param offset
+	 *            contains the offset of the record in the buffer.
+	 * @return this frame.
+	 */
+	public CaptureFrame wrap(ByteBuffer buffer, int offset)
+	{
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * @return receive time in microseconds since epoch.
+	 */
+	public long getTime()
+	{
+		return this.buffer.getLong(this.offset + CaptureFormat.RECORD_TIME);
+	}
+
+	@Override
+	public int getId()
+	{
+		return this.buffer.getInt(this.offset + CaptureFormat.RECORD_ID);
+	}
+
+	@Override
+	public int getTimestamp()
+	{
+		return this.buffer.getInt(this.offset + CaptureFormat.RECORD_TIMESTAMP);
+	}
+
+	/**
+	 * @return flags [extended_id:1][RTR:1][reserver:6].
+	 */
+	public byte getFlags()
+	{
+		return this.buffer.get(this.offset + CaptureFormat.RECORD_FLAGS);
+	}
+
+	@Override
+	public boolean isExtendedID()
+	{
+		return 0 != (this.getFlags() & NativeAccess.CANMSG_EXTENDED);
+	}
+
+	@Override
+	public boolean isRemoteFrame()
+	{
+		return 0 != (this.getFlags() & NativeAccess.CANMSG_RTR);
+	}
+
+	@Override
+	public byte getReserver()
+	{
+		return (byte) (this.getFlags() & 0x3F);
+	}
+
+	@Override
+	public byte getLength()
+	{
+		return this.buffer.get(this.offset + CaptureFormat.RECORD_LENGTH);
+	}
+
+	/**
+	 * @param index
+	 *            contains the index of a data byte 0..7.
+	 * @return data byte read directly from the record.
+	 */
+	public byte getData(int index)
+	{
+		return this.buffer.get(this.offset + CaptureFormat.RECORD_DATA
+				+ index);
+	}
+
+	/**
+	 * @return data bytes 0..7 read directly from the record, data byte 0 being
+	 *         the most significant byte.
+	 */
+	public long getDataLong()
+	{
+		return Long.reverseBytes(this.buffer.getLong(this.offset
+				+ CaptureFormat.RECORD_DATA));
+	}
+
+	/**
+	 * @return the data bytes copied into an array owned by this frame. The
+	 *         array is overwritten when this frame is moved.
+	 */
+	@Override
+	public byte[] getData()
+	{
+		for (int i = 0; i < 8; i++)
+		{
+			this.data[i] = this.getData(i);
+		}
+		return this.data;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Frame 0x" + Integer.toHexString(this.getId()) + " at "
+				+ this.getTime() + " us";
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import de.hardwarespielerei.can.canusb.Bitrate;
+
+/**
+ * Header of a capture file describing the recording adapter and its settings.
+ * 
+ * @author gabriel
+ * @see CaptureFormat
+ */
+public class CaptureHeader
+{
+	private final String serialNumber;
+	private final Bitrate bitrate;
+	private final int acceptanceCode;
+	private final int acceptanceMask;
+	private final int flags;
+	private final long startTime;
+
+	/**
+	 * Constructs a capture header.
+	 * 
+	 * @param serialNumber
+	 *            references the serial number of the recording adapter.
+	 * @param bitrate
+	 *            references the bit rate of the channel.
+	 * @param acceptanceCode
+	 *            contains the binary acceptance code of the channel.
+	 * @param acceptanceMask
+	 *            contains the binary acceptance mask of the channel.
+	 * @param flags
+	 *            contains the native open flags of the channel.
+	 * @param startTime
+	 *            contains the start time in milliseconds since epoch.
+	 */
+	public CaptureHeader(String serialNumber, Bitrate bitrate,
+			int acceptanceCode, int acceptanceMask, int flags, long startTime)
+	{
+		this.serialNumber = serialNumber;
+		this.bitrate = bitrate;
+		this.acceptanceCode = acceptanceCode;
+		this.acceptanceMask = acceptanceMask;
+		this.flags = flags;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * @return serial number of the recording adapter.
+	 */
+	public String getSerialNumber()
+	{
+		return this.serialNumber;
+	}
+
+	/**
+	 * @return bit rate of the channel or NULL if unknown.
+	 */
+	public Bitrate getBitrate()
+	{
+		return this.bitrate;
+	}
+
+	/**
+	 * @return binary acceptance code of the channel.
+	 */
+	public int getAcceptanceCode()
+	{
+		return this.acceptanceCode;
+	}
+
+	/**
+	 * @return binary acceptance mask of the channel.
+	 */
+	public int getAcceptanceMask()
+	{
+		return this.acceptanceMask;
+	}
+
+	/**
+	 * @return native open flags of the channel.
+	 */
+	public int getFlags()
+	{
+		return this.flags;
+	}
+
+	/**
+	 * @return start time in milliseconds since epoch.
+	 */
+	public long getStartTime()
+	{
+		return this.startTime;
+	}
+
+	/**
+	 * Writes this header to the first {@link CaptureFormat#HEADER_SIZE} bytes
+	 * of the buffer. The frame count is set to zero.
+	 * 
+	 * @param buffer
+	 *            references a buffer in {@link CaptureFormat#ORDER}.
+	 */
+	public void write(ByteBuffer buffer)
+	{
+		this.write(buffer, CaptureFormat.MAGIC);
+	}
+
+	void write(ByteBuffer buffer, byte[] magic)
+	{
+		for (int i = 0; i < CaptureFormat.HEADER_SIZE; i++)
+		{
+			buffer.put(i, (byte) 0);
+		}
+		for (int i = 0; i < magic.length; i++)
+		{
+			buffer.put(i, magic[i]);
+		}
+		buffer.putShort(CaptureFormat.HEADER_VERSION, CaptureFormat.VERSION);
+		buffer.putShort(CaptureFormat.HEADER_HEADER_SIZE,
+				(short) CaptureFormat.HEADER_SIZE);
+		buffer.putShort(CaptureFormat.HEADER_RECORD_SIZE,
+				(short) CaptureFormat.RECORD_SIZE);
+		buffer.putLong(CaptureFormat.HEADER_START_TIME, this.startTime);
+		buffer.putInt(CaptureFormat.HEADER_BITRATE, null == this.bitrate ? 0
+				: Integer.parseInt(this.bitrate.toString()));
+		buffer.putInt(CaptureFormat.HEADER_ACCEPTANCE_CODE, this.acceptanceCode);
+		buffer.putInt(CaptureFormat.HEADER_ACCEPTANCE_MASK, this.acceptanceMask);
+		buffer.putInt(CaptureFormat.HEADER_FLAGS, this.flags);
+		if (null != this.serialNumber)
+		{
+			byte[] serial = this.serialNumber.getBytes(StandardCharsets.US_ASCII);
+			for (int i = 0; i < Math.min(serial.length,
+					CaptureFormat.SERIAL_NUMBER_SIZE); i++)
+			{
+				buffer.put(CaptureFormat.HEADER_SERIAL_NUMBER + i, serial[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a header from the first {@link CaptureFormat#HEADER_SIZE} bytes
+	 * of the buffer.
+	 * 
+	 * @param buffer
+	 *            references a buffer in {@link CaptureFormat#ORDER}.
+	 * @return header.
+	 * @throws IOException
+	 *             if the buffer doesn't contain a supported capture header.
+	 */
+	public static CaptureHeader read(ByteBuffer buffer) throws IOException
+	{
+		return read(buffer, CaptureFormat.MAGIC);
+	}
+
+	static CaptureHeader read(ByteBuffer buffer, byte[] magic)
+			throws IOException
+	{
+		for (int i = 0; i < magic.length; i++)
+		{
+			if (buffer.get(i) != magic[i])
+			{
+				throw new IOException("Not a CANUSB capture!");
+			}
+		}
+		if (buffer.getShort(CaptureFormat.HEADER_VERSION) != CaptureFormat.VERSION
+				|| buffer.getShort(CaptureFormat.HEADER_HEADER_SIZE) != CaptureFormat.HEADER_SIZE
+				|| buffer.getShort(CaptureFormat.HEADER_RECORD_SIZE) != CaptureFormat.RECORD_SIZE)
+		{
+			throw new IOException("Unsupported CANUSB capture version "
+					+ buffer.getShort(CaptureFormat.HEADER_VERSION) + "!");
+		}
+		String kbps = Integer.toString(buffer
+				.getInt(CaptureFormat.HEADER_BITRATE));
+		Bitrate bitrate = null;
+		for (Bitrate candidate : Bitrate.values())
+		{
+			if (candidate.toString().equals(kbps))
+			{
+				bitrate = candidate;
+			}
+		}
+		int length = 0;
+		while (length < CaptureFormat.SERIAL_NUMBER_SIZE
+				&& 0 != buffer.get(CaptureFormat.HEADER_SERIAL_NUMBER + length))
+		{
+			length++;
+		}
+		byte[] serial = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			serial[i] = buffer.get(CaptureFormat.HEADER_SERIAL_NUMBER + i);
+		}
+		return new CaptureHeader(new String(serial, StandardCharsets.US_ASCII),
+				bitrate, buffer.getInt(CaptureFormat.HEADER_ACCEPTANCE_CODE),
+				buffer.getInt(CaptureFormat.HEADER_ACCEPTANCE_MASK),
+				buffer.getInt(CaptureFormat.HEADER_FLAGS),
+				buffer.getLong(CaptureFormat.HEADER_START_TIME));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CANUSB # " + this.serialNumber + " with " + this.bitrate
+				+ " kbps, acceptance code 0x"
+				+ Integer.toHexString(this.acceptanceCode) + ", mask 0x"
+				+ Integer.toHexString(this.acceptanceMask) + ", flags 0x"
+				+ Integer.toHexString(this.flags) + ", started "
+				+ new java.util.Date(this.startTime);
+	}
+}
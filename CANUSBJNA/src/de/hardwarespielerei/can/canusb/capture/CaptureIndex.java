@@ -0,0 +1,370 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+
+/**
+ * Index of a capture file, stored next to it. The capture is divided into
+ * blocks of {@link #BLOCK_FRAMES} frames. For every block the index contains
+ * the receive time of its first and last frame, a bitset of the standard IDs
+ * and a bloom filter of the extended IDs it contains, so queries skip blocks
+ * that can't contain the requested IDs.
+ * 
+ * Index file layout, all values little endian:
+ * 
+ * <pre>
+ *  0  8 bytes magic "CANUSBIX"
+ *  8  short   format version
+ * 10  short   reserved
+ * 12  int     frames per block
+ * 16  long    number of blocks
+ * 24  long    number of frames
+ * 32  blocks: long first time, long last time, 32 longs standard ID bitset,
+ *             8 longs extended ID bloom filter
+ * </pre>
+ * 
+ * @author gabriel
+ * @see CaptureIndexWriter
+ */
+public class CaptureIndex
+{
+	/**
+	 * Magic bytes at the start of every index file.
+	 */
+	public static final byte[] MAGIC = { 'C', 'A', 'N', 'U', 'S', 'B', 'I',
+			'X' };
+
+	/**
+	 * Version of the index format.
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Number of frames per block.
+	 */
+	public static final int BLOCK_FRAMES = 4096;
+
+	static final int HEADER_SIZE = 32;
+	static final int STANDARD_ID_MASK = 0x7FF;
+	static final int STANDARD_WORDS = 2048 / 64;
+	static final int BLOOM_BITS = 512;
+	static final int BLOOM_WORDS = BLOOM_BITS / 64;
+	static final int BLOOM_HASHES = 3;
+	static final int ENTRY_SIZE = 16 + 8 * (STANDARD_WORDS + BLOOM_WORDS);
+
+	private final int blockFrames;
+	private final long frameCount;
+	private final long[] firstTimes;
+	private final long[] lastTimes;
+	private final long[] standardIDs;
+	private final long[] extendedIDs;
+
+	private CaptureIndex(int blockFrames, long frameCount, int blocks)
+	{
+		this.blockFrames = blockFrames;
+		this.frameCount = frameCount;
+		this.firstTimes = new long[blocks];
+		this.lastTimes = new long[blocks];
+		this.standardIDs = new long[blocks * STANDARD_WORDS];
+		this.extendedIDs = new long[blocks * BLOOM_WORDS];
+	}
+
+	/**
+	 * @param capture
+	 *            references a capture file.
+	 * @return path of its index file.
+	 */
+	public static Path pathFor(Path capture)
+	{
+		return Paths.get(capture.toString() + ".idx");
+	}
+
+	/**
+	 * Reads an index file.
+	 * 
+	 * @param path
+	 *            references the index file.
+	 * @return index.
+	 * @throws IOException
+	 *             if the file can't be read or isn't an index.
+	 */
+	public static CaptureIndex read(Path path) throws IOException
+	{
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0,
+					file.size()).order(CaptureFormat.ORDER);
+			for (int i = 0; i < MAGIC.length; i++)
+			{
+				if (buffer.get(i) != MAGIC[i])
+				{
+					throw new IOException("Not a CANUSB capture index!");
+				}
+			}
+			if (buffer.getShort(8) != VERSION)
+			{
+				throw new IOException("Unsupported CANUSB capture index version "
+						+ buffer.getShort(8) + "!");
+			}
+			// blocks written after the last header update count as well...
+			int blocks = (int) ((file.size() - HEADER_SIZE) / ENTRY_SIZE);
+			int blockFrames = buffer.getInt(12);
+			long frameCount = buffer.getLong(24);
+			if (frameCount <= (long) (blocks - 1) * blockFrames)
+			{
+				frameCount = (long) blocks * blockFrames;
+			}
+			CaptureIndex index = new CaptureIndex(blockFrames, frameCount,
+					blocks);
+			buffer.position(HEADER_SIZE);
+			for (int b = 0; b < blocks; b++)
+			{
+				index.firstTimes[b] = buffer.getLong();
+				index.lastTimes[b] = buffer.getLong();
+				for (int i = 0; i < STANDARD_WORDS; i++)
+				{
+					index.standardIDs[b * STANDARD_WORDS + i] = buffer.getLong();
+				}
+				for (int i = 0; i < BLOOM_WORDS; i++)
+				{
+					index.extendedIDs[b * BLOOM_WORDS + i] = buffer.getLong();
+				}
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Rebuilds the index of an existing capture and writes it to
+	 * {@link #pathFor(Path)}.
+	 * 
+	 * @param capture
+	 *            references the capture file.
+	 * @return index.
+	 * @throws IOException
+	 *             on errors while reading the capture or writing the index.
+	 */
+	public static CaptureIndex rebuild(Path capture) throws IOException
+	{
+		Path path = pathFor(capture);
+		try (CaptureReader reader = new CaptureReader(capture);
+				CaptureIndexWriter writer = new CaptureIndexWriter(path))
+		{
+			CaptureFrame frame = new CaptureFrame();
+			for (long i = 0; i < reader.getFrameCount(); i++)
+			{
+				reader.get(i, frame);
+				writer.add(frame, frame.getTime());
+			}
+		}
+		return read(path);
+	}
+
+	static long hash(int id)
+	{
+		return (id & 0x1FFFFFFFL) * 0x9E3779B97F4A7C15L;
+	}
+
+	static int bloomBit(long hash, int i)
+	{
+		return (int) (hash >>> (64 - 9 * (i + 1))) & (BLOOM_BITS - 1);
+	}
+
+	/**
+	 * @return number of blocks.
+	 */
+	public int getBlockCount()
+	{
+		return this.firstTimes.length;
+	}
+
+	/**
+	 * @return number of frames per block.
+	 */
+	public int getBlockFrames()
+	{
+		return this.blockFrames;
+	}
+
+	/**
+	 * @return number of frames indexed.
+	 */
+	public long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * @param block
+	 *            contains the block index.
+	 * @return receive time of the first frame of the block.
+	 */
+	public long getFirstTime(int block)
+	{
+		return this.firstTimes[block];
+	}
+
+	/**
+	 * @param block
+	 *            contains the block index.
+	 * @return receive time of the last frame of the block.
+	 */
+	public long getLastTime(int block)
+	{
+		return this.lastTimes[block];
+	}
+
+	/**
+	 * @param timeMicros
+	 *            contains a time in microseconds since epoch.
+	 * @return index of the first block containing frames received at or after
+	 *         the given time or the block count if there is none.
+	 */
+	public int searchBlock(long timeMicros)
+	{
+		int low = 0;
+		int high = this.lastTimes.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (this.lastTimes[mid] < timeMicros)
+			{
+				low = mid + 1;
+			} else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param block
+	 *            contains the block index.
+	 * @param id
+	 *            contains a message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @return false if the block contains no message with the ID, true if it
+	 *         may contain one.
+	 */
+	public boolean mayContain(int block, int id, boolean extendedID)
+	{
+		if (extendedID)
+		{
+			long hash = hash(id);
+			int base = block * BLOOM_WORDS;
+			for (int i = 0; i < BLOOM_HASHES; i++)
+			{
+				int bit = bloomBit(hash, i);
+				if (0 == (this.extendedIDs[base + (bit >>> 6)] & (1L << bit)))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		int bit = id & STANDARD_ID_MASK;
+		return 0 != (this.standardIDs[block * STANDARD_WORDS + (bit >>> 6)] & (1L << bit));
+	}
+
+	/**
+	 * Passes all frames with one of the given IDs to a call back, skipping
+	 * blocks that can't contain them.
+	 * 
+	 * @param reader
+	 *            references the reader of the indexed capture.
+	 * @param standardIDs
+	 *            contains the requested standard IDs.
+	 * @param extendedIDs
+	 *            contains the requested extended IDs.
+	 * @param callback
+	 *            references the call back. It gets flyweight views, see
+	 *            {@link CaptureFrame}.
+	 */
+	public void find(CaptureReader reader, int[] standardIDs,
+			int[] extendedIDs, ReceiveCallback callback)
+	{
+		CaptureFrame frame = new CaptureFrame();
+		long frames = Math.min(this.frameCount, reader.getFrameCount());
+		for (int block = 0; block < this.firstTimes.length; block++)
+		{
+			if (!this.mayContainAny(block, standardIDs, extendedIDs))
+			{
+				continue;
+			}
+			long end = Math.min(frames, (long) (block + 1) * this.blockFrames);
+			for (long i = (long) block * this.blockFrames; i < end; i++)
+			{
+				reader.get(i, frame);
+				if (contains(frame.isExtendedID() ? extendedIDs : standardIDs,
+						frame.getId()))
+				{
+					callback.callback(frame);
+				}
+			}
+		}
+	}
+
+	private boolean mayContainAny(int block, int[] standardIDs,
+			int[] extendedIDs)
+	{
+		for (int id : standardIDs)
+		{
+			if (this.mayContain(block, id, false))
+			{
+				return true;
+			}
+		}
+		for (int id : extendedIDs)
+		{
+			if (this.mayContain(block, id, true))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean contains(int[] ids, int id)
+	{
+		for (int candidate : ids)
+		{
+			if (candidate == id)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
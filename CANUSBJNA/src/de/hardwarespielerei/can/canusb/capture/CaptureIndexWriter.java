@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+
+/**
+ * Builds the index of a capture incrementally while frames are written. Every
+ * block of {@link CaptureIndex#BLOCK_FRAMES} frames is summarized by its time
+ * range, a bitset of the standard IDs and a bloom filter of the extended IDs
+ * it contains. Adding a frame only sets a few bits; a summary is appended to
+ * the index file when its block is complete.
+ * 
+ * @author gabriel
+ * @see CaptureIndex
+ */
+public class CaptureIndexWriter implements Closeable
+{
+	private final FileChannel file;
+	private final ByteBuffer entry = ByteBuffer.allocateDirect(
+			CaptureIndex.ENTRY_SIZE).order(CaptureFormat.ORDER);
+	private final long[] standardIDs = new long[CaptureIndex.STANDARD_WORDS];
+	private final long[] extendedIDs = new long[CaptureIndex.BLOOM_WORDS];
+	private long firstTime;
+	private long lastTime;
+	private int blockFrames;
+	private long blockCount;
+	private long frameCount;
+	private boolean closed;
+
+	/**
+	 * Creates an index file.
+	 * 
+	 * @param path
+	 *            references the index file to create or overwrite.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public CaptureIndexWriter(Path path) throws IOException
+	{
+		this.file = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		this.writeHeader();
+	}
+
+	/**
+	 * Adds the next frame of the capture.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains its receive time in microseconds since epoch.
+	 * @throws IOException
+	 *             if a completed block can't be written.
+	 */
+	public synchronized void add(CANMessage msg, long timeMicros)
+			throws IOException
+	{
+		if (0 == this.blockFrames)
+		{
+			this.firstTime = timeMicros;
+		}
+		this.lastTime = timeMicros;
+		int id = msg.getId();
+		if (msg.isExtendedID())
+		{
+			long hash = CaptureIndex.hash(id);
+			for (int i = 0; i < CaptureIndex.BLOOM_HASHES; i++)
+			{
+				int bit = CaptureIndex.bloomBit(hash, i);
+				this.extendedIDs[bit >>> 6] |= 1L << bit;
+			}
+		} else
+		{
+			int bit = id & CaptureIndex.STANDARD_ID_MASK;
+			this.standardIDs[bit >>> 6] |= 1L << bit;
+		}
+		this.frameCount++;
+		if (++this.blockFrames == CaptureIndex.BLOCK_FRAMES)
+		{
+			this.writeBlock();
+		}
+	}
+
+	private void writeBlock() throws IOException
+	{
+		ByteBuffer e = this.entry;
+		e.clear();
+		e.putLong(this.firstTime);
+		e.putLong(this.lastTime);
+		for (long word : this.standardIDs)
+		{
+			e.putLong(word);
+		}
+		for (long word : this.extendedIDs)
+		{
+			e.putLong(word);
+		}
+		e.flip();
+		long position = CaptureIndex.HEADER_SIZE + this.blockCount
+				* CaptureIndex.ENTRY_SIZE;
+		while (e.hasRemaining())
+		{
+			position += this.file.write(e, position);
+		}
+		this.blockCount++;
+		this.blockFrames = 0;
+		Arrays.fill(this.standardIDs, 0);
+		Arrays.fill(this.extendedIDs, 0);
+	}
+
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(CaptureIndex.HEADER_SIZE)
+				.order(CaptureFormat.ORDER);
+		header.put(CaptureIndex.MAGIC);
+		header.putShort(CaptureIndex.VERSION);
+		header.putShort((short) 0);
+		header.putInt(CaptureIndex.BLOCK_FRAMES);
+		header.putLong(this.blockCount);
+		header.putLong(this.frameCount);
+		header.flip();
+		long position = 0;
+		while (header.hasRemaining())
+		{
+			position += this.file.write(header, position);
+		}
+	}
+
+	/**
+	 * @return number of frames indexed.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * Writes the last, incomplete block and closes the index.
+	 * 
+	 * @throws IOException
+	 *             on errors while writing the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		try
+		{
+			if (0 != this.blockFrames)
+			{
+				this.writeBlock();
+			}
+			this.writeHeader();
+		} finally
+		{
+			this.file.close();
+		}
+	}
+}
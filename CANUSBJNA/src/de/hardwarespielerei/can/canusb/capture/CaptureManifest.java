@@ -0,0 +1,224 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * List of the closed segments of a segmented capture, written by
+ * {@link SegmentedCaptureWriter}. The manifest is a text file with one line
+ * per segment:
+ * 
+ * <pre>
+ * file name TAB first receive time TAB last receive time TAB frame count
+ * </pre>
+ * 
+ * Times are in microseconds since epoch.
+ * 
+ * @author gabriel
+ */
+public class CaptureManifest
+{
+	/**
+	 * One closed segment.
+	 */
+	public static class Segment
+	{
+		private final Path path;
+		private final long firstTime;
+		private final long lastTime;
+		private final long frameCount;
+
+		/**
+		 * @param path
+		 *            references the segment file.
+		 * @param firstTime
+		 *            contains the receive time of the first frame.
+		 * @param lastTime
+		 *            contains the receive time of the last frame.
+		 * @param frameCount
+		 *            contains the number of frames.
+		 */
+		public Segment(Path path, long firstTime, long lastTime,
+				long frameCount)
+		{
+			this.path = path;
+			this.firstTime = firstTime;
+			this.lastTime = lastTime;
+			this.frameCount = frameCount;
+		}
+
+		/**
+		 * @return path of the segment file.
+		 */
+		public Path getPath()
+		{
+			return this.path;
+		}
+
+		/**
+		 * @return receive time of the first frame in microseconds since
+		 *         epoch.
+		 */
+		public long getFirstTime()
+		{
+			return this.firstTime;
+		}
+
+		/**
+		 * @return receive time of the last frame in microseconds since epoch.
+		 */
+		public long getLastTime()
+		{
+			return this.lastTime;
+		}
+
+		/**
+		 * @return number of frames in the segment.
+		 */
+		public long getFrameCount()
+		{
+			return this.frameCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.path + ": " + this.frameCount + " frames from "
+					+ this.firstTime + " us to " + this.lastTime + " us";
+		}
+	}
+
+	private final List<Segment> segments;
+
+	private CaptureManifest(List<Segment> segments)
+	{
+		this.segments = Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * @param base
+	 *            references the base path of a segmented capture.
+	 * @return path of its manifest.
+	 */
+	public static Path pathFor(Path base)
+	{
+		return base.resolveSibling(base.getFileName() + ".manifest");
+	}
+
+	/**
+	 * Reads a manifest.
+	 * 
+	 * @param path
+	 *            references the manifest file.
+	 * @return manifest.
+	 * @throws IOException
+	 *             if the manifest can't be read or is corrupt.
+	 */
+	public static CaptureManifest read(Path path) throws IOException
+	{
+		List<Segment> segments = new ArrayList<Segment>();
+		for (String line : Files.readAllLines(path, StandardCharsets.UTF_8))
+		{
+			if (line.isEmpty())
+			{
+				continue;
+			}
+			String[] fields = line.split("\t");
+			try
+			{
+				segments.add(new Segment(path.resolveSibling(fields[0]), Long
+						.parseLong(fields[1]), Long.parseLong(fields[2]), Long
+						.parseLong(fields[3])));
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+			{
+				throw new IOException("Corrupt manifest line \"" + line
+						+ "\"!", e);
+			}
+		}
+		return new CaptureManifest(segments);
+	}
+
+	/**
+	 * Appends a segment to a manifest.
+	 * 
+	 * @param path
+	 *            references the manifest file, created if missing.
+	 * @param segment
+	 *            references the closed segment.
+	 * @throws IOException
+	 *             if the manifest can't be written.
+	 */
+	static void append(Path path, Segment segment) throws IOException
+	{
+		String line = segment.getPath().getFileName() + "\t"
+				+ segment.getFirstTime() + "\t" + segment.getLastTime() + "\t"
+				+ segment.getFrameCount() + "\n";
+		Files.write(path, line.getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @return segments in recording order.
+	 */
+	public List<Segment> getSegments()
+	{
+		return this.segments;
+	}
+
+	/**
+	 * Finds the first segment containing frames received at or after a time.
+	 * 
+	 * @param timeMicros
+	 *            contains a time in microseconds since epoch.
+	 * @return index of the segment or the number of segments if all frames
+	 *         were received before.
+	 */
+	public int search(long timeMicros)
+	{
+		int low = 0;
+		int high = this.segments.size();
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (this.segments.get(middle).getLastTime() < timeMicros)
+			{
+				low = middle + 1;
+			} else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
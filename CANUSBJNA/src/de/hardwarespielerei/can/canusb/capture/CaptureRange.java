@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.RuleSet;
+
+/**
+ * Range of frames of a capture. Ranges are independent of each other and can
+ * be processed in parallel.
+ * 
+ * @author gabriel
+ * @see CaptureReader#split(int)
+ */
+public class CaptureRange
+{
+	private final CaptureReader reader;
+	private final long from;
+	private final long to;
+
+	CaptureRange(CaptureReader reader, long from, long to)
+	{
+		this.reader = reader;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * @return index of the first frame, inclusive.
+	 */
+	public long getFrom()
+	{
+		return this.from;
+	}
+
+	/**
+	 * @return index of the last frame, exclusive.
+	 */
+	public long getTo()
+	{
+		return this.to;
+	}
+
+	/**
+	 * Passes every frame of this range to a receive call back. The frame
+	 * passed is a flyweight view, see {@link CaptureFrame}.
+	 * 
+	 * @param callback
+	 *            references the call back.
+	 */
+	public void forEach(ReceiveCallback callback)
+	{
+		CaptureFrame frame = new CaptureFrame();
+		for (long i = this.from; i < this.to; i++)
+		{
+			callback.callback(this.reader.get(i, frame));
+		}
+	}
+
+	/**
+	 * Passes every frame of this range matching any rule to a receive call
+	 * back and counts the hits of the rules. The payload is checked as read
+	 * directly from the record, see {@link CaptureFrame#getDataLong()}.
+	 * 
+	 * @param rules
+	 *            references the rules.
+	 * @param callback
+	 *            references the call back or NULL to count hits only.
+	 * @return number of frames matching.
+	 */
+	public long forEach(RuleSet rules, ReceiveCallback callback)
+	{
+		CaptureFrame frame = new CaptureFrame();
+		long matched = 0;
+		for (long i = this.from; i < this.to; i++)
+		{
+			this.reader.get(i, frame);
+			int length = Math.min(frame.getLength() & 0xFF, 8);
+			long data = 0;
+			if (!frame.isRemoteFrame() && length > 0)
+			{
+				// ignore bytes beyond the frame size...
+				data = frame.getDataLong() & (-1L << (64 - 8 * length));
+			} else
+			{
+				length = 0;
+			}
+			if (rules.match(frame.getId(), frame.isExtendedID(), length, data) > 0)
+			{
+				matched++;
+				if (null != callback)
+				{
+					callback.callback(frame);
+				}
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Splits this range into independent ranges of about equal size.
+	 * 
+	 * @param parts
+	 *            contains the number of ranges.
+	 * @return ranges.
+	 */
+	public CaptureRange[] split(int parts)
+	{
+		if (parts <= 0)
+		{
+			throw new IllegalArgumentException("Parts must be positive!");
+		}
+		CaptureRange[] result = new CaptureRange[parts];
+		long size = this.to - this.from;
+		for (int i = 0; i < parts; i++)
+		{
+			result[i] = new CaptureRange(this.reader, this.from + size * i
+					/ parts, this.from + size * (i + 1) / parts);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Frames " + this.from + ".." + this.to;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a capture file through memory mapped segments. Frames are accessed by
+ * index through {@link CaptureFrame} views without copying. A reader may be
+ * used by several threads concurrently, e. g. each processing one of the
+ * ranges returned by {@link #split(int)}.
+ * 
+ * @author gabriel
+ * @see CaptureFormat
+ */
+public class CaptureReader implements Closeable
+{
+	private static final int SEGMENT_SHIFT = 25;
+	private static final long SEGMENT_FRAMES = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_FRAMES - 1;
+
+	private final FileChannel file;
+	private final CaptureHeader header;
+	private final long frameCount;
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * Opens a capture file. Frames written after opening are not visible.
+	 * 
+	 * @param path
+	 *            references the capture file.
+	 * @throws IOException
+	 *             if the file can't be read or isn't a capture.
+	 */
+	public CaptureReader(Path path) throws IOException
+	{
+		this.file = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer head = this.file.map(FileChannel.MapMode.READ_ONLY, 0,
+					CaptureFormat.HEADER_SIZE).order(CaptureFormat.ORDER);
+			this.header = CaptureHeader.read(head);
+			// the file may be pre-allocated or cut off...
+			this.frameCount = Math.min(head
+					.getLong(CaptureFormat.HEADER_FRAME_COUNT),
+					(this.file.size() - CaptureFormat.HEADER_SIZE)
+							/ CaptureFormat.RECORD_SIZE);
+			this.segments = new MappedByteBuffer[(int) ((this.frameCount + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < this.segments.length; i++)
+			{
+				long first = i * SEGMENT_FRAMES;
+				long frames = Math.min(SEGMENT_FRAMES, this.frameCount - first);
+				this.segments[i] = this.file.map(FileChannel.MapMode.READ_ONLY,
+						CaptureFormat.HEADER_SIZE + first
+								* CaptureFormat.RECORD_SIZE, frames
+								* CaptureFormat.RECORD_SIZE);
+				this.segments[i].order(CaptureFormat.ORDER);
+			}
+		} catch (IOException e)
+		{
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return header of the capture.
+	 */
+	public CaptureHeader getHeader()
+	{
+		return this.header;
+	}
+
+	/**
+	 * @return number of frames in the capture.
+	 */
+	public long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * Moves a frame view to the frame with the given index.
+	 * 
+	 * @param index
+	 *            contains the frame index.
+	 * @param frame
+	 *            references the view to move.
+	 * @return the view.
+	 * @throws IndexOutOfBoundsException
+	 *             if there is no frame with the given index.
+	 */
+	public CaptureFrame get(long index, CaptureFrame frame)
+	{
+		if (index < 0 || index >= this.frameCount)
+		{
+			throw new IndexOutOfBoundsException("No frame " + index + "!");
+		}
+		return frame.wrap(this.segments[(int) (index >>> SEGMENT_SHIFT)],
+				(int) (index & SEGMENT_MASK) * CaptureFormat.RECORD_SIZE);
+	}
+
+	/**
+	 * @param index
+	 *            contains the frame index.
+	 * @return receive time of the frame in microseconds since epoch.
+	 */
+	public long getTime(long index)
+	{
+		return this.segments[(int) (index >>> SEGMENT_SHIFT)]
+				.getLong((int) (index & SEGMENT_MASK)
+						* CaptureFormat.RECORD_SIZE + CaptureFormat.RECORD_TIME);
+	}
+
+	/**
+	 * Searches the first frame received at or after the given time using
+	 * binary search.
+	 * 
+	 * @param timeMicros
+	 *            contains a time in microseconds since epoch.
+	 * @return index of the first frame received at or after the given time or
+	 *         the frame count if there is no such frame.
+	 */
+	public long search(long timeMicros)
+	{
+		long low = 0;
+		long high = this.frameCount;
+		while (low < high)
+		{
+			long mid = (low + high) >>> 1;
+			if (this.getTime(mid) < timeMicros)
+			{
+				low = mid + 1;
+			} else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param from
+	 *            contains the index of the first frame, inclusive.
+	 * @param to
+	 *            contains the index of the last frame, exclusive.
+	 * @return range of frames.
+	 */
+	public CaptureRange range(long from, long to)
+	{
+		if (from < 0 || to > this.frameCount || from > to)
+		{
+			throw new IndexOutOfBoundsException("Invalid range " + from
+					+ ".." + to + "!");
+		}
+		return new CaptureRange(this, from, to);
+	}
+
+	/**
+	 * Splits all frames into independent ranges of about equal size.
+	 * 
+	 * @param parts
+	 *            contains the number of ranges.
+	 * @return ranges.
+	 */
+	public CaptureRange[] split(int parts)
+	{
+		return this.range(0, this.frameCount).split(parts);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.file.close();
+	}
+}
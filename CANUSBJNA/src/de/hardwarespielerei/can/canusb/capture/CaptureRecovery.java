@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Repairs a capture file left behind by a crashed {@link CaptureWriter}.
+ * 
+ * For captures written with {@link GroupCommit}, the records are verified
+ * group by group and the file is cut off after the last complete group with a
+ * valid checksum. Other captures are cut off after the committed frame count
+ * of the header. In both cases the header is fixed, marked as closed and an
+ * existing index is rebuilt.
+ * 
+ * @author gabriel
+ */
+public final class CaptureRecovery
+{
+	private static final long CHUNK_FRAMES = 1L << 20;
+
+	private CaptureRecovery()
+	{
+		// static helpers only
+	}
+
+	/**
+	 * Repairs a capture file. Don't call while a writer is still writing it.
+	 * 
+	 * @param path
+	 *            references the capture file.
+	 * @return number of frames recovered.
+	 * @throws IOException
+	 *             if the file can't be repaired or isn't a capture.
+	 */
+	public static long recover(Path path) throws IOException
+	{
+		long frames;
+		try (FileChannel file = FileChannel.open(path,
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			MappedByteBuffer header = file.map(FileChannel.MapMode.READ_WRITE,
+					0, CaptureFormat.HEADER_SIZE);
+			header.order(CaptureFormat.ORDER);
+			CaptureHeader.read(header);
+			long available = (file.size() - CaptureFormat.HEADER_SIZE)
+					/ CaptureFormat.RECORD_SIZE;
+			short state = header.getShort(CaptureFormat.HEADER_STATE);
+			if (0 != (state & CaptureFormat.STATE_CHECKSUMMED))
+			{
+				frames = verify(file, available);
+			} else
+			{
+				frames = Math.min(
+						header.getLong(CaptureFormat.HEADER_FRAME_COUNT),
+						available);
+			}
+			header.putLong(CaptureFormat.HEADER_FRAME_COUNT, frames);
+			header.putShort(CaptureFormat.HEADER_STATE,
+					(short) (state | CaptureFormat.STATE_CLOSED));
+			header.force();
+			file.truncate(CaptureFormat.HEADER_SIZE + frames
+					* CaptureFormat.RECORD_SIZE);
+			file.force(true);
+		}
+		if (Files.exists(CaptureIndex.pathFor(path)))
+		{
+			CaptureIndex.rebuild(path);
+		}
+		return frames;
+	}
+
+	/**
+	 * Verifies the commit groups.
+	 * 
+	 * @return number of frames in complete groups with valid checksums.
+	 */
+	private static long verify(FileChannel file, long available)
+			throws IOException
+	{
+		CRC32C checksum = new CRC32C();
+		long verified = 0;
+		for (long first = 0; first < available; first += CHUNK_FRAMES)
+		{
+			long frames = Math.min(CHUNK_FRAMES, available - first);
+			ByteBuffer chunk = file.map(FileChannel.MapMode.READ_ONLY,
+					CaptureFormat.HEADER_SIZE + first
+							* CaptureFormat.RECORD_SIZE, frames
+							* CaptureFormat.RECORD_SIZE).order(
+					CaptureFormat.ORDER);
+			ByteBuffer view = chunk.duplicate();
+			for (int i = 0; i < frames; i++)
+			{
+				int offset = i * CaptureFormat.RECORD_SIZE;
+				CaptureWriter.checksum(checksum, view, offset);
+				byte commit = chunk.get(offset + CaptureFormat.RECORD_COMMIT);
+				if (CaptureFormat.COMMIT_MARK == commit)
+				{
+					if ((int) checksum.getValue() != chunk.getInt(offset
+							+ CaptureFormat.RECORD_CHECKSUM))
+					{
+						// torn group...
+						return verified;
+					}
+					checksum.reset();
+					verified = first + i + 1;
+				} else if (0 != commit)
+				{
+					return verified;
+				}
+			}
+		}
+		return verified;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.CANUSBException;
+import de.hardwarespielerei.can.canusb.Channel;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.TransmitFifoFullException;
+
+/**
+ * Writes the frames of a capture to a channel, either with their original
+ * relative timing, scaled by a speed factor, or as fast as the adapter
+ * accepts them.
+ * 
+ * Every frame is due at the time of its receive time relative to the first
+ * frame, measured from the start of the replay. The replay parks until shortly
+ * before a frame is due and spins the rest of the time, so late wake-ups don't
+ * add up: a frame written late never delays the following ones.
+ * 
+ * IDs are filtered and remapped as keys: the ID, with the most significant bit
+ * set for extended IDs.
+ * 
+ * @author gabriel
+ */
+public class CaptureReplay
+{
+	/**
+	 * Time before a frame is due when the replay stops parking and starts
+	 * spinning.
+	 */
+	public static final long SPIN_NANOS = 200000;
+
+	private static class RemappedMessage implements CANMessage
+	{
+		private CaptureFrame frame;
+		private int key;
+
+		@Override
+		public int getId()
+		{
+			return this.key & 0x7FFFFFFF;
+		}
+
+		@Override
+		public int getTimestamp()
+		{
+			return this.frame.getTimestamp();
+		}
+
+		@Override
+		public boolean isExtendedID()
+		{
+			return this.key < 0;
+		}
+
+		@Override
+		public boolean isRemoteFrame()
+		{
+			return this.frame.isRemoteFrame();
+		}
+
+		@Override
+		public byte getReserver()
+		{
+			return this.frame.getReserver();
+		}
+
+		@Override
+		public byte getLength()
+		{
+			return this.frame.getLength();
+		}
+
+		@Override
+		public byte[] getData()
+		{
+			return this.frame.getData();
+		}
+	}
+
+	private final CaptureReader reader;
+	private final Channel channel;
+	private double speed = 1.0;
+	private IntPredicate filter;
+	private IntUnaryOperator remap;
+	private long from;
+	private long to;
+	private volatile boolean stopped;
+
+	// statistics
+	private volatile long written;
+	private volatile long fifoFull;
+	private volatile long latenessMax;
+	private volatile long latenessTotal;
+
+	/**
+	 * Prepares the replay of a whole capture.
+	 * 
+	 * @param reader
+	 *            references the capture to replay.
+	 * @param channel
+	 *            references the channel to write to.
+	 */
+	public CaptureReplay(CaptureReader reader, Channel channel)
+	{
+		this.reader = reader;
+		this.channel = channel;
+		this.to = reader.getFrameCount();
+	}
+
+	/**
+	 * @param speed
+	 *            contains the speed factor: 1.0 for original timing, 2.0 for
+	 *            twice as fast, 0 to write as fast as the adapter accepts.
+	 * @throws IllegalArgumentException
+	 *             if speed is negative.
+	 */
+	public void setSpeed(double speed)
+	{
+		if (speed < 0 || Double.isNaN(speed))
+		{
+			throw new IllegalArgumentException("Invalid speed " + speed + "!");
+		}
+		this.speed = speed;
+	}
+
+	/**
+	 * @param filter
+	 *            references the keys of the frames to replay or NULL to replay
+	 *            all frames.
+	 */
+	public void setFilter(IntPredicate filter)
+	{
+		this.filter = filter;
+	}
+
+	/**
+	 * @param remap
+	 *            references a function returning the key to write for the key
+	 *            of a frame or NULL to keep the IDs.
+	 */
+	public void setRemap(IntUnaryOperator remap)
+	{
+		this.remap = remap;
+	}
+
+	/**
+	 * Restricts the replay to some frames.
+	 * 
+	 * @param from
+	 *            contains the index of the first frame to replay.
+	 * @param to
+	 *            contains the index after the last frame to replay.
+	 * @throws IndexOutOfBoundsException
+	 *             if the range isn't in the capture.
+	 */
+	public void setRange(long from, long to)
+	{
+		if (from < 0 || from > to || to > this.reader.getFrameCount())
+		{
+			throw new IndexOutOfBoundsException("Frames " + from + " to " + to
+					+ " of " + this.reader.getFrameCount());
+		}
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Stops a running replay after the current frame. Called before
+	 * {@link #run()}, the replay doesn't write any frame until
+	 * {@link #reset()}.
+	 */
+	public void stop()
+	{
+		this.stopped = true;
+	}
+
+	/**
+	 * Allows to run a stopped replay again.
+	 */
+	public void reset()
+	{
+		this.stopped = false;
+	}
+
+	/**
+	 * Replays the frames in the calling thread, unless it has been stopped.
+	 * 
+	 * @return number of frames written.
+	 * @throws CANUSBException
+	 *             on errors while writing to CANUSB.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a frame to be due.
+	 */
+	public long run() throws CANUSBException, InterruptedException
+	{
+		this.written = 0;
+		this.fifoFull = 0;
+		this.latenessMax = 0;
+		this.latenessTotal = 0;
+		if (this.from == this.to)
+		{
+			return 0;
+		}
+		CaptureFrame frame = new CaptureFrame();
+		RemappedMessage remapped = new RemappedMessage();
+		remapped.frame = frame;
+		long firstTime = this.reader.getTime(this.from);
+		long startNanos = System.nanoTime();
+		long written = 0;
+		for (long i = this.from; i < this.to && !this.stopped; i++)
+		{
+			this.reader.get(i, frame);
+			int key = ResponseMatcher.key(frame);
+			if (null != this.filter && !this.filter.test(key))
+			{
+				continue;
+			}
+			CANMessage msg = frame;
+			if (null != this.remap)
+			{
+				remapped.key = this.remap.applyAsInt(key);
+				msg = remapped;
+			}
+			if (this.speed > 0)
+			{
+				long due = startNanos
+						+ (long) ((frame.getTime() - firstTime) * 1000 / this.speed);
+				long lateness = waitUntil(due);
+				this.latenessTotal += lateness;
+				if (lateness > this.latenessMax)
+				{
+					this.latenessMax = lateness;
+				}
+			}
+			this.write(msg);
+			this.written = ++written;
+		}
+		return written;
+	}
+
+	/**
+	 * Waits until a frame is due.
+	 * 
+	 * @param due
+	 *            contains the time the frame is due in terms of
+	 *            {@link System#nanoTime()}.
+	 * @return nanoseconds the wait ended late.
+	 */
+	private static long waitUntil(long due) throws InterruptedException
+	{
+		long now;
+		while ((now = System.nanoTime()) - due < 0)
+		{
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+			long remaining = due - now;
+			if (remaining > SPIN_NANOS)
+			{
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			} else
+			{
+				Thread.onSpinWait();
+			}
+		}
+		return now - due;
+	}
+
+	private void write(CANMessage msg) throws CANUSBException,
+			InterruptedException
+	{
+		while (true)
+		{
+			try
+			{
+				this.channel.write(msg);
+				return;
+			} catch (TransmitFifoFullException e)
+			{
+				// the bus is slower than the replay...
+				this.fifoFull++;
+				if (Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * @return number of frames written by the current or last replay.
+	 */
+	public long getWritten()
+	{
+		return this.written;
+	}
+
+	/**
+	 * @return number of writes refused because the transmit FIFO was full.
+	 */
+	public long getFifoFull()
+	{
+		return this.fifoFull;
+	}
+
+	/**
+	 * @return longest time a frame was written after it was due in
+	 *         nanoseconds.
+	 */
+	public long getLatenessMax()
+	{
+		return this.latenessMax;
+	}
+
+	/**
+	 * @return average time frames were written after they were due in
+	 *         nanoseconds.
+	 */
+	public long getLatenessMean()
+	{
+		long written = this.written;
+		return 0 == written ? 0 : this.latenessTotal / written;
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+/**
+ * Follows a capture file while a {@link CaptureWriter} is still writing it,
+ * possibly in another process. New frames are detected by reading the frame
+ * count the writer publishes in the mapped header, so waiting for a frame
+ * needs no system call: it spins briefly, then yields, then parks for growing
+ * periods up to {@link #MAX_PARK_NANOS}.
+ * 
+ * When the writer closes the capture and all frames have been read, the tail
+ * continues with the next segment, if a function naming the next segment is
+ * given and the capture isn't marked as the last segment of the recording.
+ * 
+ * @author gabriel
+ */
+public class CaptureTail implements Closeable
+{
+	/**
+	 * Longest time to park between two looks at the write position.
+	 */
+	public static final long MAX_PARK_NANOS = 100000;
+
+	private static final int SPINS = 100;
+	private static final int YIELDS = 10;
+	private static final long MIN_PARK_NANOS = 1000;
+	private static final long CHUNK_SIZE = 32L << 20;
+
+	private final UnaryOperator<Path> nextSegment;
+	private Path path;
+	private FileChannel file;
+	private MappedByteBuffer header;
+	private CaptureHeader captureHeader;
+	private MappedByteBuffer chunk;
+	private long chunkFirst;
+	private long chunkFrames;
+	private long position;
+	private long committed;
+	private boolean finished;
+
+	/**
+	 * Follows a single capture file.
+	 * 
+	 * @param path
+	 *            references the capture file.
+	 * @throws IOException
+	 *             if the file can't be read or isn't a capture.
+	 */
+	public CaptureTail(Path path) throws IOException
+	{
+		this(path, null);
+	}
+
+	/**
+	 * Follows a sequence of capture segments.
+	 * 
+	 * @param path
+	 *            references the first capture segment.
+	 * @param nextSegment
+	 *            references a function returning the path of the segment
+	 *            following the given one, or NULL to follow a single file.
+	 * @throws IOException
+	 *             if the file can't be read or isn't a capture.
+	 */
+	public CaptureTail(Path path, UnaryOperator<Path> nextSegment)
+			throws IOException
+	{
+		this.nextSegment = nextSegment;
+		this.open(path);
+	}
+
+	private void open(Path path) throws IOException
+	{
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			MappedByteBuffer header = file.map(FileChannel.MapMode.READ_ONLY,
+					0, CaptureFormat.HEADER_SIZE);
+			header.order(CaptureFormat.ORDER);
+			this.captureHeader = CaptureHeader.read(header);
+			this.header = header;
+		} catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+		if (null != this.file)
+		{
+			this.file.close();
+		}
+		this.path = path;
+		this.file = file;
+		this.chunk = null;
+		this.chunkFirst = 0;
+		this.chunkFrames = 0;
+		this.position = 0;
+		this.committed = 0;
+	}
+
+	/**
+	 * @return path of the segment currently followed.
+	 */
+	public Path getPath()
+	{
+		return this.path;
+	}
+
+	/**
+	 * @return header of the segment currently followed.
+	 */
+	public CaptureHeader getHeader()
+	{
+		return this.captureHeader;
+	}
+
+	/**
+	 * @return index of the next frame in the segment currently followed.
+	 */
+	public long getPosition()
+	{
+		return this.position;
+	}
+
+	/**
+	 * @return true if the last segment is closed and all its frames were
+	 *         read, false otherwise.
+	 */
+	public boolean isFinished()
+	{
+		return this.finished;
+	}
+
+	/**
+	 * Returns the next frame if it is committed already.
+	 * 
+	 * @param frame
+	 *            references the frame view to move to the next frame.
+	 * @return frame or NULL if no frame is committed yet.
+	 * @throws IOException
+	 *             if the capture or the next segment can't be read.
+	 */
+	public CaptureFrame poll(CaptureFrame frame) throws IOException
+	{
+		if (this.position == this.committed)
+		{
+			this.committed = (long) CaptureFormat.LONG.getAcquire(this.header,
+					CaptureFormat.HEADER_FRAME_COUNT);
+			if (this.position == this.committed && !this.rollOver())
+			{
+				return null;
+			}
+		}
+		if (this.position - this.chunkFirst >= this.chunkFrames)
+		{
+			this.map();
+		}
+		frame.wrap(this.chunk, (int) (this.position - this.chunkFirst)
+				* CaptureFormat.RECORD_SIZE);
+		this.position++;
+		return frame;
+	}
+
+	/**
+	 * Checks whether the current segment is closed and continues with the
+	 * next segment if it is ready.
+	 * 
+	 * @return true if frames are committed in the next segment, false
+	 *         otherwise.
+	 */
+	private boolean rollOver() throws IOException
+	{
+		if (this.finished)
+		{
+			return false;
+		}
+		short state = (short) CaptureFormat.SHORT.getAcquire(this.header,
+				CaptureFormat.HEADER_STATE);
+		if (0 == (CaptureFormat.STATE_CLOSED & state))
+		{
+			return false;
+		}
+		// all frames are published before the state...
+		this.committed = (long) CaptureFormat.LONG.getAcquire(this.header,
+				CaptureFormat.HEADER_FRAME_COUNT);
+		if (this.position < this.committed)
+		{
+			return true;
+		}
+		if (null == this.nextSegment
+				|| 0 != (CaptureFormat.STATE_LAST & state))
+		{
+			this.finished = true;
+			return false;
+		}
+		Path next = this.nextSegment.apply(this.path);
+		if (!Files.isRegularFile(next)
+				|| Files.size(next) < CaptureFormat.HEADER_SIZE)
+		{
+			return false;
+		}
+		try
+		{
+			this.open(next);
+		} catch (IOException e)
+		{
+			// the writer is still writing the header...
+			return false;
+		}
+		this.committed = (long) CaptureFormat.LONG.getAcquire(this.header,
+				CaptureFormat.HEADER_FRAME_COUNT);
+		return this.position < this.committed;
+	}
+
+	private void map() throws IOException
+	{
+		long offset = CaptureFormat.HEADER_SIZE + this.position
+				* CaptureFormat.RECORD_SIZE;
+		// the writer extends the file before committing frames in it...
+		long size = Math.min(CHUNK_SIZE, this.file.size() - offset);
+		this.chunk = this.file.map(FileChannel.MapMode.READ_ONLY, offset, size
+				- size % CaptureFormat.RECORD_SIZE);
+		this.chunk.order(CaptureFormat.ORDER);
+		this.chunkFirst = this.position;
+		this.chunkFrames = size / CaptureFormat.RECORD_SIZE;
+	}
+
+	/**
+	 * Waits for the next frame.
+	 * 
+	 * @param frame
+	 *            references the frame view to move to the next frame.
+	 * @param timeout
+	 *            contains the time to wait.
+	 * @param unit
+	 *            references the unit of timeout.
+	 * @return frame or NULL if no frame was committed in time or the tail is
+	 *         {@link #isFinished() finished}.
+	 * @throws IOException
+	 *             if the capture or the next segment can't be read.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public CaptureFrame next(CaptureFrame frame, long timeout, TimeUnit unit)
+			throws IOException, InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long parkNanos = MIN_PARK_NANOS;
+		for (int round = 0;; round++)
+		{
+			if (null != this.poll(frame))
+			{
+				return frame;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (this.finished || remaining <= 0)
+			{
+				return null;
+			}
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+			if (round < SPINS)
+			{
+				Thread.onSpinWait();
+			} else if (round < SPINS + YIELDS)
+			{
+				Thread.yield();
+			} else
+			{
+				LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+				parkNanos = Math.min(2 * parkNanos, MAX_PARK_NANOS);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.chunk = null;
+		this.header = null;
+		this.file.close();
+	}
+}
@@ -0,0 +1,617 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Writes frames into a capture file through memory mapped regions. Each region
+ * extends the file by its full size in advance, so writing a frame only
+ * copies it into memory without any allocation or system call. The header's
+ * frame count is published with every frame, see {@link CaptureTail}.
+ * Optionally a {@link CaptureIndex} is built while writing.
+ * 
+ * Without {@link GroupCommit} the operating system decides when to write the
+ * mapped regions to disk. With group commit, frames are checksummed in
+ * groups and each group is forced to disk. The writing thread only seals a
+ * group; forcing it is done by a commit thread, so a slow disk doesn't stall
+ * reception as long as no more than {@link GroupCommit#getPendingGroups()}
+ * sealed groups wait for it. Sealing another group then waits until the
+ * commit thread caught up, so a crash loses at most the open group and the
+ * pending sealed groups.
+ * 
+ * @author gabriel
+ * @see CaptureFormat
+ */
+public class CaptureWriter implements ReceiveCallback, Closeable
+{
+	/**
+	 * Default size of a mapped region: 64 MiB or 2 Mi frames.
+	 */
+	public static final long DEFAULT_REGION_SIZE = 64L << 20;
+
+	private static final int PAGE_SIZE = 4096;
+
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(
+			1, r -> {
+				Thread thread = new Thread(r, "CANUSB capture commit");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	static
+	{
+		TIMER.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Range of sealed records of one region waiting to be forced to disk.
+	 */
+	private static class Group
+	{
+		private final MappedByteBuffer region;
+		private final int from;
+		private int to;
+		private long frames;
+		private int seals;
+
+		private Group(MappedByteBuffer region, int from, int to, long frames)
+		{
+			this.region = region;
+			this.from = from;
+			this.to = to;
+			this.frames = frames;
+			this.seals = 1;
+		}
+	}
+
+	private final FileChannel file;
+	private final MappedByteBuffer header;
+	private final long regionSize;
+	private final MicroClock clock;
+	private final CaptureIndexWriter index;
+	private final GroupCommit groupCommit;
+	private final CRC32C checksum = new CRC32C();
+	private final ScheduledFuture<?> commitTimer;
+	private MappedByteBuffer region;
+	private ByteBuffer checksumView;
+	private long regionStart;
+	private int regionPosition;
+	private long frameCount;
+	private final ArrayDeque<Group> sealed = new ArrayDeque<Group>();
+	private long committedFrames;
+	private long sealedFrames;
+	private int sealedPosition;
+	private int pendingGroups;
+	private long lastCommitNanos;
+	private boolean forceScheduled;
+	private boolean forcing;
+	private long forceCount;
+	private long forceNanosTotal;
+	private long forceNanosMax;
+	private IOException commitError;
+	private boolean closed;
+
+	/**
+	 * Creates a capture file using regions of {@link #DEFAULT_REGION_SIZE}.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param header
+	 *            references the header describing the recording.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public CaptureWriter(Path path, CaptureHeader header) throws IOException
+	{
+		this(path, header, DEFAULT_REGION_SIZE, false);
+	}
+
+	/**
+	 * Creates a capture file without group commit.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param header
+	 *            references the header describing the recording.
+	 * @param regionSize
+	 *            contains the size of a mapped region in bytes. It is rounded
+	 *            down to a multiple of {@link CaptureFormat#RECORD_SIZE}.
+	 * @param indexed
+	 *            true to write an index to {@link CaptureIndex#pathFor(Path)}
+	 *            , false otherwise.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public CaptureWriter(Path path, CaptureHeader header, long regionSize,
+			boolean indexed) throws IOException
+	{
+		this(path, header, regionSize, indexed, null);
+	}
+
+	/**
+	 * Creates a capture file.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param header
+	 *            references the header describing the recording.
+	 * @param regionSize
+	 *            contains the size of a mapped region in bytes. It is rounded
+	 *            down to a multiple of {@link CaptureFormat#RECORD_SIZE}.
+	 * @param indexed
+	 *            true to write an index to {@link CaptureIndex#pathFor(Path)}
+	 *            , false otherwise.
+	 * @param groupCommit
+	 *            references the durability settings or NULL to leave writing
+	 *            to disk to the operating system.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public CaptureWriter(Path path, CaptureHeader header, long regionSize,
+			boolean indexed, GroupCommit groupCommit) throws IOException
+	{
+		if (regionSize < CaptureFormat.RECORD_SIZE
+				|| regionSize > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Invalid region size "
+					+ regionSize + "!");
+		}
+		this.regionSize = regionSize - regionSize % CaptureFormat.RECORD_SIZE;
+		this.file = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.header = this.file.map(FileChannel.MapMode.READ_WRITE, 0,
+				CaptureFormat.HEADER_SIZE);
+		this.header.order(CaptureFormat.ORDER);
+		header.write(this.header);
+		this.groupCommit = groupCommit;
+		if (null != groupCommit)
+		{
+			this.header.putShort(CaptureFormat.HEADER_STATE,
+					CaptureFormat.STATE_CHECKSUMMED);
+		}
+		this.clock = new MicroClock(header.getStartTime() * 1000);
+		this.map(CaptureFormat.HEADER_SIZE);
+		this.index = indexed ? new CaptureIndexWriter(
+				CaptureIndex.pathFor(path)) : null;
+		this.lastCommitNanos = System.nanoTime();
+		this.commitTimer = null == groupCommit ? null : TIMER
+				.scheduleWithFixedDelay(this::commitOnTimer,
+						groupCommit.getIntervalNanos(),
+						groupCommit.getIntervalNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	private void map(long position) throws IOException
+	{
+		this.region = this.file.map(FileChannel.MapMode.READ_WRITE, position,
+				this.regionSize);
+		this.region.order(CaptureFormat.ORDER);
+		this.checksumView = this.region.duplicate();
+		this.regionStart = position;
+		this.regionPosition = 0;
+		this.sealedPosition = 0;
+	}
+
+	/**
+	 * Writes zeros into every page of the current region, so the file system
+	 * allocates its blocks now instead of while writing frames. Call before
+	 * writing the first frame.
+	 */
+	synchronized void preallocate()
+	{
+		for (int p = 0; p < this.regionSize; p += PAGE_SIZE)
+		{
+			this.region.put(p, (byte) 0);
+		}
+	}
+
+	/**
+	 * Writes a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 * @throws UncheckedIOException
+	 *             if the message can't be written.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		try
+		{
+			this.write(msg);
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a message with the current time.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @throws IOException
+	 *             if the message can't be written.
+	 */
+	public void write(CANMessage msg) throws IOException
+	{
+		this.write(msg, this.clock.now());
+	}
+
+	/**
+	 * Writes a message.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @throws IOException
+	 *             if the message can't be written.
+	 */
+	public synchronized void write(CANMessage msg, long timeMicros)
+			throws IOException
+	{
+		if (this.closed)
+		{
+			throw new IOException("Capture is closed!");
+		}
+		this.checkCommitError();
+		if (this.regionPosition == this.regionSize)
+		{
+			if (null != this.groupCommit)
+			{
+				// groups don't span regions...
+				this.seal();
+			}
+			this.map(this.regionStart + this.regionSize);
+		}
+		MappedByteBuffer r = this.region;
+		int p = this.regionPosition;
+		int length = msg.getLength();
+		r.putLong(p + CaptureFormat.RECORD_TIME, timeMicros);
+		r.putInt(p + CaptureFormat.RECORD_ID, msg.getId());
+		r.putInt(p + CaptureFormat.RECORD_TIMESTAMP, msg.getTimestamp());
+		r.put(p + CaptureFormat.RECORD_FLAGS, ResponseMatcher.flags(msg));
+		r.put(p + CaptureFormat.RECORD_LENGTH, (byte) length);
+		byte[] data = msg.getData();
+		int valid = null == data ? 0 : Math.min(Math.min(length, 8),
+				data.length);
+		for (int i = 0; i < 8; i++)
+		{
+			r.put(p + CaptureFormat.RECORD_DATA + i, i < valid ? data[i] : 0);
+		}
+		this.regionPosition = p + CaptureFormat.RECORD_SIZE;
+		this.frameCount++;
+		// commit...
+		CaptureFormat.LONG.setRelease(this.header,
+				CaptureFormat.HEADER_FRAME_COUNT, this.frameCount);
+		if (null != this.index)
+		{
+			this.index.add(msg, timeMicros);
+		}
+		if (null != this.groupCommit)
+		{
+			checksum(this.checksum, this.checksumView, p);
+			if (this.frameCount - this.sealedFrames >= this.groupCommit
+					.getFrames()
+					|| System.nanoTime() - this.lastCommitNanos >= this.groupCommit
+							.getIntervalNanos())
+			{
+				this.seal();
+			}
+		}
+	}
+
+	/**
+	 * Adds the checksummed bytes of a record to a checksum.
+	 * 
+	 * @param checksum
+	 *            references the checksum of a commit group.
+	 * @param view
+	 *            references a buffer containing the record. Its position and
+	 *            limit are changed.
+	 * @param offset
+	 *            contains the offset of the record in the buffer.
+	 */
+	static void checksum(CRC32C checksum, ByteBuffer view, int offset)
+	{
+		view.limit(offset + CaptureFormat.RECORD_COMMIT).position(offset);
+		checksum.update(view);
+		view.limit(offset + CaptureFormat.RECORD_SIZE).position(
+				offset + CaptureFormat.RECORD_DATA);
+		checksum.update(view);
+	}
+
+	/**
+	 * Ends the current commit group: marks its last record, stores the
+	 * checksum and hands the group to the commit thread for forcing it to
+	 * disk. Waits first while the maximum number of sealed groups is pending.
+	 */
+	private void seal()
+	{
+		if (this.frameCount == this.sealedFrames)
+		{
+			this.lastCommitNanos = System.nanoTime();
+			return;
+		}
+		boolean interrupted = false;
+		while (this.pendingGroups >= this.groupCommit.getPendingGroups()
+				&& null == this.commitError)
+		{
+			try
+			{
+				this.wait();
+			} catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		this.lastCommitNanos = System.nanoTime();
+		int last = this.regionPosition - CaptureFormat.RECORD_SIZE;
+		this.region.put(last + CaptureFormat.RECORD_COMMIT,
+				CaptureFormat.COMMIT_MARK);
+		this.region.putInt(last + CaptureFormat.RECORD_CHECKSUM,
+				(int) this.checksum.getValue());
+		this.checksum.reset();
+		Group group = this.sealed.peekLast();
+		if (null != group && group.region == this.region
+				&& group.to == this.sealedPosition)
+		{
+			// the commit thread is behind, force both groups at once...
+			group.to = this.regionPosition;
+			group.frames = this.frameCount;
+			group.seals++;
+		} else
+		{
+			this.sealed.add(new Group(this.region, this.sealedPosition,
+					this.regionPosition, this.frameCount));
+		}
+		this.sealedPosition = this.regionPosition;
+		this.sealedFrames = this.frameCount;
+		this.pendingGroups++;
+		if (!this.forceScheduled)
+		{
+			this.forceScheduled = true;
+			TIMER.execute(this::force);
+		}
+	}
+
+	/**
+	 * Forces all sealed groups to disk without holding the lock of this
+	 * writer. Runs on the commit thread and when closing.
+	 */
+	private void force()
+	{
+		Group[] groups;
+		synchronized (this)
+		{
+			this.forceScheduled = false;
+			boolean interrupted = false;
+			while (this.forcing)
+			{
+				try
+				{
+					this.wait();
+				} catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			if (this.sealed.isEmpty() || null != this.commitError)
+			{
+				return;
+			}
+			groups = this.sealed.toArray(new Group[this.sealed.size()]);
+			this.sealed.clear();
+			this.forcing = true;
+		}
+		long start = System.nanoTime();
+		IOException error = null;
+		try
+		{
+			for (Group group : groups)
+			{
+				group.region.force(group.from, group.to - group.from);
+			}
+			this.header.force();
+		} catch (UncheckedIOException e)
+		{
+			error = e.getCause();
+		}
+		long nanos = System.nanoTime() - start;
+		synchronized (this)
+		{
+			this.forcing = false;
+			if (null == error)
+			{
+				for (Group group : groups)
+				{
+					this.pendingGroups -= group.seals;
+				}
+				this.forceCount++;
+				this.forceNanosTotal += nanos;
+				this.forceNanosMax = Math.max(this.forceNanosMax, nanos);
+				this.committedFrames = groups[groups.length - 1].frames;
+			} else
+			{
+				this.commitError = error;
+			}
+			this.notifyAll();
+		}
+	}
+
+	private synchronized void commitOnTimer()
+	{
+		// never wait on the commit thread, a pending force will follow...
+		if (this.closed
+				|| System.nanoTime() - this.lastCommitNanos < this.groupCommit
+						.getIntervalNanos()
+				|| this.pendingGroups >= this.groupCommit.getPendingGroups())
+		{
+			return;
+		}
+		this.seal();
+	}
+
+	private void checkCommitError() throws IOException
+	{
+		if (null != this.commitError)
+		{
+			throw new IOException("Group commit failed!", this.commitError);
+		}
+	}
+
+	/**
+	 * @return number of frames forced to disk by group commit.
+	 */
+	public synchronized long getCommittedFrameCount()
+	{
+		return this.committedFrames;
+	}
+
+	/**
+	 * @return number of times the commit thread forced groups to disk.
+	 */
+	public synchronized long getForceCount()
+	{
+		return this.forceCount;
+	}
+
+	/**
+	 * @return total time the commit thread spent forcing groups to disk in
+	 *         nanoseconds.
+	 */
+	public synchronized long getForceNanosTotal()
+	{
+		return this.forceNanosTotal;
+	}
+
+	/**
+	 * @return longest time the commit thread spent forcing groups to disk at
+	 *         once in nanoseconds.
+	 */
+	public synchronized long getForceNanosMax()
+	{
+		return this.forceNanosMax;
+	}
+
+	/**
+	 * @return number of frames written.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * Commits the last group and waits until all groups are forced to disk,
+	 * if group commit is used, closes the capture and cuts off the unused part
+	 * of the last region.
+	 * 
+	 * @throws IOException
+	 *             on errors while closing the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.close(false);
+	}
+
+	/**
+	 * Closes the capture like {@link #close()}.
+	 * 
+	 * @param last
+	 *            true to mark the capture as the last segment of a recording,
+	 *            published together with the closed state.
+	 * @throws IOException
+	 *             on errors while closing the file.
+	 */
+	synchronized void close(boolean last) throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		if (null != this.groupCommit)
+		{
+			this.commitTimer.cancel(false);
+			this.seal();
+			this.force();
+			this.checkCommitError();
+		}
+		this.region = null;
+		if (null != this.index)
+		{
+			this.index.close();
+		}
+		try
+		{
+			this.file.truncate(CaptureFormat.HEADER_SIZE + this.frameCount
+					* CaptureFormat.RECORD_SIZE);
+		} catch (IOException e)
+		{
+			// Windows refuses to truncate mapped files - readers rely on the
+			// frame count, so the pre-allocated tail is harmless...
+		}
+		short state = (short) (this.header
+				.getShort(CaptureFormat.HEADER_STATE)
+				| CaptureFormat.STATE_CLOSED | (last ? CaptureFormat.STATE_LAST
+				: 0));
+		CaptureFormat.SHORT.setRelease(this.header,
+				CaptureFormat.HEADER_STATE, state);
+		if (null != this.groupCommit)
+		{
+			this.header.force();
+		}
+		this.file.close();
+	}
+}
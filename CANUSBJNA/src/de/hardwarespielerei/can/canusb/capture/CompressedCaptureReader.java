@@ -0,0 +1,275 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+
+/**
+ * Reads a compressed capture file written by {@link CompressedCaptureWriter}.
+ * The block positions are collected when opening. Blocks are read with
+ * positional reads, so different threads can decode different blocks at the
+ * same time, each using its own {@link DecodedBlock}.
+ * 
+ * @author gabriel
+ */
+public class CompressedCaptureReader implements Closeable
+{
+	private final FileChannel file;
+	private final CaptureHeader header;
+	private long[] offsets = new long[16];
+	private long[] firstFrames = new long[16];
+	private long[] firstTimes = new long[16];
+	private int blockCount;
+	private long frameCount;
+
+	/**
+	 * Opens a compressed capture file and collects its block positions. An
+	 * incomplete block at the end, left by an interrupted recording, is
+	 * ignored.
+	 * 
+	 * @param path
+	 *            references the file to read.
+	 * @throws IOException
+	 *             if the file can't be read or isn't a compressed capture.
+	 */
+	public CompressedCaptureReader(Path path) throws IOException
+	{
+		this.file = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(CaptureFormat.HEADER_SIZE)
+					.order(CaptureFormat.ORDER);
+			this.readFully(buffer, 0);
+			this.header = CaptureHeader.read(buffer,
+					CompressedCaptureWriter.MAGIC);
+			this.scan();
+		} catch (IOException e)
+		{
+			this.file.close();
+			throw e;
+		}
+	}
+
+	private void scan() throws IOException
+	{
+		ByteBuffer blockHeader = ByteBuffer.allocate(
+				CompressedCaptureWriter.BLOCK_HEADER_SIZE).order(
+				CaptureFormat.ORDER);
+		long size = this.file.size();
+		long position = CaptureFormat.HEADER_SIZE;
+		while (position + CompressedCaptureWriter.BLOCK_HEADER_SIZE <= size)
+		{
+			blockHeader.clear();
+			this.readFully(blockHeader, position);
+			long next = position + CompressedCaptureWriter.BLOCK_HEADER_SIZE
+					+ blockHeader.getInt(0);
+			int count = blockHeader.getInt(4);
+			if (next > size || count <= 0
+					|| count > CompressedCaptureWriter.BLOCK_FRAMES)
+			{
+				break;
+			}
+			if (this.blockCount == this.offsets.length)
+			{
+				int capacity = 2 * this.blockCount;
+				this.offsets = Arrays.copyOf(this.offsets, capacity);
+				this.firstFrames = Arrays.copyOf(this.firstFrames, capacity);
+				this.firstTimes = Arrays.copyOf(this.firstTimes, capacity);
+			}
+			this.offsets[this.blockCount] = position;
+			this.firstFrames[this.blockCount] = this.frameCount;
+			this.firstTimes[this.blockCount] = blockHeader.getLong(8);
+			this.blockCount++;
+			this.frameCount += count;
+			position = next;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = this.file.read(buffer, position);
+			if (read < 0)
+			{
+				throw new IOException("Unexpected end of capture!");
+			}
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * @return header of the capture.
+	 */
+	public CaptureHeader getHeader()
+	{
+		return this.header;
+	}
+
+	/**
+	 * @return number of complete blocks.
+	 */
+	public int getBlockCount()
+	{
+		return this.blockCount;
+	}
+
+	/**
+	 * @return number of frames in all complete blocks.
+	 */
+	public long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * @param block
+	 *            contains the index of a block.
+	 * @return index of the first frame of the block in the whole capture.
+	 */
+	public long getFirstFrame(int block)
+	{
+		return this.firstFrames[this.checkBlock(block)];
+	}
+
+	/**
+	 * @param block
+	 *            contains the index of a block.
+	 * @return receive time of the first frame of the block in microseconds
+	 *         since epoch.
+	 */
+	public long getFirstTime(int block)
+	{
+		return this.firstTimes[this.checkBlock(block)];
+	}
+
+	private int checkBlock(int block)
+	{
+		if (block < 0 || block >= this.blockCount)
+		{
+			throw new IndexOutOfBoundsException("Block " + block + " of "
+					+ this.blockCount);
+		}
+		return block;
+	}
+
+	/**
+	 * Finds the block containing the first frame received at or after a time.
+	 * 
+	 * @param timeMicros
+	 *            contains a time in microseconds since epoch.
+	 * @return index of the block to decode first, or 0 if the time is before
+	 *         the first block.
+	 */
+	public int searchBlock(long timeMicros)
+	{
+		int low = 0;
+		int high = this.blockCount - 1;
+		while (low < high)
+		{
+			int middle = (low + high + 1) >>> 1;
+			if (this.firstTimes[middle] < timeMicros)
+			{
+				low = middle;
+			} else
+			{
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Decodes one block. Safe to call from different threads with different
+	 * decoded blocks.
+	 * 
+	 * @param block
+	 *            contains the index of the block.
+	 * @param decoded
+	 *            references the block to decode into.
+	 * @return decoded.
+	 * @throws IOException
+	 *             if the block can't be read or is corrupt.
+	 */
+	public DecodedBlock decode(int block, DecodedBlock decoded)
+			throws IOException
+	{
+		long position = this.offsets[this.checkBlock(block)];
+		int count = (int) ((block + 1 < this.blockCount ? this.firstFrames[block + 1]
+				: this.frameCount) - this.firstFrames[block]);
+		ByteBuffer buffer = decoded.buffer;
+		buffer.clear();
+		this.readFully(buffer.limit(CompressedCaptureWriter.BLOCK_HEADER_SIZE),
+				position);
+		int bodySize = buffer.getInt(0);
+		if (bodySize > buffer.capacity()
+				- CompressedCaptureWriter.BLOCK_HEADER_SIZE)
+		{
+			throw new IOException("Corrupt block " + block + "!");
+		}
+		buffer.clear();
+		this.readFully(buffer.limit(bodySize), position
+				+ CompressedCaptureWriter.BLOCK_HEADER_SIZE);
+		decoded.decode(count, this.firstTimes[block]);
+		return decoded;
+	}
+
+	/**
+	 * Decodes all blocks in order and passes every frame to a call back.
+	 * 
+	 * @param callback
+	 *            references the call back to pass the frames to.
+	 * @throws IOException
+	 *             if a block can't be read or is corrupt.
+	 */
+	public void forEach(ReceiveCallback callback) throws IOException
+	{
+		DecodedBlock decoded = new DecodedBlock();
+		for (int block = 0; block < this.blockCount; block++)
+		{
+			this.decode(block, decoded);
+			for (int i = 0; i < decoded.getSize(); i++)
+			{
+				callback.callback(decoded.get(i));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.file.close();
+	}
+}
@@ -0,0 +1,427 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Writes frames into a compressed capture file. The file starts with a
+ * {@link CaptureHeader} using the magic "CANUSBCZ", followed by independently
+ * decodable blocks of up to {@link #BLOCK_FRAMES} frames. Each block stores
+ * its frames column by column:
+ * 
+ * <ul>
+ * <li>receive times as zig-zag varint deltas,</li>
+ * <li>adapter timestamps as zig-zag varint deltas,</li>
+ * <li>IDs as a block dictionary plus one index per frame,</li>
+ * <li>flags and frame size packed into one byte per frame, the reserver only
+ * if used in the block,</li>
+ * <li>data bytes XORed against the previous data of the same ID, stored as a
+ * mask of the changed bytes plus these bytes, or as a reference into a block
+ * dictionary of data values, or literally.</li>
+ * </ul>
+ * 
+ * Block layout: int body size, int frame count, long receive time of the first
+ * frame, body.
+ * 
+ * @author gabriel
+ * @see CompressedCaptureReader
+ */
+public class CompressedCaptureWriter implements ReceiveCallback, Closeable
+{
+	/**
+	 * Magic bytes at the start of every compressed capture file.
+	 */
+	public static final byte[] MAGIC = { 'C', 'A', 'N', 'U', 'S', 'B', 'C',
+			'Z' };
+
+	/**
+	 * Maximum number of frames per block.
+	 */
+	public static final int BLOCK_FRAMES = 4096;
+
+	static final int BLOCK_HEADER_SIZE = 16;
+	static final int DICTIONARY_SIZE = 1024;
+	static final int TAG_LITERAL = 0xFE;
+	static final int TAG_DICTIONARY = 0xFF;
+
+	// one more slot than entries, so a lookup always ends on an empty slot
+	private static final int TABLE_SIZE = 2 * BLOCK_FRAMES;
+
+	private final FileChannel file;
+	private final ByteBuffer header = ByteBuffer.allocate(
+			CaptureFormat.HEADER_SIZE).order(CaptureFormat.ORDER);
+	private final ByteBuffer block = ByteBuffer.allocate(
+			BLOCK_HEADER_SIZE + 48 * BLOCK_FRAMES).order(CaptureFormat.ORDER);
+	private final MicroClock clock;
+
+	// columns of the current block
+	private final long[] times = new long[BLOCK_FRAMES];
+	private final int[] timestamps = new int[BLOCK_FRAMES];
+	private final int[] keys = new int[BLOCK_FRAMES];
+	private final byte[] flags = new byte[BLOCK_FRAMES];
+	private final byte[] lengths = new byte[BLOCK_FRAMES];
+	private final long[] payloads = new long[BLOCK_FRAMES];
+	private int size;
+
+	// dictionaries of the current block
+	private final int[] idIndex = new int[BLOCK_FRAMES];
+	private final int[] idKeys = new int[BLOCK_FRAMES];
+	private final int[] idSlots = new int[TABLE_SIZE];
+	private int idCount;
+	private final long[] previous = new long[BLOCK_FRAMES];
+	private final long[] dictionary = new long[DICTIONARY_SIZE];
+	private final int[] dictionarySlots = new int[TABLE_SIZE];
+	private int dictionaryCount;
+
+	private long position = CaptureFormat.HEADER_SIZE;
+	private long frameCount;
+	private boolean closed;
+
+	/**
+	 * Creates a compressed capture file.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param header
+	 *            references the header describing the recording.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public CompressedCaptureWriter(Path path, CaptureHeader header)
+			throws IOException
+	{
+		this.file = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		header.write(this.header, MAGIC);
+		this.writeHeader();
+		this.clock = new MicroClock(header.getStartTime() * 1000);
+	}
+
+	/**
+	 * Compresses a capture file.
+	 * 
+	 * @param capture
+	 *            references the capture file to read.
+	 * @param compressed
+	 *            references the compressed capture file to create.
+	 * @return number of frames compressed.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long compress(Path capture, Path compressed)
+			throws IOException
+	{
+		try (CaptureReader reader = new CaptureReader(capture);
+				CompressedCaptureWriter writer = new CompressedCaptureWriter(
+						compressed, reader.getHeader()))
+		{
+			CaptureFrame frame = new CaptureFrame();
+			for (long i = 0; i < reader.getFrameCount(); i++)
+			{
+				reader.get(i, frame);
+				writer.write(frame, frame.getTime());
+			}
+			return reader.getFrameCount();
+		}
+	}
+
+	/**
+	 * Writes a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 * @throws UncheckedIOException
+	 *             if the message can't be written.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		try
+		{
+			this.write(msg, this.clock.now());
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a message. Blocks are written when full and on close.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @throws IOException
+	 *             if a block can't be written.
+	 */
+	public synchronized void write(CANMessage msg, long timeMicros)
+			throws IOException
+	{
+		if (this.closed)
+		{
+			throw new IOException("Capture is closed!");
+		}
+		int i = this.size++;
+		this.times[i] = timeMicros;
+		this.timestamps[i] = msg.getTimestamp();
+		this.keys[i] = ResponseMatcher.key(msg);
+		this.flags[i] = ResponseMatcher.flags(msg);
+		this.lengths[i] = msg.getLength();
+		this.payloads[i] = ResponseMatcher.payload(msg);
+		if (BLOCK_FRAMES == this.size)
+		{
+			this.flush();
+		}
+	}
+
+	static int slot(long value)
+	{
+		long hash = value * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 40) & (TABLE_SIZE - 1);
+	}
+
+	private int idOf(int key)
+	{
+		int s = slot(key);
+		while (0 != this.idSlots[s])
+		{
+			int index = this.idSlots[s] - 1;
+			if (this.idKeys[index] == key)
+			{
+				return index;
+			}
+			s = (s + 1) & (TABLE_SIZE - 1);
+		}
+		this.idKeys[this.idCount] = key;
+		this.idSlots[s] = ++this.idCount;
+		return this.idCount - 1;
+	}
+
+	private int lookup(long payload)
+	{
+		int s = slot(payload);
+		while (0 != this.dictionarySlots[s])
+		{
+			int index = this.dictionarySlots[s] - 1;
+			if (this.dictionary[index] == payload)
+			{
+				return index;
+			}
+			s = (s + 1) & (TABLE_SIZE - 1);
+		}
+		return -1;
+	}
+
+	private void remember(long payload)
+	{
+		if (this.dictionaryCount < DICTIONARY_SIZE)
+		{
+			int s = slot(payload);
+			while (0 != this.dictionarySlots[s])
+			{
+				s = (s + 1) & (TABLE_SIZE - 1);
+			}
+			this.dictionary[this.dictionaryCount] = payload;
+			this.dictionarySlots[s] = ++this.dictionaryCount;
+		}
+	}
+
+	private void flush() throws IOException
+	{
+		if (0 == this.size)
+		{
+			return;
+		}
+		ByteBuffer b = this.block;
+		b.clear();
+		b.position(BLOCK_HEADER_SIZE);
+
+		// times and timestamps
+		long previousTime = this.times[0];
+		for (int i = 0; i < this.size; i++)
+		{
+			Varint.putSigned(b, this.times[i] - previousTime);
+			previousTime = this.times[i];
+		}
+		long previousTimestamp = 0;
+		for (int i = 0; i < this.size; i++)
+		{
+			Varint.putSigned(b, this.timestamps[i] - previousTimestamp);
+			previousTimestamp = this.timestamps[i];
+		}
+
+		// IDs
+		this.idCount = 0;
+		Arrays.fill(this.idSlots, 0);
+		for (int i = 0; i < this.size; i++)
+		{
+			this.idIndex[i] = this.idOf(this.keys[i]);
+		}
+		Varint.put(b, this.idCount);
+		for (int k = 0; k < this.idCount; k++)
+		{
+			Varint.put(b, this.idKeys[k] & 0xFFFFFFFFL);
+		}
+		for (int i = 0; i < this.size; i++)
+		{
+			if (this.idCount <= 256)
+			{
+				b.put((byte) this.idIndex[i]);
+			} else
+			{
+				Varint.put(b, this.idIndex[i]);
+			}
+		}
+
+		// flags and frame sizes
+		boolean reserver = false;
+		for (int i = 0; i < this.size; i++)
+		{
+			b.put((byte) ((this.flags[i] & 0xC0) | (this.lengths[i] & 0x0F)));
+			reserver |= 0 != (this.flags[i] & 0x3F);
+		}
+		b.put((byte) (reserver ? 1 : 0));
+		if (reserver)
+		{
+			for (int i = 0; i < this.size; i++)
+			{
+				b.put((byte) (this.flags[i] & 0x3F));
+			}
+		}
+
+		// data
+		Arrays.fill(this.previous, 0, this.idCount, 0);
+		this.dictionaryCount = 0;
+		Arrays.fill(this.dictionarySlots, 0);
+		for (int i = 0; i < this.size; i++)
+		{
+			long payload = this.payloads[i];
+			long xor = payload ^ this.previous[this.idIndex[i]];
+			this.previous[this.idIndex[i]] = payload;
+			int mask = 0;
+			for (int j = 0; j < 8; j++)
+			{
+				if (0 != ((xor >>> (56 - 8 * j)) & 0xFF))
+				{
+					mask |= 0x80 >>> j;
+				}
+			}
+			int reference = this.lookup(payload);
+			if (mask < TAG_LITERAL
+					&& (reference < 0 || Integer.bitCount(mask) <= Varint
+							.size(reference)))
+			{
+				b.put((byte) mask);
+				for (int j = 0; j < 8; j++)
+				{
+					if (0 != (mask & (0x80 >>> j)))
+					{
+						b.put((byte) (xor >>> (56 - 8 * j)));
+					}
+				}
+			} else if (reference >= 0)
+			{
+				b.put((byte) TAG_DICTIONARY);
+				Varint.put(b, reference);
+			} else
+			{
+				b.put((byte) TAG_LITERAL);
+				for (int j = 0; j < 8; j++)
+				{
+					b.put((byte) (payload >>> (56 - 8 * j)));
+				}
+				this.remember(payload);
+			}
+		}
+
+		b.putInt(0, b.position() - BLOCK_HEADER_SIZE);
+		b.putInt(4, this.size);
+		b.putLong(8, this.times[0]);
+		b.flip();
+		while (b.hasRemaining())
+		{
+			this.position += this.file.write(b, this.position);
+		}
+		this.frameCount += this.size;
+		this.size = 0;
+		this.writeHeader();
+	}
+
+	private void writeHeader() throws IOException
+	{
+		this.header.putLong(CaptureFormat.HEADER_FRAME_COUNT, this.frameCount);
+		this.header.clear();
+		long p = 0;
+		while (this.header.hasRemaining())
+		{
+			p += this.file.write(this.header, p);
+		}
+	}
+
+	/**
+	 * @return number of frames written in complete blocks.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * Writes the last block and closes the capture.
+	 * 
+	 * @throws IOException
+	 *             on errors while writing the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		try
+		{
+			this.flush();
+		} finally
+		{
+			this.file.close();
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * One decoded block of a compressed capture. All arrays are allocated once,
+ * so a block can be reused for decoding any number of blocks. Use one block
+ * per thread.
+ * 
+ * @author gabriel
+ * @see CompressedCaptureReader#decode(int, DecodedBlock)
+ */
+public class DecodedBlock
+{
+	private final long[] times = new long[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final int[] timestamps = new int[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final int[] keys = new int[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final byte[] flags = new byte[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final byte[] lengths = new byte[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final long[] payloads = new long[CompressedCaptureWriter.BLOCK_FRAMES];
+	private int size;
+
+	// scratch space for decoding
+	private final int[] idKeys = new int[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final int[] idIndex = new int[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final long[] previous = new long[CompressedCaptureWriter.BLOCK_FRAMES];
+	private final long[] dictionary = new long[CompressedCaptureWriter.DICTIONARY_SIZE];
+	final ByteBuffer buffer = ByteBuffer.allocate(
+			CompressedCaptureWriter.BLOCK_HEADER_SIZE + 48
+					* CompressedCaptureWriter.BLOCK_FRAMES).order(
+			CaptureFormat.ORDER);
+
+	private final Frame frame = new Frame();
+
+	/**
+	 * Flyweight view of one decoded frame.
+	 */
+	public class Frame implements CANMessage
+	{
+		private final byte[] data = new byte[8];
+		private int index;
+
+		/**
+		 * @return receive time in microseconds since epoch.
+		 */
+		public long getTime()
+		{
+			return DecodedBlock.this.times[this.index];
+		}
+
+		@Override
+		public int getId()
+		{
+			return DecodedBlock.this.keys[this.index] & 0x7FFFFFFF;
+		}
+
+		@Override
+		public int getTimestamp()
+		{
+			return DecodedBlock.this.timestamps[this.index];
+		}
+
+		@Override
+		public boolean isExtendedID()
+		{
+			return 0 != (DecodedBlock.this.flags[this.index] & NativeAccess.CANMSG_EXTENDED);
+		}
+
+		@Override
+		public boolean isRemoteFrame()
+		{
+			return 0 != (DecodedBlock.this.flags[this.index] & NativeAccess.CANMSG_RTR);
+		}
+
+		@Override
+		public byte getReserver()
+		{
+			return (byte) (DecodedBlock.this.flags[this.index] & 0x3F);
+		}
+
+		@Override
+		public byte getLength()
+		{
+			return DecodedBlock.this.lengths[this.index];
+		}
+
+		/**
+		 * @return data bytes 0..7, data byte 0 being the most significant
+		 *         byte.
+		 */
+		public long getDataLong()
+		{
+			return DecodedBlock.this.payloads[this.index];
+		}
+
+		/**
+		 * @return the data bytes copied into an array owned by this frame. The
+		 *         array is overwritten when this frame is moved.
+		 */
+		@Override
+		public byte[] getData()
+		{
+			ResponseMatcher.toBytes(this.getDataLong(), this.data, 8);
+			return this.data;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Frame 0x" + Integer.toHexString(this.getId()) + " at "
+					+ this.getTime() + " us";
+		}
+	}
+
+	/**
+	 * @return number of frames in this block.
+	 */
+	public int getSize()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @param index
+	 *            contains the index of a frame in this block.
+	 * @return receive time of the frame in microseconds since epoch.
+	 */
+	public long getTime(int index)
+	{
+		return this.times[index];
+	}
+
+	/**
+	 * Moves the frame view of this block to a frame.
+	 * 
+	 * @param index
+	 *            contains the index of a frame in this block.
+	 * @return frame view owned by this block.
+	 */
+	public Frame get(int index)
+	{
+		if (index < 0 || index >= this.size)
+		{
+			throw new IndexOutOfBoundsException("Frame " + index + " of "
+					+ this.size);
+		}
+		this.frame.index = index;
+		return this.frame;
+	}
+
+	/**
+	 * Decodes the block body in {@link #buffer}.
+	 * 
+	 * @param count
+	 *            contains the number of frames in the block.
+	 * @param firstTime
+	 *            contains the receive time of the first frame.
+	 * @throws IOException
+	 *             if the block is corrupt.
+	 */
+	void decode(int count, long firstTime) throws IOException
+	{
+		if (count < 0 || count > CompressedCaptureWriter.BLOCK_FRAMES)
+		{
+			throw new IOException("Corrupt block with " + count + " frames!");
+		}
+		this.size = 0;
+		try
+		{
+			this.decodeColumns(this.buffer, count, firstTime);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e)
+		{
+			throw new IOException("Corrupt block!", e);
+		}
+		this.size = count;
+	}
+
+	private void decodeColumns(ByteBuffer b, int count, long firstTime)
+	{
+		long time = firstTime;
+		for (int i = 0; i < count; i++)
+		{
+			time += Varint.getSigned(b);
+			this.times[i] = time;
+		}
+		long timestamp = 0;
+		for (int i = 0; i < count; i++)
+		{
+			timestamp += Varint.getSigned(b);
+			this.timestamps[i] = (int) timestamp;
+		}
+
+		int idCount = (int) Varint.get(b);
+		for (int k = 0; k < idCount; k++)
+		{
+			this.idKeys[k] = (int) Varint.get(b);
+		}
+		for (int i = 0; i < count; i++)
+		{
+			this.idIndex[i] = idCount <= 256 ? b.get() & 0xFF : (int) Varint
+					.get(b);
+			this.keys[i] = this.idKeys[this.idIndex[i]];
+		}
+
+		for (int i = 0; i < count; i++)
+		{
+			byte packed = b.get();
+			this.flags[i] = (byte) (packed & 0xC0);
+			this.lengths[i] = (byte) (packed & 0x0F);
+		}
+		if (0 != b.get())
+		{
+			for (int i = 0; i < count; i++)
+			{
+				this.flags[i] |= (byte) (b.get() & 0x3F);
+			}
+		}
+
+		for (int k = 0; k < idCount; k++)
+		{
+			this.previous[k] = 0;
+		}
+		int dictionaryCount = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int tag = b.get() & 0xFF;
+			long payload;
+			if (CompressedCaptureWriter.TAG_DICTIONARY == tag)
+			{
+				payload = this.dictionary[(int) Varint.get(b)];
+			} else if (CompressedCaptureWriter.TAG_LITERAL == tag)
+			{
+				payload = 0;
+				for (int j = 0; j < 8; j++)
+				{
+					payload = (payload << 8) | (b.get() & 0xFF);
+				}
+				if (dictionaryCount < CompressedCaptureWriter.DICTIONARY_SIZE)
+				{
+					this.dictionary[dictionaryCount++] = payload;
+				}
+			} else
+			{
+				long xor = 0;
+				for (int j = 0; j < 8; j++)
+				{
+					if (0 != (tag & (0x80 >>> j)))
+					{
+						xor |= (b.get() & 0xFFL) << (56 - 8 * j);
+					}
+				}
+				payload = this.previous[this.idIndex[i]] ^ xor;
+			}
+			this.previous[this.idIndex[i]] = payload;
+			this.payloads[i] = payload;
+		}
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.Status;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+import de.hardwarespielerei.can.canusb.util.AdaptiveWait;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Flight recorder: keeps the last frames received in a pre-allocated ring of
+ * primitive arrays and, when a trigger fires, dumps the frames of a window
+ * before the trigger plus all frames of a window after the trigger to a
+ * capture file. Triggers are frames matching a {@link ResponseMatcher},
+ * status bits appearing in {@link #status(Status)} or calls of
+ * {@link #trigger()}. A trigger during a dump extends its post-trigger
+ * window.
+ * 
+ * The receiving thread never waits: on a trigger, a background thread copies
+ * the whole ring into a shadow ring at once, then follows the ring for the
+ * post-trigger window while writing. Every frame copied is checked against
+ * the write position, like a sequence lock. Frames overwritten before they
+ * were copied are counted as lost.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread.
+ * 
+ * @author gabriel
+ */
+public class FlightRecorder implements ReceiveCallback, Closeable
+{
+	private static final long IDLE_PARK_NANOS = 100000000;
+
+	private final Path base;
+	private final CaptureHeader header;
+	private final long preMicros;
+	private final long postMicros;
+	private final int capacity;
+	private final int mask;
+	private final long[] times;
+	private final int[] ids;
+	private final int[] timestamps;
+	private final byte[] flags;
+	private final byte[] lengths;
+	private final long[] data;
+	private final long[] shadowTimes;
+	private final int[] shadowIds;
+	private final int[] shadowTimestamps;
+	private final byte[] shadowFlags;
+	private final byte[] shadowLengths;
+	private final long[] shadowData;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong triggers = new AtomicLong();
+	private final AdaptiveWait wait = new AdaptiveWait(
+			AdaptiveWait.DEFAULT_SPINS, AdaptiveWait.DEFAULT_YIELDS,
+			AdaptiveWait.DEFAULT_MIN_PARK_NANOS, IDLE_PARK_NANOS);
+	private final MicroClock clock;
+	private final Thread thread;
+	private volatile ResponseMatcher[] matchers = new ResponseMatcher[0];
+	private volatile int statusMask;
+	private int lastStatusBits;
+	private volatile long triggerMicros;
+	private volatile boolean dumping;
+	private volatile boolean running = true;
+	private volatile int dumpCount;
+	private volatile long lostFrames;
+	private volatile Path lastDump;
+	private volatile IOException error;
+
+	/**
+	 * Constructs and starts a flight recorder.
+	 * 
+	 * @param base
+	 *            references the base path of the capture files. Dumps get a
+	 *            number appended, see
+	 *            {@link SegmentedCaptureWriter#segmentPath(Path, int)}.
+	 * @param header
+	 *            references the header of the capture files. The start time is
+	 *            replaced by the start of each dump.
+	 * @param capacity
+	 *            contains the number of frames kept in memory. It is rounded
+	 *            up to a power of two.
+	 * @param preMicros
+	 *            contains the window before a trigger in microseconds, 0 to
+	 *            dump all frames kept in memory.
+	 * @param postMicros
+	 *            contains the window after a trigger in microseconds.
+	 */
+	public FlightRecorder(Path base, CaptureHeader header, int capacity,
+			long preMicros, long postMicros)
+	{
+		if (capacity <= 0 || preMicros < 0 || postMicros < 0)
+		{
+			throw new IllegalArgumentException("Invalid capacity or window!");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{
+			size <<= 1;
+		}
+		this.base = base;
+		this.header = header;
+		this.preMicros = 0 == preMicros ? Long.MAX_VALUE / 2 : preMicros;
+		this.postMicros = postMicros;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.times = new long[size];
+		this.ids = new int[size];
+		this.timestamps = new int[size];
+		this.flags = new byte[size];
+		this.lengths = new byte[size];
+		this.data = new long[size];
+		this.shadowTimes = new long[size];
+		this.shadowIds = new int[size];
+		this.shadowTimestamps = new int[size];
+		this.shadowFlags = new byte[size];
+		this.shadowLengths = new byte[size];
+		this.shadowData = new long[size];
+		this.clock = new MicroClock();
+		this.thread = new Thread(this::run, "CANUSB flight recorder");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Adds a trigger firing on received frames.
+	 * 
+	 * @param matcher
+	 *            references the description of the frames firing.
+	 */
+	public synchronized void addTrigger(ResponseMatcher matcher)
+	{
+		ResponseMatcher[] m = Arrays.copyOf(this.matchers,
+				this.matchers.length + 1);
+		m[m.length - 1] = matcher;
+		this.matchers = m;
+	}
+
+	/**
+	 * @param statusMask
+	 *            contains the status bits firing a trigger, e. g.
+	 *            {@link de.hardwarespielerei.can.canusb.jna.NativeAccess#CANSTATUS_BUS_ERROR}
+	 *            , or 0 to ignore the status.
+	 */
+	public void setStatusTrigger(int statusMask)
+	{
+		this.statusMask = statusMask;
+	}
+
+	/**
+	 * Fires a trigger if one of the status trigger bits is set now but wasn't
+	 * in the status passed before, so a lasting error fires only once. Call
+	 * from one polling thread.
+	 * 
+	 * @param status
+	 *            references the status polled from the channel.
+	 * @return true if a trigger fired, false otherwise.
+	 */
+	public boolean status(Status status)
+	{
+		int bits = status.getBits();
+		int raised = bits & ~this.lastStatusBits & this.statusMask;
+		this.lastStatusBits = bits;
+		if (0 == raised)
+		{
+			return false;
+		}
+		this.trigger();
+		return true;
+	}
+
+	/**
+	 * Fires a trigger now.
+	 */
+	public void trigger()
+	{
+		this.fire(this.clock.now());
+	}
+
+	private void fire(long timeMicros)
+	{
+		this.triggerMicros = timeMicros;
+		this.triggers.incrementAndGet();
+		this.wait.signal();
+	}
+
+	/**
+	 * Keeps a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		long t = this.tail.get();
+		long time = this.clock.now();
+		int i = (int) (t & this.mask);
+		// the slot must not change before readers can see it's reused...
+		VarHandle.storeStoreFence();
+		this.times[i] = time;
+		this.ids[i] = msg.getId();
+		this.timestamps[i] = msg.getTimestamp();
+		this.flags[i] = ResponseMatcher.flags(msg);
+		this.lengths[i] = (byte) Math.min(msg.getLength() & 0xFF, 8);
+		this.data[i] = ResponseMatcher.payload(msg);
+		this.tail.set(t + 1);
+		for (ResponseMatcher matcher : this.matchers)
+		{
+			if (matcher.matches(msg))
+			{
+				this.fire(time);
+				return;
+			}
+		}
+		if (this.dumping)
+		{
+			this.wait.signal();
+		}
+	}
+
+	private void run()
+	{
+		long handled = 0;
+		while (this.running)
+		{
+			if (this.triggers.get() == handled)
+			{
+				this.wait.idle();
+				continue;
+			}
+			this.wait.busy();
+			handled = this.triggers.get();
+			try
+			{
+				handled = this.dump(handled);
+			} catch (IOException e)
+			{
+				this.error = e;
+			}
+		}
+	}
+
+	/**
+	 * Dumps the frames around the latest trigger.
+	 * 
+	 * @return number of triggers handled.
+	 */
+	private long dump(long handled) throws IOException
+	{
+		long first = this.triggerMicros - this.preMicros;
+		long end = this.triggerMicros + this.postMicros;
+		// save the ring before the receiving thread overwrites it...
+		long copied = this.tail.get();
+		System.arraycopy(this.times, 0, this.shadowTimes, 0, this.capacity);
+		System.arraycopy(this.ids, 0, this.shadowIds, 0, this.capacity);
+		System.arraycopy(this.timestamps, 0, this.shadowTimestamps, 0,
+				this.capacity);
+		System.arraycopy(this.flags, 0, this.shadowFlags, 0, this.capacity);
+		System.arraycopy(this.lengths, 0, this.shadowLengths, 0,
+				this.capacity);
+		System.arraycopy(this.data, 0, this.shadowData, 0, this.capacity);
+		VarHandle.loadLoadFence();
+		long oldest = Math.max(0, this.tail.get() - this.capacity + 1);
+		long seq = Math.max(0, copied - this.capacity);
+		if (oldest > seq)
+		{
+			this.lostFrames += Math.min(oldest, copied) - seq;
+			seq = oldest;
+		}
+		while (seq < copied
+				&& this.shadowTimes[(int) (seq & this.mask)] < first)
+		{
+			seq++;
+		}
+		Path path = SegmentedCaptureWriter.segmentPath(this.base,
+				this.dumpCount);
+		long startMicros = seq < copied ? this.shadowTimes[(int) (seq & this.mask)]
+				: this.triggerMicros;
+		CaptureHeader h = this.header;
+		this.dumping = true;
+		try (CaptureWriter writer = new CaptureWriter(path, new CaptureHeader(
+				h.getSerialNumber(), h.getBitrate(), h.getAcceptanceCode(),
+				h.getAcceptanceMask(), h.getFlags(), startMicros / 1000)))
+		{
+			TimedFrame frame = new TimedFrame();
+			for (; seq < copied; seq++)
+			{
+				int i = (int) (seq & this.mask);
+				write(writer, frame, this.shadowTimes[i], this.shadowIds[i],
+						this.shadowTimestamps[i], this.shadowFlags[i],
+						this.shadowLengths[i], this.shadowData[i]);
+			}
+			// ...and follow it for the post-trigger window
+			while (true)
+			{
+				if (seq == this.tail.get())
+				{
+					if (!this.running || this.clock.now() > end)
+					{
+						break;
+					}
+					this.wait.idle();
+				} else
+				{
+					this.wait.busy();
+					int i = (int) (seq & this.mask);
+					long time = this.times[i];
+					int id = this.ids[i];
+					int timestamp = this.timestamps[i];
+					byte f = this.flags[i];
+					byte length = this.lengths[i];
+					long packed = this.data[i];
+					VarHandle.loadLoadFence();
+					if (this.tail.get() - seq >= this.capacity)
+					{
+						// overwritten while copying...
+						this.lostFrames++;
+					} else if (time > end)
+					{
+						break;
+					} else
+					{
+						write(writer, frame, time, id, timestamp, f, length,
+								packed);
+					}
+					seq++;
+				}
+				if (this.triggers.get() != handled)
+				{
+					// retriggered, extend the window...
+					handled = this.triggers.get();
+					end = Math.max(end, this.triggerMicros + this.postMicros);
+				}
+			}
+		} finally
+		{
+			this.dumping = false;
+			this.lastDump = path;
+			this.dumpCount++;
+		}
+		return handled;
+	}
+
+	private static void write(CaptureWriter writer, TimedFrame frame,
+			long time, int id, int timestamp, byte flags, byte length,
+			long packed) throws IOException
+	{
+		frame.set(time, id, 0 != (flags & NativeAccess.CANMSG_EXTENDED),
+				0 != (flags & NativeAccess.CANMSG_RTR), length)
+				.setTimestamp(timestamp).setReserver((byte) (flags & 0x3F));
+		ResponseMatcher.toBytes(packed, frame.getData(), length);
+		writer.write(frame, time);
+	}
+
+	/**
+	 * @return number of triggers fired.
+	 */
+	public long getTriggerCount()
+	{
+		return this.triggers.get();
+	}
+
+	/**
+	 * @return number of dumps written.
+	 */
+	public int getDumpCount()
+	{
+		return this.dumpCount;
+	}
+
+	/**
+	 * @return path of the last dump written or NULL.
+	 */
+	public Path getLastDump()
+	{
+		return this.lastDump;
+	}
+
+	/**
+	 * @return number of frames overwritten before they could be dumped.
+	 */
+	public long getLostFrames()
+	{
+		return this.lostFrames;
+	}
+
+	/**
+	 * @return true while a dump is being written, false otherwise.
+	 */
+	public boolean isDumping()
+	{
+		return this.dumping;
+	}
+
+	/**
+	 * Stops recording. A dump being written ends with the frames received so
+	 * far.
+	 * 
+	 * @throws IOException
+	 *             if writing a dump failed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.running = false;
+		this.wait.signal();
+		try
+		{
+			this.thread.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (null != this.error)
+		{
+			throw this.error;
+		}
+	}
+}
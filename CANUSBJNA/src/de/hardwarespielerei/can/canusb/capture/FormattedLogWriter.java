@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.util.FrameFormatter;
+
+/**
+ * Writes frames formatted by a {@link FrameFormatter}, e. g. for reading by
+ * humans or for processing as JSON lines.
+ * 
+ * @author gabriel
+ */
+public class FormattedLogWriter extends TextLogWriter
+{
+	private final FrameFormatter formatter;
+
+	/**
+	 * Creates a log file.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param style
+	 *            references the output style.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public FormattedLogWriter(Path path, FrameFormatter.Style style)
+			throws IOException
+	{
+		this(create(path), style);
+	}
+
+	/**
+	 * Writes a log to a channel, e. g. standard output.
+	 * 
+	 * @param channel
+	 *            references the channel to write to.
+	 * @param style
+	 *            references the output style.
+	 */
+	public FormattedLogWriter(WritableByteChannel channel,
+			FrameFormatter.Style style)
+	{
+		super(channel, FrameFormatter.MAX_LENGTH);
+		this.formatter = new FrameFormatter(style);
+	}
+
+	/**
+	 * Exports a capture file.
+	 * 
+	 * @param capture
+	 *            references the capture file to read.
+	 * @param log
+	 *            references the log file to create.
+	 * @param style
+	 *            references the output style.
+	 * @return number of frames exported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long export(Path capture, Path log, FrameFormatter.Style style)
+			throws IOException
+	{
+		return export(capture, new FormattedLogWriter(log, style));
+	}
+
+	@Override
+	int format(byte[] target, int offset, CANMessage msg, long timeMicros)
+	{
+		return this.formatter.format(target, offset, msg, timeMicros);
+	}
+}
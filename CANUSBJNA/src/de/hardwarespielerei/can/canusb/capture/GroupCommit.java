@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durability settings of a {@link CaptureWriter}: frames are committed in
+ * groups, each group is checksummed and sealed when it reaches a number of
+ * frames or when a time interval has passed since the last commit, whichever
+ * comes first. A commit thread forces sealed groups to disk. At most a given
+ * number of sealed groups wait for it, a writer sealing another one waits
+ * until the commit thread caught up.
+ * 
+ * On power failure the open group and the sealed groups not forced yet are
+ * lost, at most (pending groups + 1) * frames frames. {@link CaptureRecovery}
+ * cuts off a torn group and everything after it.
+ * 
+ * @author gabriel
+ */
+public class GroupCommit
+{
+	/**
+	 * Default number of frames per group.
+	 */
+	public static final int DEFAULT_FRAMES = 4096;
+
+	/**
+	 * Default number of sealed groups waiting to be forced to disk.
+	 */
+	public static final int DEFAULT_PENDING_GROUPS = 4;
+
+	private final int frames;
+	private final long intervalNanos;
+	private final int pendingGroups;
+
+	/**
+	 * Commits groups allowing {@link #DEFAULT_PENDING_GROUPS} sealed groups to
+	 * wait for the commit thread.
+	 * 
+	 * @param frames
+	 *            contains the maximum number of frames per group.
+	 * @param interval
+	 *            contains the maximum time between two commits.
+	 * @param unit
+	 *            references the unit of interval.
+	 * @throws IllegalArgumentException
+	 *             if frames or interval isn't positive.
+	 */
+	public GroupCommit(int frames, long interval, TimeUnit unit)
+	{
+		this(frames, interval, unit, DEFAULT_PENDING_GROUPS);
+	}
+
+	/**
+	 * @param frames
+	 *            contains the maximum number of frames per group.
+	 * @param interval
+	 *            contains the maximum time between two commits.
+	 * @param unit
+	 *            references the unit of interval.
+	 * @param pendingGroups
+	 *            contains the maximum number of sealed groups waiting to be
+	 *            forced to disk.
+	 * @throws IllegalArgumentException
+	 *             if frames, interval or pendingGroups isn't positive.
+	 */
+	public GroupCommit(int frames, long interval, TimeUnit unit,
+			int pendingGroups)
+	{
+		if (frames <= 0 || interval <= 0 || pendingGroups <= 0)
+		{
+			throw new IllegalArgumentException("Invalid group commit of "
+					+ frames + " frames every " + interval + " " + unit
+					+ " with " + pendingGroups + " pending groups!");
+		}
+		this.frames = frames;
+		this.intervalNanos = unit.toNanos(interval);
+		this.pendingGroups = pendingGroups;
+	}
+
+	/**
+	 * @return maximum number of frames per group.
+	 */
+	public int getFrames()
+	{
+		return this.frames;
+	}
+
+	/**
+	 * @return maximum time between two commits in nanoseconds.
+	 */
+	public long getIntervalNanos()
+	{
+		return this.intervalNanos;
+	}
+
+	/**
+	 * @return maximum number of sealed groups waiting to be forced to disk.
+	 */
+	public int getPendingGroups()
+	{
+		return this.pendingGroups;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Group commit of " + this.frames + " frames every "
+				+ TimeUnit.NANOSECONDS.toMillis(this.intervalNanos) + " ms, "
+				+ this.pendingGroups + " pending";
+	}
+}
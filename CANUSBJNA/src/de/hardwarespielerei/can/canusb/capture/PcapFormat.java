@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+/**
+ * Constants of PCAP and PCAPNG files with SocketCAN frames, as read by
+ * Wireshark.
+ * 
+ * A SocketCAN frame has 16 bytes:
+ * 
+ * <pre>
+ *  0  int     CAN ID, big endian, [EFF:1][RTR:1][ERR:1][ID:29]
+ *  4  byte    frame size
+ *  5  3 bytes padding and reserved
+ *  8  8 bytes data
+ * </pre>
+ * 
+ * @author gabriel
+ */
+final class PcapFormat
+{
+	static final int LINKTYPE_CAN_SOCKETCAN = 227;
+	static final int LINKTYPE_UNKNOWN = -1;
+	static final int FRAME_SIZE = 16;
+	static final int CAN_EFF_FLAG = 0x80000000;
+	static final int CAN_RTR_FLAG = 0x40000000;
+	static final int CAN_ERR_FLAG = 0x20000000;
+	static final int CAN_EFF_MASK = 0x1FFFFFFF;
+
+	// PCAP
+
+	static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+	static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+	static final int PCAP_HEADER_SIZE = 24;
+	static final int PCAP_RECORD_HEADER_SIZE = 16;
+
+	// PCAPNG
+
+	static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+	static final int BLOCK_INTERFACE_DESCRIPTION = 1;
+	static final int BLOCK_ENHANCED_PACKET = 6;
+	static final int BLOCK_SIMPLE_PACKET = 3;
+	static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+	static final int OPTION_END = 0;
+	static final int OPTION_IF_TSRESOL = 9;
+	static final int SECTION_HEADER_SIZE = 28;
+	static final int INTERFACE_DESCRIPTION_SIZE = 20;
+	static final int ENHANCED_PACKET_SIZE = 32 + FRAME_SIZE;
+
+	private PcapFormat()
+	{
+		// constants only
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * Reads SocketCAN frames from a PCAP or PCAPNG file, e. g. recorded by
+ * Wireshark or written by {@link PcapWriter}. The file is read through a
+ * direct buffer into one reused {@link TimedFrame}, so reading a frame
+ * allocates nothing. Packets of other link types, error frames and CAN FD
+ * frames are skipped.
+ * 
+ * Simple packet blocks of PCAPNG belong to the first interface and carry no
+ * timestamp; their frames get the time of the preceding packet. Packet blocks
+ * larger than the read buffer can't hold a frame read by this reader, they
+ * are skipped and counted, see {@link #getSkippedBlocks()}.
+ * 
+ * @author gabriel
+ */
+public class PcapReader implements Closeable
+{
+	private final FileChannel file;
+	private final ByteBuffer buffer = ByteBuffer
+			.allocateDirect(PcapWriter.BUFFER_SIZE);
+	private final boolean nextGeneration;
+	private boolean nanos;
+	private byte[] resolutions = new byte[4];
+	private int[] linkTypes = new int[4];
+	private int interfaceCount;
+	private long lastTime;
+	private long skippedBlocks;
+	private boolean endOfFile;
+
+	/**
+	 * Opens a PCAP or PCAPNG file.
+	 * 
+	 * @param path
+	 *            references the file to read.
+	 * @throws IOException
+	 *             if the file can't be read or is neither PCAP nor PCAPNG
+	 *             with SocketCAN frames.
+	 */
+	public PcapReader(Path path) throws IOException
+	{
+		this.file = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			this.buffer.limit(0);
+			if (!this.ensure(4))
+			{
+				throw new IOException("Empty PCAP file!");
+			}
+			ByteBuffer b = this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+			int magic = b.getInt(b.position());
+			this.nextGeneration = PcapFormat.BLOCK_SECTION_HEADER == magic;
+			if (!this.nextGeneration)
+			{
+				if (PcapFormat.PCAP_MAGIC_MICROS != magic
+						&& PcapFormat.PCAP_MAGIC_NANOS != magic)
+				{
+					b.order(ByteOrder.BIG_ENDIAN);
+					magic = b.getInt(b.position());
+				}
+				this.nanos = PcapFormat.PCAP_MAGIC_NANOS == magic;
+				if ((!this.nanos && PcapFormat.PCAP_MAGIC_MICROS != magic)
+						|| !this.ensure(PcapFormat.PCAP_HEADER_SIZE))
+				{
+					throw new IOException("Not a PCAP file!");
+				}
+				int linkType = b.getInt(b.position() + 20) & 0xFFFF;
+				if (PcapFormat.LINKTYPE_CAN_SOCKETCAN != linkType)
+				{
+					throw new IOException("Unsupported PCAP link type "
+							+ linkType + "!");
+				}
+				b.position(b.position() + PcapFormat.PCAP_HEADER_SIZE);
+			}
+		} catch (IOException e)
+		{
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Imports a PCAP or PCAPNG file into a capture file.
+	 * 
+	 * @param pcap
+	 *            references the PCAP or PCAPNG file to read.
+	 * @param capture
+	 *            references the capture file to create.
+	 * @return number of frames imported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long convert(Path pcap, Path capture) throws IOException
+	{
+		try (PcapReader reader = new PcapReader(pcap))
+		{
+			TimedFrame frame = new TimedFrame();
+			boolean more = null != reader.next(frame);
+			CaptureHeader header = new CaptureHeader("PCAP", null,
+					NativeAccess.CANUSB_ACCEPTANCE_CODE_ALL,
+					NativeAccess.CANUSB_ACCEPTANCE_MASK_ALL, 0,
+					more ? frame.getTime() / 1000 : 0);
+			try (CaptureWriter writer = new CaptureWriter(capture, header))
+			{
+				for (; more; more = null != reader.next(frame))
+				{
+					writer.write(frame, frame.getTime());
+				}
+				return writer.getFrameCount();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the file is PCAPNG, false if it is PCAP.
+	 */
+	public boolean isNextGeneration()
+	{
+		return this.nextGeneration;
+	}
+
+	/**
+	 * @return number of PCAPNG packet blocks skipped because they are larger
+	 *         than the read buffer.
+	 */
+	public long getSkippedBlocks()
+	{
+		return this.skippedBlocks;
+	}
+
+	/**
+	 * Makes sure the buffer holds enough bytes, reading more if necessary.
+	 * 
+	 * @param bytes
+	 *            contains the number of bytes needed, at most the buffer
+	 *            size.
+	 * @return true if the bytes are available, false at the end of the file.
+	 */
+	private boolean ensure(int bytes) throws IOException
+	{
+		ByteBuffer b = this.buffer;
+		if (b.remaining() >= bytes)
+		{
+			return true;
+		}
+		b.compact();
+		while (b.position() < bytes && !this.endOfFile)
+		{
+			this.endOfFile = this.file.read(b) < 0;
+		}
+		b.flip();
+		return b.remaining() >= bytes;
+	}
+
+	private void skip(long bytes) throws IOException
+	{
+		ByteBuffer b = this.buffer;
+		if (b.remaining() >= bytes)
+		{
+			b.position((int) (b.position() + bytes));
+		} else
+		{
+			this.file.position(this.file.position() + bytes - b.remaining());
+			b.limit(0);
+		}
+	}
+
+	/**
+	 * Reads the next frame.
+	 * 
+	 * @param frame
+	 *            references the frame to fill.
+	 * @return frame or NULL at the end of the file.
+	 * @throws IOException
+	 *             if the file can't be read or is corrupt.
+	 */
+	public TimedFrame next(TimedFrame frame) throws IOException
+	{
+		return this.nextGeneration ? this.nextBlock(frame) : this
+				.nextRecord(frame);
+	}
+
+	private TimedFrame nextRecord(TimedFrame frame) throws IOException
+	{
+		ByteBuffer b = this.buffer;
+		while (this.ensure(PcapFormat.PCAP_RECORD_HEADER_SIZE))
+		{
+			int p = b.position();
+			long seconds = b.getInt(p) & 0xFFFFFFFFL;
+			long fraction = b.getInt(p + 4) & 0xFFFFFFFFL;
+			int captured = b.getInt(p + 8);
+			if (captured < 0 || captured > b.capacity()
+					- PcapFormat.PCAP_RECORD_HEADER_SIZE)
+			{
+				throw new IOException("Corrupt PCAP record!");
+			}
+			if (!this.ensure(PcapFormat.PCAP_RECORD_HEADER_SIZE + captured))
+			{
+				// cut off while recording...
+				return null;
+			}
+			p = b.position();
+			b.position(p + PcapFormat.PCAP_RECORD_HEADER_SIZE + captured);
+			if (captured >= PcapFormat.FRAME_SIZE
+					&& parse(b, p + PcapFormat.PCAP_RECORD_HEADER_SIZE,
+							seconds * 1000000
+									+ (this.nanos ? fraction / 1000 : fraction),
+							frame))
+			{
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	private TimedFrame nextBlock(TimedFrame frame) throws IOException
+	{
+		ByteBuffer b = this.buffer;
+		while (this.ensure(12))
+		{
+			int p = b.position();
+			int type = b.getInt(p);
+			if (PcapFormat.BLOCK_SECTION_HEADER == type)
+			{
+				// every section may have its own byte order...
+				b.order(ByteOrder.LITTLE_ENDIAN);
+				if (PcapFormat.BYTE_ORDER_MAGIC != b.getInt(p + 8))
+				{
+					b.order(ByteOrder.BIG_ENDIAN);
+				}
+				this.interfaceCount = 0;
+			}
+			long length = b.getInt(p + 4) & 0xFFFFFFFFL;
+			if (length < 12 || 0 != (length & 3))
+			{
+				throw new IOException("Corrupt PCAPNG block!");
+			}
+			if (PcapFormat.BLOCK_INTERFACE_DESCRIPTION != type
+					&& PcapFormat.BLOCK_ENHANCED_PACKET != type
+					&& PcapFormat.BLOCK_SIMPLE_PACKET != type)
+			{
+				this.skip(length);
+				continue;
+			}
+			if (length > b.capacity())
+			{
+				if (PcapFormat.BLOCK_INTERFACE_DESCRIPTION != type)
+				{
+					this.skippedBlocks++;
+				} else
+				{
+					// keep the numbering of the interfaces...
+					this.addInterface(PcapFormat.LINKTYPE_UNKNOWN);
+				}
+				this.skip(length);
+				continue;
+			}
+			if (!this.ensure((int) length))
+			{
+				return null;
+			}
+			p = b.position();
+			b.position((int) (p + length));
+			if (PcapFormat.BLOCK_INTERFACE_DESCRIPTION == type)
+			{
+				this.addInterface(b, p, (int) length);
+			} else if (PcapFormat.BLOCK_SIMPLE_PACKET == type)
+			{
+				long captured = Math.min(b.getInt(p + 8) & 0xFFFFFFFFL,
+						length - 16);
+				if (this.interfaceCount > 0
+						&& PcapFormat.LINKTYPE_CAN_SOCKETCAN == this.linkTypes[0]
+						&& captured >= PcapFormat.FRAME_SIZE
+						&& parse(b, p + 12, this.lastTime, frame))
+				{
+					return frame;
+				}
+			} else
+			{
+				int id = b.getInt(p + 8);
+				int captured = b.getInt(p + 20);
+				if (id >= 0
+						&& id < this.interfaceCount
+						&& PcapFormat.LINKTYPE_CAN_SOCKETCAN == this.linkTypes[id]
+						&& captured >= PcapFormat.FRAME_SIZE
+						&& captured <= length - 32)
+				{
+					this.lastTime = this.toMicros(id,
+							((long) b.getInt(p + 12) << 32)
+									| (b.getInt(p + 16) & 0xFFFFFFFFL));
+					if (parse(b, p + 28, this.lastTime, frame))
+					{
+						return frame;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private int addInterface(int linkType)
+	{
+		if (this.interfaceCount == this.linkTypes.length)
+		{
+			this.linkTypes = Arrays.copyOf(this.linkTypes,
+					2 * this.interfaceCount);
+			this.resolutions = Arrays.copyOf(this.resolutions,
+					2 * this.interfaceCount);
+		}
+		this.linkTypes[this.interfaceCount] = linkType;
+		this.resolutions[this.interfaceCount] = 6;
+		return this.interfaceCount++;
+	}
+
+	private void addInterface(ByteBuffer b, int p, int length)
+	{
+		int id = this.addInterface(b.getShort(p + 8) & 0xFFFF);
+		byte resolution = 6;
+		int option = p + 16;
+		while (option + 4 <= p + length - 4)
+		{
+			int code = b.getShort(option) & 0xFFFF;
+			int size = b.getShort(option + 2) & 0xFFFF;
+			if (PcapFormat.OPTION_END == code)
+			{
+				break;
+			}
+			if (PcapFormat.OPTION_IF_TSRESOL == code && size >= 1)
+			{
+				resolution = b.get(option + 4);
+			}
+			option += 4 + ((size + 3) & ~3);
+		}
+		this.resolutions[id] = resolution;
+	}
+
+	/**
+	 * Converts a PCAPNG timestamp to microseconds.
+	 */
+	private long toMicros(int id, long timestamp)
+	{
+		int resolution = this.resolutions[id];
+		if (resolution < 0)
+		{
+			// 2^-n seconds...
+			int shift = resolution & 0x7F;
+			return (timestamp >>> shift) * 1000000
+					+ (((timestamp & ((1L << shift) - 1)) * 1000000) >>> shift);
+		}
+		long micros = timestamp;
+		for (int i = resolution; i > 6; i--)
+		{
+			micros /= 10;
+		}
+		for (int i = resolution; i < 6; i++)
+		{
+			micros *= 10;
+		}
+		return micros;
+	}
+
+	/**
+	 * Fills a frame from a SocketCAN frame.
+	 * 
+	 * @return true if the frame is a classic data or remote frame, false
+	 *         otherwise.
+	 */
+	private static boolean parse(ByteBuffer b, int p, long timeMicros,
+			TimedFrame frame)
+	{
+		int id = ((b.get(p) & 0xFF) << 24) | ((b.get(p + 1) & 0xFF) << 16)
+				| ((b.get(p + 2) & 0xFF) << 8) | (b.get(p + 3) & 0xFF);
+		int length = b.get(p + 4) & 0xFF;
+		if (0 != (id & PcapFormat.CAN_ERR_FLAG) || length > 8)
+		{
+			return false;
+		}
+		boolean extended = 0 != (id & PcapFormat.CAN_EFF_FLAG);
+		frame.set(timeMicros, extended ? id & PcapFormat.CAN_EFF_MASK
+				: id & 0x7FF, extended, 0 != (id & PcapFormat.CAN_RTR_FLAG),
+				length);
+		byte[] data = frame.getData();
+		for (int i = 0; i < 8; i++)
+		{
+			data[i] = b.get(p + 8 + i);
+		}
+		return true;
+	}
+
+	/**
+	 * Passes all remaining frames to a call back.
+	 * 
+	 * @param callback
+	 *            references the call back.
+	 * @return number of frames passed.
+	 * @throws IOException
+	 *             if the file can't be read or is corrupt.
+	 */
+	public long forEach(ReceiveCallback callback) throws IOException
+	{
+		TimedFrame frame = new TimedFrame();
+		long count = 0;
+		while (null != this.next(frame))
+		{
+			callback.callback(frame);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.file.close();
+	}
+}
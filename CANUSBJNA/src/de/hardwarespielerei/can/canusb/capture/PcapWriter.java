@@ -0,0 +1,263 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Writes frames into a PCAP or PCAPNG file with the SocketCAN link type, to be
+ * opened with Wireshark. Frames are collected in a direct buffer, which is
+ * written to the file when full, so writing a frame allocates nothing.
+ * 
+ * @author gabriel
+ * @see PcapReader
+ */
+public class PcapWriter implements ReceiveCallback, Closeable
+{
+	/**
+	 * Size of the write buffer in bytes.
+	 */
+	public static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel file;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	private final boolean nextGeneration;
+	private final MicroClock clock;
+	private long frameCount;
+	private boolean closed;
+
+	/**
+	 * Creates a PCAP or PCAPNG file.
+	 * 
+	 * @param path
+	 *            references the file to create or overwrite.
+	 * @param nextGeneration
+	 *            true to write PCAPNG, false to write PCAP.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public PcapWriter(Path path, boolean nextGeneration) throws IOException
+	{
+		this.file = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		this.nextGeneration = nextGeneration;
+		this.clock = new MicroClock();
+		ByteBuffer b = this.buffer;
+		if (nextGeneration)
+		{
+			b.putInt(PcapFormat.BLOCK_SECTION_HEADER);
+			b.putInt(PcapFormat.SECTION_HEADER_SIZE);
+			b.putInt(PcapFormat.BYTE_ORDER_MAGIC);
+			b.putShort((short) 1);
+			b.putShort((short) 0);
+			b.putLong(-1);
+			b.putInt(PcapFormat.SECTION_HEADER_SIZE);
+			// microsecond resolution is the default...
+			b.putInt(PcapFormat.BLOCK_INTERFACE_DESCRIPTION);
+			b.putInt(PcapFormat.INTERFACE_DESCRIPTION_SIZE);
+			b.putShort((short) PcapFormat.LINKTYPE_CAN_SOCKETCAN);
+			b.putShort((short) 0);
+			b.putInt(PcapFormat.FRAME_SIZE);
+			b.putInt(PcapFormat.INTERFACE_DESCRIPTION_SIZE);
+		} else
+		{
+			b.putInt(PcapFormat.PCAP_MAGIC_MICROS);
+			b.putShort((short) 2);
+			b.putShort((short) 4);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(PcapFormat.FRAME_SIZE);
+			b.putInt(PcapFormat.LINKTYPE_CAN_SOCKETCAN);
+		}
+	}
+
+	/**
+	 * Exports a capture file.
+	 * 
+	 * @param capture
+	 *            references the capture file to read.
+	 * @param pcap
+	 *            references the PCAP or PCAPNG file to create.
+	 * @param nextGeneration
+	 *            true to write PCAPNG, false to write PCAP.
+	 * @return number of frames exported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	public static long export(Path capture, Path pcap, boolean nextGeneration)
+			throws IOException
+	{
+		try (CaptureReader reader = new CaptureReader(capture);
+				PcapWriter writer = new PcapWriter(pcap, nextGeneration))
+		{
+			CaptureFrame frame = new CaptureFrame();
+			for (long i = 0; i < reader.getFrameCount(); i++)
+			{
+				reader.get(i, frame);
+				writer.write(frame, frame.getTime());
+			}
+			return reader.getFrameCount();
+		}
+	}
+
+	/**
+	 * Writes a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 * @throws UncheckedIOException
+	 *             if the message can't be written.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		try
+		{
+			this.write(msg, this.clock.now());
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a message.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @throws IOException
+	 *             if the buffer can't be written.
+	 */
+	public synchronized void write(CANMessage msg, long timeMicros)
+			throws IOException
+	{
+		if (this.closed)
+		{
+			throw new IOException("PCAP file is closed!");
+		}
+		ByteBuffer b = this.buffer;
+		if (b.remaining() < PcapFormat.ENHANCED_PACKET_SIZE)
+		{
+			this.flush();
+		}
+		if (this.nextGeneration)
+		{
+			b.putInt(PcapFormat.BLOCK_ENHANCED_PACKET);
+			b.putInt(PcapFormat.ENHANCED_PACKET_SIZE);
+			b.putInt(0);
+			b.putInt((int) (timeMicros >>> 32));
+			b.putInt((int) timeMicros);
+			b.putInt(PcapFormat.FRAME_SIZE);
+			b.putInt(PcapFormat.FRAME_SIZE);
+			this.putFrame(b, msg);
+			b.putInt(PcapFormat.ENHANCED_PACKET_SIZE);
+		} else
+		{
+			b.putInt((int) (timeMicros / 1000000));
+			b.putInt((int) (timeMicros % 1000000));
+			b.putInt(PcapFormat.FRAME_SIZE);
+			b.putInt(PcapFormat.FRAME_SIZE);
+			this.putFrame(b, msg);
+		}
+		this.frameCount++;
+	}
+
+	private void putFrame(ByteBuffer b, CANMessage msg)
+	{
+		int id = msg.isExtendedID() ? (msg.getId() & PcapFormat.CAN_EFF_MASK)
+				| PcapFormat.CAN_EFF_FLAG : msg.getId() & 0x7FF;
+		if (msg.isRemoteFrame())
+		{
+			id |= PcapFormat.CAN_RTR_FLAG;
+		}
+		int length = Math.min(msg.getLength() & 0xFF, 8);
+		b.putInt(Integer.reverseBytes(id));
+		b.put((byte) length);
+		b.put((byte) 0);
+		b.put((byte) 0);
+		b.put((byte) 0);
+		byte[] data = msg.getData();
+		int valid = null == data ? 0 : Math.min(length, data.length);
+		for (int i = 0; i < 8; i++)
+		{
+			b.put(i < valid ? data[i] : 0);
+		}
+	}
+
+	private void flush() throws IOException
+	{
+		this.buffer.flip();
+		while (this.buffer.hasRemaining())
+		{
+			this.file.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+
+	/**
+	 * @return number of frames written.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * Writes the buffered frames and closes the file.
+	 * 
+	 * @throws IOException
+	 *             on errors while writing the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		try
+		{
+			this.flush();
+		} finally
+		{
+			this.file.close();
+		}
+	}
+}
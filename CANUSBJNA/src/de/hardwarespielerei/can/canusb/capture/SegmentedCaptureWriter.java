@@ -0,0 +1,387 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Writes a recording into a sequence of capture segments, rolling over to the
+ * next segment when the current one is full or covers a given time span.
+ * 
+ * Each segment is a {@link CaptureWriter} mapped in one region of the full
+ * segment size. A background thread creates and pre-allocates the next
+ * segment in advance and closes the previous one, so rolling over only swaps
+ * two references. Closed segments are appended to the
+ * {@link CaptureManifest} at {@link CaptureManifest#pathFor(Path)}.
+ * 
+ * Segment files are named after the base path with a six digit segment
+ * number appended, see {@link #segmentPath(Path, int)}.
+ * {@link #nextSegment(Path)} lets a {@link CaptureTail} follow the recording.
+ * The last segment is marked as such when it is closed, so a tail finishes
+ * there instead of waiting for the prepared next segment.
+ * 
+ * Rolling over never waits for the previous segment to be closed. A failure
+ * to close it is reported by the next {@link #write(CANMessage, long)} or by
+ * {@link #close()}.
+ * 
+ * @author gabriel
+ */
+public class SegmentedCaptureWriter implements ReceiveCallback, Closeable
+{
+	private final ExecutorService background = Executors
+			.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "CANUSB capture segments");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private final Path base;
+	private final CaptureHeader header;
+	private final long segmentSize;
+	private final long segmentFrames;
+	private final long segmentMicros;
+	private final boolean indexed;
+	private final GroupCommit groupCommit;
+	private final MicroClock clock;
+	private CaptureWriter current;
+	private Path currentPath;
+	private int currentNumber;
+	private long firstTime;
+	private long lastTime;
+	private CompletableFuture<CaptureWriter> next;
+	private CompletableFuture<Void> closing = CompletableFuture
+			.completedFuture(null);
+	private final ConcurrentLinkedQueue<IOException> closeErrors = new ConcurrentLinkedQueue<IOException>();
+	private boolean closed;
+
+	/**
+	 * Starts a segmented recording.
+	 * 
+	 * @param base
+	 *            references the base path of the segment files.
+	 * @param header
+	 *            references the header written to every segment.
+	 * @param segmentSize
+	 *            contains the maximum size of a segment file in bytes, at most
+	 *            {@link Integer#MAX_VALUE}.
+	 * @param segmentMillis
+	 *            contains the maximum time span of a segment in milliseconds
+	 *            or 0 to roll over by size only.
+	 * @param indexed
+	 *            true to write an index for every segment, false otherwise.
+	 * @throws IOException
+	 *             if the first segment can't be created.
+	 */
+	public SegmentedCaptureWriter(Path base, CaptureHeader header,
+			long segmentSize, long segmentMillis, boolean indexed)
+			throws IOException
+	{
+		this(base, header, segmentSize, segmentMillis, indexed, null);
+	}
+
+	/**
+	 * Starts a segmented recording.
+	 * 
+	 * @param base
+	 *            references the base path of the segment files.
+	 * @param header
+	 *            references the header written to every segment.
+	 * @param segmentSize
+	 *            contains the maximum size of a segment file in bytes, at most
+	 *            {@link Integer#MAX_VALUE}.
+	 * @param segmentMillis
+	 *            contains the maximum time span of a segment in milliseconds
+	 *            or 0 to roll over by size only.
+	 * @param indexed
+	 *            true to write an index for every segment, false otherwise.
+	 * @param groupCommit
+	 *            references the durability settings of every segment or NULL
+	 *            to leave writing to disk to the operating system.
+	 * @throws IOException
+	 *             if the first segment can't be created.
+	 */
+	public SegmentedCaptureWriter(Path base, CaptureHeader header,
+			long segmentSize, long segmentMillis, boolean indexed,
+			GroupCommit groupCommit) throws IOException
+	{
+		if (segmentSize < CaptureFormat.HEADER_SIZE + CaptureFormat.RECORD_SIZE
+				|| segmentSize > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Invalid segment size "
+					+ segmentSize + "!");
+		}
+		this.base = base;
+		this.header = header;
+		this.segmentSize = segmentSize;
+		this.segmentFrames = (segmentSize - CaptureFormat.HEADER_SIZE)
+				/ CaptureFormat.RECORD_SIZE;
+		this.segmentMicros = segmentMillis <= 0 ? Long.MAX_VALUE
+				: segmentMillis * 1000;
+		this.indexed = indexed;
+		this.groupCommit = groupCommit;
+		this.clock = new MicroClock(header.getStartTime() * 1000);
+		this.current = this.create(0);
+		this.currentPath = segmentPath(base, 0);
+		this.prepare();
+	}
+
+	/**
+	 * @param base
+	 *            references the base path of a segmented capture.
+	 * @param number
+	 *            contains the number of a segment.
+	 * @return path of the segment file.
+	 */
+	public static Path segmentPath(Path base, int number)
+	{
+		return base.resolveSibling(base.getFileName()
+				+ String.format(".%06d", Integer.valueOf(number)));
+	}
+
+	/**
+	 * @param segment
+	 *            references the path of a segment file.
+	 * @return path of the following segment file.
+	 * @throws IllegalArgumentException
+	 *             if the path isn't named like a segment.
+	 */
+	public static Path nextSegment(Path segment)
+	{
+		String name = segment.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		try
+		{
+			int number = Integer.parseInt(name.substring(dot + 1));
+			return segment.resolveSibling(name.substring(0, dot)
+					+ String.format(".%06d", Integer.valueOf(number + 1)));
+		} catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(segment
+					+ " is not a capture segment!", e);
+		}
+	}
+
+	private CaptureWriter create(int number) throws IOException
+	{
+		CaptureWriter writer = new CaptureWriter(segmentPath(this.base,
+				number), this.header, this.segmentSize
+				- CaptureFormat.HEADER_SIZE, this.indexed, this.groupCommit);
+		writer.preallocate();
+		return writer;
+	}
+
+	private void prepare()
+	{
+		final int number = this.currentNumber + 1;
+		this.next = CompletableFuture.supplyAsync(() -> {
+			try
+			{
+				return this.create(number);
+			} catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}, this.background);
+	}
+
+	private void finish(final CaptureWriter writer, final Path path,
+			final long firstTime, final long lastTime, final boolean last)
+	{
+		final CaptureManifest.Segment segment = new CaptureManifest.Segment(
+				path, firstTime, lastTime, writer.getFrameCount());
+		final Path manifest = CaptureManifest.pathFor(this.base);
+		this.closing = CompletableFuture.runAsync(() -> {
+			try
+			{
+				writer.close(last);
+				if (segment.getFrameCount() > 0)
+				{
+					CaptureManifest.append(manifest, segment);
+				}
+			} catch (IOException e)
+			{
+				this.closeErrors.add(e);
+			}
+		}, this.background);
+	}
+
+	private void reportCloseErrors() throws IOException
+	{
+		IOException error = this.closeErrors.poll();
+		if (null == error)
+		{
+			return;
+		}
+		IOException reported = new IOException(
+				"Closing a previous segment failed!", error);
+		while (null != (error = this.closeErrors.poll()))
+		{
+			reported.addSuppressed(error);
+		}
+		throw reported;
+	}
+
+	private static <T> T join(CompletableFuture<T> future) throws IOException
+	{
+		try
+		{
+			return future.join();
+		} catch (CompletionException e)
+		{
+			if (e.getCause() instanceof UncheckedIOException)
+			{
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void rollOver() throws IOException
+	{
+		CaptureWriter previous = this.current;
+		Path previousPath = this.currentPath;
+		this.current = join(this.next);
+		this.currentNumber++;
+		this.currentPath = segmentPath(this.base, this.currentNumber);
+		this.finish(previous, previousPath, this.firstTime, this.lastTime,
+				false);
+		this.prepare();
+	}
+
+	/**
+	 * Writes a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 * @throws UncheckedIOException
+	 *             if the message can't be written.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		try
+		{
+			this.write(msg, this.clock.now());
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a message, rolling over to the next segment first if necessary.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @throws IOException
+	 *             if the message can't be written or closing a previous
+	 *             segment failed since the last write. In the latter case
+	 *             the message is written nevertheless.
+	 */
+	public synchronized void write(CANMessage msg, long timeMicros)
+			throws IOException
+	{
+		if (this.closed)
+		{
+			throw new IOException("Capture is closed!");
+		}
+		long frames = this.current.getFrameCount();
+		if (frames == this.segmentFrames
+				|| (frames > 0 && timeMicros - this.firstTime >= this.segmentMicros))
+		{
+			this.rollOver();
+			frames = 0;
+		}
+		if (0 == frames)
+		{
+			this.firstTime = timeMicros;
+		}
+		this.lastTime = timeMicros;
+		this.current.write(msg, timeMicros);
+		this.reportCloseErrors();
+	}
+
+	/**
+	 * @return path of the segment currently written.
+	 */
+	public synchronized Path getCurrentPath()
+	{
+		return this.currentPath;
+	}
+
+	/**
+	 * Closes the current segment, deletes the prepared next segment and
+	 * waits for the background work to end.
+	 * 
+	 * @throws IOException
+	 *             on errors while closing segments.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		try
+		{
+			this.finish(this.current, this.currentPath, this.firstTime,
+					this.lastTime, true);
+			// the background thread closes the segments in order...
+			join(this.closing);
+			this.reportCloseErrors();
+		} finally
+		{
+			this.background.shutdown();
+			try
+			{
+				CaptureWriter unused = join(this.next);
+				// a tail may have opened it already...
+				unused.close(true);
+				Path path = segmentPath(this.base, this.currentNumber + 1);
+				Files.deleteIfExists(path);
+				Files.deleteIfExists(CaptureIndex.pathFor(path));
+			} catch (IOException | CompletionException e)
+			{
+				// nothing recorded in the next segment...
+			}
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+import de.hardwarespielerei.can.canusb.util.Ascii;
+
+/**
+ * Base of text log readers: the channel is read in large chunks into one
+ * reused byte array, lines are parsed in place into a reused
+ * {@link TimedFrame}.
+ * 
+ * @author gabriel
+ */
+abstract class TextLogReader implements Closeable
+{
+	private final ReadableByteChannel channel;
+	private final byte[] buffer = new byte[TextLogWriter.BUFFER_SIZE];
+	private final ByteBuffer wrapper = ByteBuffer.wrap(this.buffer);
+	private int start;
+	private int limit;
+	private boolean endOfFile;
+
+	/**
+	 * Parse position within the current line.
+	 */
+	int cursor;
+
+	TextLogReader(ReadableByteChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	static ReadableByteChannel open(Path path) throws IOException
+	{
+		return FileChannel.open(path, StandardOpenOption.READ);
+	}
+
+	/**
+	 * Parses one line.
+	 * 
+	 * @param line
+	 *            references the buffer holding the line.
+	 * @param from
+	 *            contains the offset of the line.
+	 * @param to
+	 *            contains the offset after the line, without line break.
+	 * @param frame
+	 *            references the frame to fill.
+	 * @return true if the line contained a frame, false otherwise.
+	 * @throws IOException
+	 *             if the line is corrupt.
+	 */
+	abstract boolean parse(byte[] line, int from, int to, TimedFrame frame)
+			throws IOException;
+
+	/**
+	 * Reads the next frame.
+	 * 
+	 * @param frame
+	 *            references the frame to fill.
+	 * @return frame or NULL at the end of the log.
+	 * @throws IOException
+	 *             if the log can't be read or is corrupt.
+	 */
+	public TimedFrame next(TimedFrame frame) throws IOException
+	{
+		while (true)
+		{
+			int end = this.findLineEnd();
+			if (end < 0)
+			{
+				return null;
+			}
+			int from = this.start;
+			this.start = end + 1;
+			if (end > from && '\r' == this.buffer[end - 1])
+			{
+				end--;
+			}
+			if (this.parse(this.buffer, from, end, frame))
+			{
+				return frame;
+			}
+		}
+	}
+
+	private int findLineEnd() throws IOException
+	{
+		int scanned = this.start;
+		while (true)
+		{
+			for (int i = scanned; i < this.limit; i++)
+			{
+				if ('\n' == this.buffer[i])
+				{
+					return i;
+				}
+			}
+			if (this.endOfFile)
+			{
+				if (this.start < this.limit)
+				{
+					// last line without line break...
+					this.buffer[this.limit] = '\n';
+					return this.limit++;
+				}
+				return -1;
+			}
+			// move the partial line to the front and read more...
+			scanned = this.limit - this.start;
+			System.arraycopy(this.buffer, this.start, this.buffer, 0, scanned);
+			this.start = 0;
+			this.limit = scanned;
+			if (this.limit >= this.buffer.length - 1)
+			{
+				throw new IOException("Line too long!");
+			}
+			this.wrapper.limit(this.buffer.length - 1).position(this.limit);
+			int read = this.channel.read(this.wrapper);
+			if (read < 0)
+			{
+				this.endOfFile = true;
+			} else
+			{
+				this.limit += read;
+			}
+		}
+	}
+
+	/**
+	 * Imports all remaining frames into a capture file.
+	 * 
+	 * @param capture
+	 *            references the capture file to create.
+	 * @param serialNumber
+	 *            references the serial number to store in the header.
+	 * @return number of frames imported.
+	 * @throws IOException
+	 *             on errors while reading or writing.
+	 */
+	long convert(Path capture, String serialNumber) throws IOException
+	{
+		TimedFrame frame = new TimedFrame();
+		boolean more = null != this.next(frame);
+		CaptureHeader header = new CaptureHeader(serialNumber, null,
+				NativeAccess.CANUSB_ACCEPTANCE_CODE_ALL,
+				NativeAccess.CANUSB_ACCEPTANCE_MASK_ALL, 0,
+				more ? frame.getTime() / 1000 : 0);
+		try (CaptureWriter writer = new CaptureWriter(capture, header))
+		{
+			for (; more; more = null != this.next(frame))
+			{
+				writer.write(frame, frame.getTime());
+			}
+			return writer.getFrameCount();
+		}
+	}
+
+	/**
+	 * Passes all remaining frames to a call back.
+	 * 
+	 * @param callback
+	 *            references the call back.
+	 * @return number of frames passed.
+	 * @throws IOException
+	 *             if the log can't be read or is corrupt.
+	 */
+	public long forEach(ReceiveCallback callback) throws IOException
+	{
+		TimedFrame frame = new TimedFrame();
+		long count = 0;
+		while (null != this.next(frame))
+		{
+			callback.callback(frame);
+			count++;
+		}
+		return count;
+	}
+
+	// parsing helpers working on the cursor...
+
+	void skipSpaces(byte[] line, int to)
+	{
+		while (this.cursor < to
+				&& (' ' == line[this.cursor] || '\t' == line[this.cursor]))
+		{
+			this.cursor++;
+		}
+	}
+
+	void skipToken(byte[] line, int to)
+	{
+		while (this.cursor < to && ' ' != line[this.cursor]
+				&& '\t' != line[this.cursor])
+		{
+			this.cursor++;
+		}
+	}
+
+	/**
+	 * Parses hex digits.
+	 * 
+	 * @return value or -1 if there is no hex digit at the cursor.
+	 */
+	long parseHex(byte[] line, int to)
+	{
+		long value = 0;
+		int from = this.cursor;
+		int digit;
+		while (this.cursor < to && this.cursor - from < 16
+				&& (digit = Ascii.hexValue(line[this.cursor])) >= 0)
+		{
+			value = (value << 4) | digit;
+			this.cursor++;
+		}
+		return from == this.cursor ? -1 : value;
+	}
+
+	/**
+	 * Parses decimal digits.
+	 * 
+	 * @return value or -1 if there is no decimal digit at the cursor.
+	 */
+	long parseDecimal(byte[] line, int to)
+	{
+		long value = 0;
+		int from = this.cursor;
+		while (this.cursor < to && this.cursor - from < 18
+				&& line[this.cursor] >= '0' && line[this.cursor] <= '9')
+		{
+			value = 10 * value + (line[this.cursor++] - '0');
+		}
+		return from == this.cursor ? -1 : value;
+	}
+
+	/**
+	 * Parses seconds with an optional fraction.
+	 * 
+	 * @return microseconds or -1 if there is no number at the cursor.
+	 */
+	long parseSeconds(byte[] line, int to)
+	{
+		long seconds = this.parseDecimal(line, to);
+		if (seconds < 0)
+		{
+			return -1;
+		}
+		long micros = seconds * 1000000;
+		if (this.cursor < to && '.' == line[this.cursor])
+		{
+			this.cursor++;
+			long scale = 100000;
+			while (this.cursor < to && line[this.cursor] >= '0'
+					&& line[this.cursor] <= '9')
+			{
+				micros += scale * (line[this.cursor++] - '0');
+				scale /= 10;
+			}
+		}
+		return micros;
+	}
+
+	/**
+	 * @return true if the line continues with the given text at the cursor,
+	 *         which is moved behind it, false otherwise.
+	 */
+	boolean accept(byte[] line, int to, String text)
+	{
+		if (to - this.cursor < text.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++)
+		{
+			if (line[this.cursor + i] != text.charAt(i))
+			{
+				return false;
+			}
+		}
+		this.cursor += text.length();
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.channel.close();
+	}
+}
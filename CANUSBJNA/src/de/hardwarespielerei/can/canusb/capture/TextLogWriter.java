@@ -0,0 +1,240 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Base of text log writers: lines are formatted into one reused byte array,
+ * which is written to the channel when nearly full or when flushed.
+ * 
+ * @author gabriel
+ */
+public abstract class TextLogWriter implements ReceiveCallback, Closeable
+{
+	static final int BUFFER_SIZE = 1 << 20;
+	static final int MAX_LINE = 256;
+
+	private final WritableByteChannel channel;
+	private final int maxLine;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer wrapper = ByteBuffer.wrap(this.buffer);
+	private final MicroClock clock;
+	private int position;
+	private long frameCount;
+	private boolean closed;
+
+	TextLogWriter(WritableByteChannel channel)
+	{
+		this(channel, MAX_LINE);
+	}
+
+	/**
+	 * @param maxLine
+	 *            contains the maximum number of bytes a frame is formatted
+	 *            to.
+	 */
+	TextLogWriter(WritableByteChannel channel, int maxLine)
+	{
+		this.channel = channel;
+		this.maxLine = maxLine;
+		this.clock = new MicroClock();
+	}
+
+	static WritableByteChannel create(Path path) throws IOException
+	{
+		return FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Writes all frames of a capture file and closes the writer.
+	 * 
+	 * @return number of frames written.
+	 */
+	static long export(Path capture, TextLogWriter writer) throws IOException
+	{
+		try (CaptureReader reader = new CaptureReader(capture);
+				TextLogWriter w = writer)
+		{
+			CaptureFrame frame = new CaptureFrame();
+			for (long i = 0; i < reader.getFrameCount(); i++)
+			{
+				reader.get(i, frame);
+				w.write(frame, frame.getTime());
+			}
+			return reader.getFrameCount();
+		}
+	}
+
+	/**
+	 * Formats one frame.
+	 * 
+	 * @return offset after the line.
+	 */
+	abstract int format(byte[] target, int offset, CANMessage msg,
+			long timeMicros);
+
+	/**
+	 * Formats text written once before the first frame.
+	 * 
+	 * @return offset after the text.
+	 */
+	int header(byte[] target, int offset)
+	{
+		return offset;
+	}
+
+	/**
+	 * Formats text written once after the last frame.
+	 * 
+	 * @return offset after the text.
+	 */
+	int footer(byte[] target, int offset)
+	{
+		return offset;
+	}
+
+	/**
+	 * Writes a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 * @throws UncheckedIOException
+	 *             if the message can't be written.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		try
+		{
+			this.write(msg, this.clock.now());
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a message.
+	 * 
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @throws IOException
+	 *             if the buffer can't be written.
+	 */
+	public synchronized void write(CANMessage msg, long timeMicros)
+			throws IOException
+	{
+		if (this.closed)
+		{
+			throw new IOException("Log is closed!");
+		}
+		if (0 == this.frameCount)
+		{
+			this.position = this.header(this.buffer, this.position);
+		}
+		if (BUFFER_SIZE - this.position < this.maxLine)
+		{
+			this.writeBuffer();
+		}
+		this.position = this.format(this.buffer, this.position, msg,
+				timeMicros);
+		this.frameCount++;
+	}
+
+	/**
+	 * Writes the buffered lines to the channel.
+	 * 
+	 * @throws IOException
+	 *             on errors while writing.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if (!this.closed)
+		{
+			this.writeBuffer();
+		}
+	}
+
+	private void writeBuffer() throws IOException
+	{
+		this.wrapper.limit(this.position).position(0);
+		while (this.wrapper.hasRemaining())
+		{
+			this.channel.write(this.wrapper);
+		}
+		this.position = 0;
+	}
+
+	/**
+	 * @return number of frames written.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return this.frameCount;
+	}
+
+	/**
+	 * Writes the buffered lines and closes the channel.
+	 * 
+	 * @throws IOException
+	 *             on errors while writing.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		try
+		{
+			if (0 == this.frameCount)
+			{
+				this.position = this.header(this.buffer, this.position);
+			}
+			this.position = this.footer(this.buffer, this.position);
+			this.writeBuffer();
+		} finally
+		{
+			this.channel.close();
+		}
+	}
+}
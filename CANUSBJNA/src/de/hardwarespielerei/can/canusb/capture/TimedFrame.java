@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+
+/**
+ * Mutable frame with a receive time, filled by importers. One instance is
+ * reused for all frames of an import, so don't keep references to it: copy
+ * the values you need.
+ * 
+ * @author gabriel
+ */
+public class TimedFrame implements CANMessage
+{
+	private final byte[] data = new byte[8];
+	private long time;
+	private int id;
+	private int timestamp;
+	private boolean extendedID;
+	private boolean remoteFrame;
+	private byte reserver;
+	private byte length;
+
+	/**
+	 * Sets all values but the data bytes, which are set directly in the array
+	 * returned by {@link #getData()}. The adapter timestamp is derived from
+	 * the receive time.
+	 * 
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param remoteFrame
+	 *            contains the remote frame flag.
+	 * @param length
+	 *            contains the frame size 0..8.
+	 * @return this frame.
+	 */
+	public TimedFrame set(long timeMicros, int id, boolean extendedID,
+			boolean remoteFrame, int length)
+	{
+		this.time = timeMicros;
+		this.id = id;
+		this.timestamp = (int) (timeMicros / 1000);
+		this.extendedID = extendedID;
+		this.remoteFrame = remoteFrame;
+		this.reserver = 0;
+		this.length = (byte) length;
+		return this;
+	}
+
+	/**
+	 * @param timestamp
+	 *            contains the adapter timestamp in milliseconds.
+	 * @return this frame.
+	 */
+	public TimedFrame setTimestamp(int timestamp)
+	{
+		this.timestamp = timestamp;
+		return this;
+	}
+
+	/**
+	 * @param reserver
+	 *            contains the reserved flag bits.
+	 * @return this frame.
+	 */
+	public TimedFrame setReserver(byte reserver)
+	{
+		this.reserver = reserver;
+		return this;
+	}
+
+	/**
+	 * @return receive time in microseconds since epoch.
+	 */
+	public long getTime()
+	{
+		return this.time;
+	}
+
+	@Override
+	public int getId()
+	{
+		return this.id;
+	}
+
+	@Override
+	public int getTimestamp()
+	{
+		return this.timestamp;
+	}
+
+	@Override
+	public boolean isExtendedID()
+	{
+		return this.extendedID;
+	}
+
+	@Override
+	public boolean isRemoteFrame()
+	{
+		return this.remoteFrame;
+	}
+
+	@Override
+	public byte getReserver()
+	{
+		return this.reserver;
+	}
+
+	@Override
+	public byte getLength()
+	{
+		return this.length;
+	}
+
+	/**
+	 * @return the data bytes, owned by this frame and writable by importers.
+	 */
+	@Override
+	public byte[] getData()
+	{
+		return this.data;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Frame 0x" + Integer.toHexString(this.id) + " at " + this.time
+				+ " us";
+	}
+}
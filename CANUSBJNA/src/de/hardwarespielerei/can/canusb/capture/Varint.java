@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.capture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of integers: 7 bits per byte, least significant
+ * group first, the most significant bit marks continuation. Signed values are
+ * zig-zag encoded first, so small negative values stay short.
+ * 
+ * @author gabriel
+ */
+final class Varint
+{
+	private Varint()
+	{
+		// static helpers only
+	}
+
+	static void put(ByteBuffer buffer, long value)
+	{
+		while (0 != (value & ~0x7FL))
+		{
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static void putSigned(ByteBuffer buffer, long value)
+	{
+		put(buffer, (value << 1) ^ (value >> 63));
+	}
+
+	static long get(ByteBuffer buffer)
+	{
+		long result = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = buffer.get();
+			result |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return result;
+	}
+
+	static long getSigned(ByteBuffer buffer)
+	{
+		long value = get(buffer);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static int size(long value)
+	{
+		int size = 1;
+		while (0 != (value & ~0x7FL))
+		{
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
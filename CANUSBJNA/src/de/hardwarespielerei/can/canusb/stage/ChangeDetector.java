@@ -0,0 +1,210 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.stage;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+
+/**
+ * Forwards a received message only if its payload changed since the last
+ * message forwarded with the same ID, or if a heartbeat interval elapsed
+ * since then. The last payload of every ID is kept in a table of primitive
+ * arrays indexed by {@link IdTable} slots. A per-ID mask selects the payload
+ * bits compared, e. g. to ignore message counters and checksums. A change of
+ * the frame size or the remote frame flag always counts as change.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread. Set masks before
+ * receiving.
+ * 
+ * @author gabriel
+ */
+public class ChangeDetector implements ReceiveCallback
+{
+	/**
+	 * Default maximum number of extended IDs tracked.
+	 */
+	public static final int DEFAULT_EXTENDED_IDS = 4096;
+
+	private static final byte UNSEEN = -1;
+
+	private final ReceiveCallback target;
+	private final long heartbeatNanos;
+	private final IdTable ids;
+	private final long[] masks;
+	private final long[] payloads;
+	private final byte[] shapes;
+	private final long[] forwardNanos;
+	private volatile long forwarded;
+	private volatile long suppressed;
+
+	/**
+	 * @param target
+	 *            references the call back to forward messages to.
+	 * @param heartbeat
+	 *            contains the interval after which an unchanged message is
+	 *            forwarded anyway, 0 to forward changes only.
+	 * @param unit
+	 *            references the unit of heartbeat.
+	 */
+	public ChangeDetector(ReceiveCallback target, long heartbeat,
+			TimeUnit unit)
+	{
+		this(target, heartbeat, unit, DEFAULT_EXTENDED_IDS);
+	}
+
+	/**
+	 * @param target
+	 *            references the call back to forward messages to.
+	 * @param heartbeat
+	 *            contains the interval after which an unchanged message is
+	 *            forwarded anyway, 0 to forward changes only.
+	 * @param unit
+	 *            references the unit of heartbeat.
+	 * @param maxExtendedIDs
+	 *            contains the maximum number of extended IDs tracked.
+	 *            Messages with further extended IDs are always forwarded.
+	 */
+	public ChangeDetector(ReceiveCallback target, long heartbeat,
+			TimeUnit unit, int maxExtendedIDs)
+	{
+		if (heartbeat < 0)
+		{
+			throw new IllegalArgumentException(
+					"Heartbeat must not be negative!");
+		}
+		this.target = target;
+		this.heartbeatNanos = unit.toNanos(heartbeat);
+		this.ids = new IdTable(maxExtendedIDs);
+		int capacity = this.ids.capacity();
+		this.masks = new long[capacity];
+		Arrays.fill(this.masks, -1L);
+		this.payloads = new long[capacity];
+		this.shapes = new byte[capacity];
+		Arrays.fill(this.shapes, UNSEEN);
+		this.forwardNanos = new long[capacity];
+	}
+
+	/**
+	 * Sets the payload bits compared for an ID.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param mask
+	 *            contains the payload bits compared, data byte 0 being the
+	 *            most significant byte, e. g. 0xFFFFFFFFFFFF0000L to ignore
+	 *            data bytes 6 and 7.
+	 * @throws IllegalArgumentException
+	 *             if the ID is invalid or there are too many extended IDs.
+	 */
+	public void setMask(int id, boolean extendedID, long mask)
+	{
+		int slot = this.ids.slot(id, extendedID);
+		if (slot < 0)
+		{
+			throw new IllegalArgumentException("Can't track ID 0x"
+					+ Integer.toHexString(id) + "!");
+		}
+		this.masks[slot] = mask;
+	}
+
+	/**
+	 * Forwards a received message if it changed or its heartbeat is due.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		int slot = this.ids.slot(msg.getId(), msg.isExtendedID());
+		if (slot < 0)
+		{
+			this.forward(msg);
+			return;
+		}
+		int length = Math.min(msg.getLength() & 0xFF, 8);
+		byte shape = (byte) (msg.isRemoteFrame() ? 0x10 | length : length);
+		long payload = msg.isRemoteFrame() ? 0 : ResponseMatcher.payload(msg);
+		long now = 0 == this.heartbeatNanos ? 0 : System.nanoTime();
+		if (shape == this.shapes[slot]
+				&& 0 == ((payload ^ this.payloads[slot]) & this.masks[slot])
+				&& (0 == this.heartbeatNanos || now
+						- this.forwardNanos[slot] < this.heartbeatNanos))
+		{
+			this.suppressed++;
+			return;
+		}
+		this.shapes[slot] = shape;
+		this.payloads[slot] = payload;
+		this.forwardNanos[slot] = now;
+		this.forward(msg);
+	}
+
+	private void forward(CANMessage msg)
+	{
+		this.forwarded++;
+		this.target.callback(msg);
+	}
+
+	/**
+	 * @return number of messages forwarded.
+	 */
+	public long getForwarded()
+	{
+		return this.forwarded;
+	}
+
+	/**
+	 * @return number of messages suppressed as unchanged.
+	 */
+	public long getSuppressed()
+	{
+		return this.suppressed;
+	}
+
+	/**
+	 * @return ratio of messages suppressed to all messages, 0..1.
+	 */
+	public double getReduction()
+	{
+		long s = this.suppressed;
+		long all = s + this.forwarded;
+		return 0 == all ? 0 : (double) s / all;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Forwarded " + this.forwarded + ", suppressed "
+				+ this.suppressed;
+	}
+}
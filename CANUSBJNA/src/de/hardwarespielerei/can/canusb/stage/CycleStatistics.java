@@ -0,0 +1,402 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.stage;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Characterizes the bus schedule per ID while receiving: frame count, mean,
+ * minimum and maximum cycle time, jitter as standard deviation of the cycle
+ * time, distribution of the payload lengths and last seen time. Mean and
+ * deviation are updated in a streaming fashion (Welford), so no frames are
+ * kept. All state lives in primitive arrays indexed by {@link IdTable} slots.
+ * 
+ * Readers copy the statistics of an ID into a reusable {@link Snapshot}. Like
+ * {@link IdHistory}, each ID has a version counter that is odd while the
+ * receiving thread updates, and readers retry until they copied between two
+ * updates.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread, which uses the
+ * current time. To analyze a capture, call
+ * {@link #update(CANMessage, long)} with the capture times instead.
+ * 
+ * @author gabriel
+ */
+public class CycleStatistics implements ReceiveCallback
+{
+	private static final int LENGTHS = 9;
+
+	/**
+	 * Copy of the statistics of one ID. Reuse instances to read without
+	 * allocating.
+	 * 
+	 * @author gabriel
+	 */
+	public static class Snapshot
+	{
+		private final long[] lengths = new long[LENGTHS];
+		private int id;
+		private boolean extendedID;
+		private long count;
+		private long firstSeen;
+		private long lastSeen;
+		private long minCycle;
+		private long maxCycle;
+		private double meanCycle;
+		private double squares;
+
+		/**
+		 * @return message ID.
+		 */
+		public int getId()
+		{
+			return this.id;
+		}
+
+		/**
+		 * @return true if the ID is an extended ID, false otherwise.
+		 */
+		public boolean isExtendedID()
+		{
+			return this.extendedID;
+		}
+
+		/**
+		 * @return number of frames received, 0 if the ID wasn't received.
+		 */
+		public long getCount()
+		{
+			return this.count;
+		}
+
+		/**
+		 * @return time the first frame was received in microseconds since
+		 *         epoch.
+		 */
+		public long getFirstSeen()
+		{
+			return this.firstSeen;
+		}
+
+		/**
+		 * @return time the last frame was received in microseconds since
+		 *         epoch.
+		 */
+		public long getLastSeen()
+		{
+			return this.lastSeen;
+		}
+
+		/**
+		 * @return shortest cycle time in microseconds, 0 if less than two
+		 *         frames were received.
+		 */
+		public long getMinCycle()
+		{
+			return this.count < 2 ? 0 : this.minCycle;
+		}
+
+		/**
+		 * @return longest cycle time in microseconds, 0 if less than two
+		 *         frames were received.
+		 */
+		public long getMaxCycle()
+		{
+			return this.maxCycle;
+		}
+
+		/**
+		 * @return mean cycle time in microseconds, 0 if less than two frames
+		 *         were received.
+		 */
+		public double getMeanCycle()
+		{
+			return this.meanCycle;
+		}
+
+		/**
+		 * @return standard deviation of the cycle time in microseconds, 0 if
+		 *         less than three frames were received.
+		 */
+		public double getJitter()
+		{
+			return this.count < 3 ? 0 : Math.sqrt(this.squares
+					/ (this.count - 2));
+		}
+
+		/**
+		 * @param length
+		 *            contains a payload length from 0 to 8.
+		 * @return number of frames received with the payload length.
+		 */
+		public long getLengthCount(int length)
+		{
+			return this.lengths[length];
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder result = new StringBuilder();
+			result.append("0x").append(Integer.toHexString(this.id))
+					.append(this.extendedID ? " (extended)" : "")
+					.append(": ").append(this.count).append(" frames");
+			if (this.count >= 2)
+			{
+				result.append(String.format(Locale.ROOT,
+						", cycle %.3f ms (%.3f..%.3f), jitter %.3f ms",
+						this.meanCycle / 1000, this.getMinCycle() / 1000.0,
+						this.maxCycle / 1000.0, this.getJitter() / 1000));
+			}
+			result.append(", length");
+			for (int length = 0; length < LENGTHS; length++)
+			{
+				if (0 != this.lengths[length])
+				{
+					result.append(' ').append(length).append(':')
+							.append(this.lengths[length]);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	private final ReceiveCallback target;
+	private final IdTable ids;
+	private final AtomicLongArray versions;
+	private final long[] counts;
+	private final long[] firstSeen;
+	private final long[] lastSeen;
+	private final long[] minCycles;
+	private final long[] maxCycles;
+	private final double[] meanCycles;
+	private final double[] squares;
+	private final long[] lengths;
+	private final MicroClock clock;
+	private volatile long frames;
+
+	/**
+	 * @param target
+	 *            references the call back to forward messages to or NULL to
+	 *            forward nothing.
+	 */
+	public CycleStatistics(ReceiveCallback target)
+	{
+		this(target, ChangeDetector.DEFAULT_EXTENDED_IDS);
+	}
+
+	/**
+	 * @param target
+	 *            references the call back to forward messages to or NULL to
+	 *            forward nothing.
+	 * @param maxExtendedIDs
+	 *            contains the maximum number of extended IDs analyzed.
+	 *            Messages with further extended IDs are only forwarded.
+	 */
+	public CycleStatistics(ReceiveCallback target, int maxExtendedIDs)
+	{
+		this.target = target;
+		this.ids = new IdTable(maxExtendedIDs);
+		int capacity = this.ids.capacity();
+		this.versions = new AtomicLongArray(capacity);
+		this.counts = new long[capacity];
+		this.firstSeen = new long[capacity];
+		this.lastSeen = new long[capacity];
+		this.minCycles = new long[capacity];
+		this.maxCycles = new long[capacity];
+		this.meanCycles = new double[capacity];
+		this.squares = new double[capacity];
+		this.lengths = new long[capacity * LENGTHS];
+		this.clock = new MicroClock();
+	}
+
+	/**
+	 * Updates the statistics with a received message and the current time and
+	 * forwards it.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		this.update(msg, this.clock.now());
+		if (null != this.target)
+		{
+			this.target.callback(msg);
+		}
+	}
+
+	/**
+	 * Updates the statistics with a message received at the given time, e. g.
+	 * from a capture. Times of an ID must not decrease.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 */
+	public void update(CANMessage msg, long timeMicros)
+	{
+		int slot = this.ids.slot(msg.getId(), msg.isExtendedID());
+		if (slot < 0)
+		{
+			return;
+		}
+		long count = this.counts[slot];
+		long version = this.versions.get(slot);
+		// odd version: readers must retry...
+		this.versions.set(slot, version + 1);
+		VarHandle.storeStoreFence();
+		if (0 == count)
+		{
+			this.firstSeen[slot] = timeMicros;
+		} else
+		{
+			long cycle = timeMicros - this.lastSeen[slot];
+			if (1 == count)
+			{
+				this.minCycles[slot] = cycle;
+				this.maxCycles[slot] = cycle;
+			} else
+			{
+				this.minCycles[slot] = Math.min(this.minCycles[slot], cycle);
+				this.maxCycles[slot] = Math.max(this.maxCycles[slot], cycle);
+			}
+			// Welford: count cycles were seen so far including this one
+			double delta = cycle - this.meanCycles[slot];
+			double mean = this.meanCycles[slot] + delta / count;
+			this.meanCycles[slot] = mean;
+			this.squares[slot] += delta * (cycle - mean);
+		}
+		this.lastSeen[slot] = timeMicros;
+		this.lengths[slot * LENGTHS + Math.min(msg.getLength() & 0xFF, 8)]++;
+		this.counts[slot] = count + 1;
+		this.versions.set(slot, version + 2);
+		this.frames++;
+	}
+
+	/**
+	 * Copies the statistics of an ID.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param snapshot
+	 *            references the snapshot to fill.
+	 * @return number of frames received with the ID.
+	 */
+	public long snapshot(int id, boolean extendedID, Snapshot snapshot)
+	{
+		snapshot.id = id;
+		snapshot.extendedID = extendedID;
+		int slot = this.ids.find(id, extendedID);
+		if (slot < 0)
+		{
+			snapshot.count = 0;
+			snapshot.firstSeen = 0;
+			snapshot.lastSeen = 0;
+			snapshot.minCycle = 0;
+			snapshot.maxCycle = 0;
+			snapshot.meanCycle = 0;
+			snapshot.squares = 0;
+			Arrays.fill(snapshot.lengths, 0);
+			return 0;
+		}
+		this.copy(slot, snapshot);
+		return snapshot.count;
+	}
+
+	private void copy(int slot, Snapshot snapshot)
+	{
+		while (true)
+		{
+			long version = this.versions.get(slot);
+			if (0 != (version & 1))
+			{
+				Thread.onSpinWait();
+				continue;
+			}
+			snapshot.count = this.counts[slot];
+			snapshot.firstSeen = this.firstSeen[slot];
+			snapshot.lastSeen = this.lastSeen[slot];
+			snapshot.minCycle = this.minCycles[slot];
+			snapshot.maxCycle = this.maxCycles[slot];
+			snapshot.meanCycle = this.meanCycles[slot];
+			snapshot.squares = this.squares[slot];
+			System.arraycopy(this.lengths, slot * LENGTHS, snapshot.lengths,
+					0, LENGTHS);
+			VarHandle.loadLoadFence();
+			if (this.versions.get(slot) == version)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return number of frames analyzed.
+	 */
+	public long getFrames()
+	{
+		return this.frames;
+	}
+
+	/**
+	 * @return statistics of all IDs received so far, one line per ID.
+	 */
+	public String toStatisticsString()
+	{
+		StringBuilder result = new StringBuilder();
+		Snapshot snapshot = new Snapshot();
+		int size = this.ids.size();
+		for (int slot = 0; slot < size; slot++)
+		{
+			if (0 != this.versions.get(slot))
+			{
+				snapshot.id = this.ids.getId(slot);
+				snapshot.extendedID = IdTable.isExtendedID(slot);
+				this.copy(slot, snapshot);
+				result.append(snapshot).append('\n');
+			}
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Analyzed " + this.frames + " frames";
+	}
+}
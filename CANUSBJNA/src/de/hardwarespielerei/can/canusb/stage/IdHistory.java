@@ -0,0 +1,364 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.stage;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+import de.hardwarespielerei.can.canusb.util.MicroClock;
+
+/**
+ * Keeps the last frames of every ID in a ring of fixed depth per ID. All
+ * rings are slices of flat primitive arrays indexed by {@link IdTable}
+ * slots, so storing a received message doesn't allocate anything.
+ * 
+ * Readers, e. g. a UI thread, copy the ring of an ID into a pre-allocated
+ * {@link Snapshot}. Each ID has a version counter that is odd while the
+ * receiving thread writes, like a sequence lock: a reader retries until it
+ * copied the ring between two writes, so a snapshot is always consistent and
+ * the receiving thread never waits.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread.
+ * 
+ * @author gabriel
+ */
+public class IdHistory implements ReceiveCallback
+{
+	/**
+	 * Copy of the ring of one ID, oldest frame first. Reuse instances to read
+	 * without allocating.
+	 * 
+	 * @author gabriel
+	 */
+	public static class Snapshot
+	{
+		private final long[] times;
+		private final int[] timestamps;
+		private final byte[] flags;
+		private final byte[] lengths;
+		private final long[] data;
+		private int id;
+		private boolean extendedID;
+		private int size;
+		private long count;
+
+		/**
+		 * @param depth
+		 *            contains the depth of the history to read.
+		 */
+		public Snapshot(int depth)
+		{
+			this.times = new long[depth];
+			this.timestamps = new int[depth];
+			this.flags = new byte[depth];
+			this.lengths = new byte[depth];
+			this.data = new long[depth];
+		}
+
+		/**
+		 * @return message ID.
+		 */
+		public int getId()
+		{
+			return this.id;
+		}
+
+		/**
+		 * @return true if the ID is an extended ID, false otherwise.
+		 */
+		public boolean isExtendedID()
+		{
+			return this.extendedID;
+		}
+
+		/**
+		 * @return number of frames in this snapshot.
+		 */
+		public int size()
+		{
+			return this.size;
+		}
+
+		/**
+		 * @return number of frames received with the ID in total.
+		 */
+		public long getCount()
+		{
+			return this.count;
+		}
+
+		/**
+		 * @param index
+		 *            contains the index of a frame, 0 being the oldest.
+		 * @return receive time in microseconds since epoch.
+		 */
+		public long getTime(int index)
+		{
+			return this.times[this.check(index)];
+		}
+
+		/**
+		 * @param index
+		 *            contains the index of a frame, 0 being the oldest.
+		 * @return adapter timestamp in milliseconds.
+		 */
+		public int getTimestamp(int index)
+		{
+			return this.timestamps[this.check(index)];
+		}
+
+		/**
+		 * @param index
+		 *            contains the index of a frame, 0 being the oldest.
+		 * @return true if the frame is a remote frame, false otherwise.
+		 */
+		public boolean isRemoteFrame(int index)
+		{
+			return 0 != (this.flags[this.check(index)]
+					& NativeAccess.CANMSG_RTR);
+		}
+
+		/**
+		 * @param index
+		 *            contains the index of a frame, 0 being the oldest.
+		 * @return the reserver in the 6 LSB.
+		 */
+		public byte getReserver(int index)
+		{
+			return (byte) (this.flags[this.check(index)] & 0x3F);
+		}
+
+		/**
+		 * @param index
+		 *            contains the index of a frame, 0 being the oldest.
+		 * @return frame size.
+		 */
+		public byte getLength(int index)
+		{
+			return this.lengths[this.check(index)];
+		}
+
+		/**
+		 * @param index
+		 *            contains the index of a frame, 0 being the oldest.
+		 * @return data bytes, data byte 0 being the most significant byte.
+		 */
+		public long getData(int index)
+		{
+			return this.data[this.check(index)];
+		}
+
+		private int check(int index)
+		{
+			if (index < 0 || index >= this.size)
+			{
+				throw new IndexOutOfBoundsException("Frame " + index
+						+ " of " + this.size + "!");
+			}
+			return index;
+		}
+	}
+
+	private final int depth;
+	private final IdTable ids;
+	private final AtomicLongArray versions;
+	private final long[] counts;
+	private final long[] times;
+	private final int[] timestamps;
+	private final byte[] flags;
+	private final byte[] lengths;
+	private final long[] data;
+	private final MicroClock clock;
+
+	/**
+	 * @param depth
+	 *            contains the number of frames kept per ID.
+	 */
+	public IdHistory(int depth)
+	{
+		this(depth, ChangeDetector.DEFAULT_EXTENDED_IDS);
+	}
+
+	/**
+	 * @param depth
+	 *            contains the number of frames kept per ID.
+	 * @param maxExtendedIDs
+	 *            contains the maximum number of extended IDs kept. Messages
+	 *            with further extended IDs are ignored.
+	 */
+	public IdHistory(int depth, int maxExtendedIDs)
+	{
+		if (depth <= 0)
+		{
+			throw new IllegalArgumentException("Depth must be positive!");
+		}
+		this.depth = depth;
+		this.ids = new IdTable(maxExtendedIDs);
+		int capacity = this.ids.capacity();
+		this.versions = new AtomicLongArray(capacity);
+		this.counts = new long[capacity];
+		this.times = new long[capacity * depth];
+		this.timestamps = new int[capacity * depth];
+		this.flags = new byte[capacity * depth];
+		this.lengths = new byte[capacity * depth];
+		this.data = new long[capacity * depth];
+		this.clock = new MicroClock();
+	}
+
+	/**
+	 * @return number of frames kept per ID.
+	 */
+	public int getDepth()
+	{
+		return this.depth;
+	}
+
+	/**
+	 * Stores a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		int slot = this.ids.slot(msg.getId(), msg.isExtendedID());
+		if (slot < 0)
+		{
+			return;
+		}
+		long time = this.clock.now();
+		int length = Math.min(msg.getLength() & 0xFF, 8);
+		long packed = ResponseMatcher.payload(msg);
+		long count = this.counts[slot];
+		int i = slot * this.depth + (int) (count % this.depth);
+		long version = this.versions.get(slot);
+		// odd version: readers must retry...
+		this.versions.set(slot, version + 1);
+		VarHandle.storeStoreFence();
+		this.times[i] = time;
+		this.timestamps[i] = msg.getTimestamp();
+		this.flags[i] = ResponseMatcher.flags(msg);
+		this.lengths[i] = (byte) length;
+		this.data[i] = packed;
+		this.counts[slot] = count + 1;
+		this.versions.set(slot, version + 2);
+	}
+
+	/**
+	 * Copies the frames kept for an ID.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param snapshot
+	 *            references the snapshot to fill. Its depth may be smaller
+	 *            than the depth of this history to read only the latest
+	 *            frames.
+	 * @return number of frames copied, 0 if the ID wasn't received.
+	 */
+	public int snapshot(int id, boolean extendedID, Snapshot snapshot)
+	{
+		snapshot.id = id;
+		snapshot.extendedID = extendedID;
+		snapshot.size = 0;
+		snapshot.count = 0;
+		int slot = this.ids.find(id, extendedID);
+		if (slot < 0)
+		{
+			return 0;
+		}
+		int max = Math.min(this.depth, snapshot.times.length);
+		while (true)
+		{
+			long version = this.versions.get(slot);
+			if (0 != (version & 1))
+			{
+				Thread.onSpinWait();
+				continue;
+			}
+			long count = this.counts[slot];
+			int size = (int) Math.min(count, max);
+			for (int k = 0; k < size; k++)
+			{
+				int i = slot * this.depth
+						+ (int) ((count - size + k) % this.depth);
+				snapshot.times[k] = this.times[i];
+				snapshot.timestamps[k] = this.timestamps[i];
+				snapshot.flags[k] = this.flags[i];
+				snapshot.lengths[k] = this.lengths[i];
+				snapshot.data[k] = this.data[i];
+			}
+			VarHandle.loadLoadFence();
+			if (this.versions.get(slot) == version)
+			{
+				snapshot.size = size;
+				snapshot.count = count;
+				return size;
+			}
+		}
+	}
+
+	/**
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @return number of frames received with the ID.
+	 */
+	public long getCount(int id, boolean extendedID)
+	{
+		int slot = this.ids.find(id, extendedID);
+		// the version counts two per frame...
+		return slot < 0 ? 0 : this.versions.get(slot) / 2;
+	}
+
+	/**
+	 * @return keys of all IDs received so far, extended IDs having the most
+	 *         significant bit set.
+	 */
+	public int[] getKeys()
+	{
+		int size = this.ids.size();
+		int n = 0;
+		int[] keys = new int[size];
+		for (int slot = 0; slot < size; slot++)
+		{
+			if (0 != this.versions.get(slot))
+			{
+				int id = this.ids.getId(slot);
+				keys[n++] = ResponseMatcher.key(id, IdTable.isExtendedID(slot));
+			}
+		}
+		return Arrays.copyOf(keys, n);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.stage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+
+/**
+ * Maps CAN IDs to dense slot numbers for per-ID tables of primitive arrays.
+ * Standard IDs are their own slot 0..2047, extended IDs get the next free
+ * slot from 2048 on when first seen, looked up in an open addressing hash
+ * table. The number of extended IDs is fixed, so all tables can be
+ * pre-allocated with {@link #capacity()} entries.
+ * 
+ * Only one thread may add IDs by {@link #slot(int, boolean)}; any thread may
+ * look them up by {@link #find(int, boolean)}.
+ * 
+ * @author gabriel
+ */
+public class IdTable
+{
+	/**
+	 * Number of standard IDs, i. e. the first slot of extended IDs.
+	 */
+	public static final int STANDARD_IDS = 0x800;
+
+	private final int maxExtendedIDs;
+	private final int mask;
+	private final AtomicIntegerArray keys;
+	private final int[] slots;
+	private final int[] extendedIDs;
+	private volatile int extendedCount;
+
+	/**
+	 * @param maxExtendedIDs
+	 *            contains the maximum number of extended IDs.
+	 */
+	public IdTable(int maxExtendedIDs)
+	{
+		if (maxExtendedIDs < 0)
+		{
+			throw new IllegalArgumentException(
+					"Number of extended IDs must not be negative!");
+		}
+		int size = Integer.highestOneBit(Math.max(1, 2 * maxExtendedIDs)) << 1;
+		this.maxExtendedIDs = maxExtendedIDs;
+		this.mask = size - 1;
+		this.keys = new AtomicIntegerArray(size);
+		this.slots = new int[size];
+		this.extendedIDs = new int[maxExtendedIDs];
+	}
+
+	/**
+	 * @return number of slots, i. e. the size of per-ID tables.
+	 */
+	public int capacity()
+	{
+		return STANDARD_IDS + this.maxExtendedIDs;
+	}
+
+	/**
+	 * @return number of slots in use: all standard IDs and the extended IDs
+	 *         seen so far.
+	 */
+	public int size()
+	{
+		return STANDARD_IDS + this.extendedCount;
+	}
+
+	/**
+	 * Looks up the slot of an ID, adding it if necessary.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @return slot of the ID or -1 if the ID is invalid or there is no slot
+	 *         left.
+	 */
+	public int slot(int id, boolean extendedID)
+	{
+		if (!extendedID)
+		{
+			return id >= 0 && id < STANDARD_IDS ? id : -1;
+		}
+		int key = ResponseMatcher.key(id, true);
+		int h = ResponseMatcher.hash(key) & this.mask;
+		int k;
+		while (0 != (k = this.keys.get(h)))
+		{
+			if (k == key)
+			{
+				return this.slots[h];
+			}
+			h = (h + 1) & this.mask;
+		}
+		int count = this.extendedCount;
+		if (count == this.maxExtendedIDs)
+		{
+			return -1;
+		}
+		this.extendedIDs[count] = id;
+		this.slots[h] = STANDARD_IDS + count;
+		// publish the slot before the key...
+		this.keys.set(h, key);
+		this.extendedCount = count + 1;
+		return STANDARD_IDS + count;
+	}
+
+	/**
+	 * Looks up the slot of an ID without adding it.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @return slot of the ID or -1 if the ID wasn't seen.
+	 */
+	public int find(int id, boolean extendedID)
+	{
+		if (!extendedID)
+		{
+			return id >= 0 && id < STANDARD_IDS ? id : -1;
+		}
+		int key = ResponseMatcher.key(id, true);
+		int h = ResponseMatcher.hash(key) & this.mask;
+		int k;
+		while (0 != (k = this.keys.get(h)))
+		{
+			if (k == key)
+			{
+				return this.slots[h];
+			}
+			h = (h + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param slot
+	 *            contains a slot in use.
+	 * @return message ID of the slot.
+	 */
+	public int getId(int slot)
+	{
+		return slot < STANDARD_IDS ? slot : this.extendedIDs[slot
+				- STANDARD_IDS];
+	}
+
+	/**
+	 * @param slot
+	 *            contains a slot in use.
+	 * @return true if the slot belongs to an extended ID, false otherwise.
+	 */
+	public static boolean isExtendedID(int slot)
+	{
+		return slot >= STANDARD_IDS;
+	}
+}
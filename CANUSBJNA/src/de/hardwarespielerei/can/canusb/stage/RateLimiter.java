@@ -0,0 +1,266 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.stage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+
+/**
+ * Limits the messages forwarded per ID to a maximum rate and/or to every Nth
+ * message, e. g. to pass 1 ms wheel speed frames at 10 Hz. Rates are checked
+ * against the adapter timestamps of the messages, so the channel must be
+ * opened with {@link de.hardwarespielerei.can.canusb.Flag#Timestamp}. The
+ * state of every ID is kept in primitive arrays indexed by {@link IdTable}
+ * slots. Suppressed messages are counted per ID.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread. Configure limits
+ * before receiving; counts may be read by any thread.
+ * 
+ * @author gabriel
+ */
+public class RateLimiter implements ReceiveCallback
+{
+	private final ReceiveCallback target;
+	private final IdTable ids;
+	private final int[] intervals;
+	private final int[] everyNth;
+	private final int[] lastTimestamps;
+	private final int[] counters;
+	private final boolean[] seen;
+	private final AtomicLongArray suppressed;
+	private volatile long forwarded;
+	private volatile long suppressedTotal;
+
+	/**
+	 * Constructs a limiter forwarding all messages until limits are set.
+	 * 
+	 * @param target
+	 *            references the call back to forward messages to.
+	 */
+	public RateLimiter(ReceiveCallback target)
+	{
+		this(target, ChangeDetector.DEFAULT_EXTENDED_IDS);
+	}
+
+	/**
+	 * Constructs a limiter forwarding all messages until limits are set.
+	 * 
+	 * @param target
+	 *            references the call back to forward messages to.
+	 * @param maxExtendedIDs
+	 *            contains the maximum number of extended IDs tracked.
+	 *            Messages with further extended IDs are always forwarded.
+	 */
+	public RateLimiter(ReceiveCallback target, int maxExtendedIDs)
+	{
+		this.target = target;
+		this.ids = new IdTable(maxExtendedIDs);
+		int capacity = this.ids.capacity();
+		this.intervals = new int[capacity];
+		this.everyNth = new int[capacity];
+		Arrays.fill(this.everyNth, 1);
+		this.lastTimestamps = new int[capacity];
+		this.counters = new int[capacity];
+		this.seen = new boolean[capacity];
+		this.suppressed = new AtomicLongArray(capacity);
+	}
+
+	/**
+	 * Sets the limits of all IDs.
+	 * 
+	 * @param intervalMillis
+	 *            contains the minimum time between messages forwarded in
+	 *            milliseconds, 0 for no limit.
+	 * @param nth
+	 *            contains N to forward every Nth message only, 1 for all.
+	 */
+	public void setDefaultLimit(int intervalMillis, int nth)
+	{
+		check(intervalMillis, nth);
+		Arrays.fill(this.intervals, intervalMillis);
+		Arrays.fill(this.everyNth, nth);
+	}
+
+	/**
+	 * Sets the limits of an ID.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param intervalMillis
+	 *            contains the minimum time between messages forwarded in
+	 *            milliseconds, 0 for no limit.
+	 * @param nth
+	 *            contains N to forward every Nth message only, 1 for all.
+	 * @throws IllegalArgumentException
+	 *             if a limit or the ID is invalid or there are too many
+	 *             extended IDs.
+	 */
+	public void setLimit(int id, boolean extendedID, int intervalMillis,
+			int nth)
+	{
+		check(intervalMillis, nth);
+		int slot = this.ids.slot(id, extendedID);
+		if (slot < 0)
+		{
+			throw new IllegalArgumentException("Can't track ID 0x"
+					+ Integer.toHexString(id) + "!");
+		}
+		this.intervals[slot] = intervalMillis;
+		this.everyNth[slot] = nth;
+	}
+
+	/**
+	 * Sets the maximum rate of an ID.
+	 * 
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @param hertz
+	 *            contains the maximum number of messages forwarded per
+	 *            second, at most 1000 because of the timestamp resolution.
+	 */
+	public void setMaxRate(int id, boolean extendedID, double hertz)
+	{
+		this.setLimit(id, extendedID, toInterval(hertz), 1);
+	}
+
+	/**
+	 * @param hertz
+	 *            contains a maximum rate in messages per second.
+	 * @return minimum interval in milliseconds.
+	 */
+	public static int toInterval(double hertz)
+	{
+		if (!(hertz > 0))
+		{
+			throw new IllegalArgumentException("Rate must be positive!");
+		}
+		return (int) Math.min(Integer.MAX_VALUE, Math.ceil(1000 / hertz));
+	}
+
+	private static void check(int intervalMillis, int nth)
+	{
+		if (intervalMillis < 0 || nth < 1)
+		{
+			throw new IllegalArgumentException("Invalid limit!");
+		}
+	}
+
+	/**
+	 * Forwards a received message if its ID's limits allow.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		int slot = this.ids.slot(msg.getId(), msg.isExtendedID());
+		if (slot >= 0)
+		{
+			int count = this.counters[slot];
+			this.counters[slot] = count + 1 >= this.everyNth[slot] ? 0
+					: count + 1;
+			int timestamp = msg.getTimestamp();
+			if (0 != count
+					|| (this.seen[slot] && timestamp
+							- this.lastTimestamps[slot] < this.intervals[slot]))
+			{
+				// single writer, so no atomic increment needed...
+				this.suppressed.lazySet(slot, this.suppressed.get(slot) + 1);
+				this.suppressedTotal++;
+				return;
+			}
+			this.seen[slot] = true;
+			this.lastTimestamps[slot] = timestamp;
+		}
+		this.forwarded++;
+		this.target.callback(msg);
+	}
+
+	/**
+	 * @param id
+	 *            contains the message ID.
+	 * @param extendedID
+	 *            contains the extended ID flag.
+	 * @return number of messages with the ID suppressed.
+	 */
+	public long getSuppressed(int id, boolean extendedID)
+	{
+		int slot = this.ids.find(id, extendedID);
+		return slot < 0 ? 0 : this.suppressed.get(slot);
+	}
+
+	/**
+	 * @return number of messages suppressed.
+	 */
+	public long getSuppressed()
+	{
+		return this.suppressedTotal;
+	}
+
+	/**
+	 * @return number of messages forwarded.
+	 */
+	public long getForwarded()
+	{
+		return this.forwarded;
+	}
+
+	/**
+	 * @return suppressed messages per ID, for all IDs with any suppressed.
+	 */
+	public String toSuppressedString()
+	{
+		StringBuilder result = new StringBuilder();
+		int size = this.ids.size();
+		for (int slot = 0; slot < size; slot++)
+		{
+			long n = this.suppressed.get(slot);
+			if (n > 0)
+			{
+				result.append("0x")
+						.append(Integer.toHexString(this.ids.getId(slot)))
+						.append(IdTable.isExtendedID(slot) ? " (extended)"
+								: "").append(": ").append(n).append('\n');
+			}
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Forwarded " + this.forwarded + ", suppressed "
+				+ this.suppressedTotal;
+	}
+}
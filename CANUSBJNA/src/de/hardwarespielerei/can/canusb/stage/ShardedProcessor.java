@@ -0,0 +1,238 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.stage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+
+/**
+ * Processes received messages on several worker threads. Messages are sharded
+ * by their ID: all messages with the same ID are handled by the same worker in
+ * the order they were received, messages with different IDs are handled in
+ * parallel.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread. If a shard's queue is
+ * full, the receiving thread waits for the worker to catch up. Exceptions
+ * thrown by the handler are counted, see {@link #getErrors()}, and the worker
+ * continues with the next message.
+ * 
+ * @author gabriel
+ */
+public class ShardedProcessor implements ReceiveCallback
+{
+	private class Shard extends Thread
+	{
+		private final ReceiveCallback handler;
+		private final CANMessage[] queue;
+		private final int mask;
+		private final AtomicLong head = new AtomicLong();
+		private final AtomicLong tail = new AtomicLong();
+		private volatile boolean waiting;
+		private volatile boolean running = true;
+
+		private Shard(int index, int capacity, ReceiveCallback handler)
+		{
+			super("CANUSB shard " + index);
+			this.handler = handler;
+			this.queue = new CANMessage[capacity];
+			this.mask = capacity - 1;
+			this.setDaemon(true);
+		}
+
+		private void put(CANMessage msg)
+		{
+			long t = this.tail.get();
+			while (t - this.head.get() == this.queue.length)
+			{
+				// queue is full, wait for the worker...
+				Thread.yield();
+			}
+			this.queue[(int) (t & this.mask)] = msg;
+			this.tail.set(t + 1);
+			if (this.waiting)
+			{
+				LockSupport.unpark(this);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				long h = this.head.get();
+				if (h == this.tail.get())
+				{
+					if (!this.running)
+					{
+						break;
+					}
+					this.waiting = true;
+					if (h == this.tail.get() && this.running)
+					{
+						LockSupport.park(this);
+					}
+					this.waiting = false;
+					continue;
+				}
+				int index = (int) (h & this.mask);
+				CANMessage msg = this.queue[index];
+				this.queue[index] = null;
+				this.head.set(h + 1);
+				try
+				{
+					this.handler.callback(msg);
+				} catch (RuntimeException e)
+				{
+					ShardedProcessor.this.errors.increment();
+					ShardedProcessor.this.lastError = e;
+				}
+			}
+		}
+	}
+
+	private final Shard[] shards;
+	private final LongAdder errors = new LongAdder();
+	private volatile RuntimeException lastError;
+
+	/**
+	 * Constructs and starts a processor.
+	 * 
+	 * @param shards
+	 *            contains the number of worker threads.
+	 * @param capacity
+	 *            contains the queue capacity of each worker. It is rounded up
+	 *            to a power of two.
+	 * @param handler
+	 *            references the handler called by the workers. It is called
+	 *            concurrently for messages with different IDs.
+	 */
+	public ShardedProcessor(int shards, int capacity, ReceiveCallback handler)
+	{
+		if (shards <= 0 || capacity <= 0)
+		{
+			throw new IllegalArgumentException(
+					"Shards and capacity must be positive!");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{
+			size <<= 1;
+		}
+		this.shards = new Shard[shards];
+		for (int i = 0; i < shards; i++)
+		{
+			this.shards[i] = new Shard(i, size, handler);
+			this.shards[i].start();
+		}
+	}
+
+	/**
+	 * Queues a message for its worker.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		this.shards[shardOf(msg, this.shards.length)].put(msg);
+	}
+
+	/**
+	 * @param msg
+	 *            references a CAN message.
+	 * @param shards
+	 *            contains the number of shards.
+	 * @return shard the message belongs to.
+	 */
+	public static int shardOf(CANMessage msg, int shards)
+	{
+		int key = ResponseMatcher.key(msg);
+		// spread consecutive IDs over all shards...
+		return Math.floorMod(key * 0x9E3779B9 >>> 7, shards);
+	}
+
+	/**
+	 * @return number of messages whose handler threw an exception.
+	 */
+	public long getErrors()
+	{
+		return this.errors.sum();
+	}
+
+	/**
+	 * @return last exception thrown by the handler or NULL.
+	 */
+	public RuntimeException getLastError()
+	{
+		return this.lastError;
+	}
+
+	/**
+	 * @return number of shards.
+	 */
+	public int getShards()
+	{
+		return this.shards.length;
+	}
+
+	/**
+	 * @param shard
+	 *            contains the shard index.
+	 * @return number of messages queued but not yet handled by the shard.
+	 */
+	public int getBacklog(int shard)
+	{
+		Shard s = this.shards[shard];
+		return (int) (s.tail.get() - s.head.get());
+	}
+
+	/**
+	 * Stops the workers after they handled all queued messages and waits for
+	 * them to terminate.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public void close() throws InterruptedException
+	{
+		for (Shard shard : this.shards)
+		{
+			shard.running = false;
+			LockSupport.unpark(shard);
+		}
+		for (Shard shard : this.shards)
+		{
+			shard.join();
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.hardwarespielerei.can.canusb.AcceptanceCode;
+import de.hardwarespielerei.can.canusb.AcceptanceMask;
+import de.hardwarespielerei.can.canusb.AdapterIterator;
+import de.hardwarespielerei.can.canusb.Bitrate;
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.CANUSBException;
+import de.hardwarespielerei.can.canusb.Channel;
+import de.hardwarespielerei.can.canusb.Flag;
+import de.hardwarespielerei.can.canusb.Library;
+import de.hardwarespielerei.can.canusb.NativeMessage;
+import de.hardwarespielerei.can.canusb.NoMessageException;
+import de.hardwarespielerei.can.canusb.NotOpenException;
+
+/**
+ * Stress test of one reader, several writers and a status poller sharing a
+ * channel to a {@link FakeNativeAccess}. Runs the same load twice: relying on
+ * the locking of {@link Channel} and wrapping every call into one global lock.
+ * Finally checks that an invalid message sent fails alone and leaves the
+ * channel working, and that a closed channel refuses receiving and sending.
+ * 
+ * @author gabriel
+ */
+public class ChannelStressTest
+{
+	private static final int FRAMES = 20000;
+	private static final int WRITERS = 4;
+	private static final int FRAMES_PER_WRITER = FRAMES / WRITERS;
+	private static final long CALL_NANOS = 20000;
+
+	private static final Object GLOBAL_LOCK = new Object();
+
+	private static volatile boolean running;
+
+	private static class OversizedMessage implements CANMessage
+	{
+		private final byte[] data = new byte[9];
+
+		@Override
+		public int getId()
+		{
+			return 0x100;
+		}
+
+		@Override
+		public int getTimestamp()
+		{
+			return 0;
+		}
+
+		@Override
+		public boolean isExtendedID()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isRemoteFrame()
+		{
+			return false;
+		}
+
+		@Override
+		public byte getReserver()
+		{
+			return 0;
+		}
+
+		@Override
+		public byte getLength()
+		{
+			return (byte) this.data.length;
+		}
+
+		@Override
+		public byte[] getData()
+		{
+			return this.data;
+		}
+	}
+
+	/**
+	 * Runs the stress test without CANUSB hardware.
+	 * 
+	 * @param args
+	 *            references command line arguments.
+	 * @throws Exception
+	 *             if the test fails.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		System.out.println("################################");
+		System.out.println("# CANUSB Channel Stress Test   #");
+		System.out.println("################################");
+		System.out.println();
+		boolean ok = true;
+		for (int round = 0; round < 2; round++)
+		{
+			// first round warms up...
+			long channelMillis = run(false, round > 0);
+			long globalMillis = run(true, round > 0);
+			if (round > 0)
+			{
+				System.out.println("Channel locks: " + channelMillis + " ms");
+				System.out.println("Global lock:   " + globalMillis + " ms");
+				ok = channelMillis < globalMillis;
+			}
+		}
+		if (!ok)
+		{
+			System.out.println("FAILED: no speed up!");
+			return;
+		}
+		runOversized();
+		System.out.println("PASSED");
+	}
+
+	private static void runOversized() throws Exception
+	{
+		FakeNativeAccess fake = new FakeNativeAccess(1, 1, CALL_NANOS);
+		Library.load(fake);
+		try
+		{
+			Flag[] flags = { Flag.Timestamp };
+			Channel channel = new AdapterIterator(Bitrate.Bitrate1Mbps).next()
+					.openChannel(Bitrate.Bitrate1Mbps, AcceptanceCode.AcceptAll,
+							AcceptanceMask.AcceptAll, flags);
+			try
+			{
+				try
+				{
+					channel.send(new OversizedMessage());
+					throw new IllegalStateException(
+							"Oversized message was sent!");
+				} catch (IllegalArgumentException e)
+				{
+					System.out.println("Oversized message rejected: "
+							+ e.getMessage());
+				}
+				// the I/O thread must still serve the channel...
+				channel.send(new NativeMessage(0x100, 0, false, false,
+						(byte) 0, (byte) 5, new byte[] { 0, 0, 0, 0, 0 }));
+				if (null == channel.receive(1, TimeUnit.SECONDS)
+						|| 1 != fake.getWritten())
+				{
+					throw new IllegalStateException(
+							"Channel broken after oversized message!");
+				}
+			} finally
+			{
+				channel.close();
+			}
+			try
+			{
+				channel.receive(1, TimeUnit.SECONDS);
+				throw new IllegalStateException("Closed channel received!");
+			} catch (NotOpenException e)
+			{
+				System.out.println("Closed channel refused: " + e.getMessage());
+			}
+			try
+			{
+				channel.send(new NativeMessage(0x100, 0, false, false,
+						(byte) 0, (byte) 5, new byte[] { 0, 0, 0, 0, 1 }));
+				throw new IllegalStateException("Closed channel sent!");
+			} catch (NotOpenException e)
+			{
+				System.out.println("Closed channel refused: " + e.getMessage());
+			}
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+			{
+				if (thread.getName().startsWith("CANUSB I/O"))
+				{
+					throw new IllegalStateException(thread.getName()
+							+ " still running!");
+				}
+			}
+		} finally
+		{
+			Library.unload();
+		}
+	}
+
+	private static long run(final boolean globalLock, boolean report)
+			throws Exception
+	{
+		final FakeNativeAccess fake = new FakeNativeAccess(FRAMES, WRITERS,
+				CALL_NANOS);
+		Library.load(fake);
+		try
+		{
+			Flag[] flags = { Flag.Timestamp };
+			final Channel channel = new AdapterIterator(Bitrate.Bitrate1Mbps)
+					.next().openChannel(Bitrate.Bitrate1Mbps,
+							AcceptanceCode.AcceptAll, AcceptanceMask.AcceptAll,
+							flags);
+			final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			final int[] received = new int[1];
+			List<Thread> threads = new ArrayList<Thread>();
+			threads.add(new Thread(() -> {
+				try
+				{
+					int expected = 0;
+					while (expected < FRAMES)
+					{
+						CANMessage msg;
+						try
+						{
+							if (globalLock)
+							{
+								synchronized (GLOBAL_LOCK)
+								{
+									msg = channel.read();
+								}
+							} else
+							{
+								msg = channel.read();
+							}
+						} catch (NoMessageException e)
+						{
+							continue;
+						}
+						if (msg.getTimestamp() != expected++)
+						{
+							throw new IllegalStateException("Lost frame "
+									+ (expected - 1) + "!");
+						}
+					}
+					received[0] = expected;
+				} catch (Exception e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}, "reader"));
+			for (int w = 0; w < WRITERS; w++)
+			{
+				final byte writer = (byte) w;
+				threads.add(new Thread(() -> {
+					try
+					{
+						for (int i = 0; i < FRAMES_PER_WRITER; i++)
+						{
+							CANMessage msg = new NativeMessage(0x100 + writer,
+									0, false, false, (byte) 0, (byte) 5,
+									new byte[] { writer, (byte) (i >>> 24),
+											(byte) (i >>> 16),
+											(byte) (i >>> 8), (byte) i });
+							if (globalLock)
+							{
+								synchronized (GLOBAL_LOCK)
+								{
+									channel.write(msg);
+								}
+							} else
+							{
+								channel.write(msg);
+							}
+						}
+					} catch (CANUSBException e)
+					{
+						failure.compareAndSet(null, e);
+					}
+				}, "writer " + w));
+			}
+			Thread poller = new Thread(() -> {
+				try
+				{
+					while (running)
+					{
+						if (globalLock)
+						{
+							synchronized (GLOBAL_LOCK)
+							{
+								channel.getStatus();
+							}
+						} else
+						{
+							channel.getStatus();
+						}
+						Thread.sleep(1);
+					}
+				} catch (Exception e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}, "status poller");
+
+			running = true;
+			long start = System.nanoTime();
+			poller.start();
+			for (Thread thread : threads)
+			{
+				thread.start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+			long millis = (System.nanoTime() - start) / 1000000;
+			running = false;
+			poller.join();
+			channel.close();
+
+			if (null != failure.get())
+			{
+				throw failure.get();
+			}
+			if (received[0] != FRAMES || fake.getWritten() != FRAMES
+					|| 0 != fake.getOutOfSequence())
+			{
+				throw new IllegalStateException("Received " + received[0]
+						+ ", written " + fake.getWritten() + ", "
+						+ fake.getOutOfSequence() + " out of sequence!");
+			}
+			if (report)
+			{
+				System.out.println((globalLock ? "Global lock" : "Channel locks")
+						+ ": received " + received[0] + ", written "
+						+ fake.getWritten() + ", no frame lost.");
+			}
+			return millis;
+		} finally
+		{
+			Library.unload();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import de.hardwarespielerei.can.canusb.Bitrate;
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.NativeMessage;
+import de.hardwarespielerei.can.canusb.capture.CaptureFrame;
+import de.hardwarespielerei.can.canusb.capture.CaptureHeader;
+import de.hardwarespielerei.can.canusb.capture.CaptureReader;
+import de.hardwarespielerei.can.canusb.capture.CaptureWriter;
+import de.hardwarespielerei.can.canusb.capture.CompressedCaptureReader;
+import de.hardwarespielerei.can.canusb.capture.CompressedCaptureWriter;
+import de.hardwarespielerei.can.canusb.capture.DecodedBlock;
+
+/**
+ * Round trip test of {@link CompressedCaptureWriter} and
+ * {@link CompressedCaptureReader}: compresses captures covering an empty
+ * capture, block boundaries, extended IDs, remote frames, short frames,
+ * reserver bits and full ID and payload dictionaries, decodes them again and
+ * compares every field with the raw capture. Prints the compression ratio and
+ * the decode speed of a bus-like recording. Runs without CANUSB hardware.
+ * 
+ * @author gabriel
+ */
+public class CompressionRoundTripTest
+{
+	private static final int BLOCK = CompressedCaptureWriter.BLOCK_FRAMES;
+	private static final long START_MILLIS = 1700000000000L;
+	private static final int BUS_FRAMES = 1000000;
+	private static final int DECODE_ROUNDS = 5;
+
+	private static interface Frames
+	{
+		CANMessage get(int index);
+	}
+
+	/**
+	 * Runs the round trip test.
+	 * 
+	 * @param args
+	 *            references command line arguments.
+	 * @throws IOException
+	 *             if files can't be written or read.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("################################");
+		System.out.println("# CANUSB Compression Test      #");
+		System.out.println("################################");
+		System.out.println();
+		Path dir = Files.createTempDirectory("canusb");
+		boolean ok = true;
+
+		ok &= check(dir, "empty", 0, i -> null);
+		final Random random = new Random(4711);
+		for (int frames : new int[] { 1, BLOCK - 1, BLOCK, BLOCK + 1,
+				3 * BLOCK })
+		{
+			ok &= check(dir, "random " + frames, frames, i -> {
+				boolean extended = random.nextBoolean();
+				boolean remote = 0 == random.nextInt(8);
+				int length = random.nextInt(9);
+				byte[] data = new byte[length];
+				if (!remote)
+				{
+					random.nextBytes(data);
+				}
+				return new NativeMessage(random.nextInt(extended ? 0x20000000
+						: 0x800), i, extended, remote,
+						(byte) random.nextInt(0x40), (byte) length, data);
+			});
+		}
+		// every ID of a block is new, more than 256 IDs per block
+		ok &= check(dir, "full ID dictionary", 2 * BLOCK, i -> {
+			return new NativeMessage(0x1000000 + i, i, true, false, (byte) 0,
+					(byte) 2, new byte[] { (byte) i, (byte) (i >>> 8) });
+		});
+		// payloads repeat across IDs, more of them than the dictionary holds
+		final long[] pool = new long[2000];
+		for (int p = 0; p < pool.length; p++)
+		{
+			pool[p] = random.nextLong();
+		}
+		ok &= check(dir, "full payload dictionary", 2 * BLOCK, i -> {
+			long payload = pool[random.nextInt(pool.length)];
+			byte[] data = new byte[8];
+			for (int b = 0; b < 8; b++)
+			{
+				data[b] = (byte) (payload >>> (56 - 8 * b));
+			}
+			return new NativeMessage(random.nextInt(0x800), i, false, false,
+					(byte) 0, (byte) 8, data);
+		});
+		ok &= bus(dir);
+		System.out.println(ok ? "PASSED" : "FAILED");
+	}
+
+	private static Path write(Path dir, String name, int frames,
+			Frames source, long cycleMicros) throws IOException
+	{
+		Path capture = dir.resolve(name.replace(' ', '_') + ".cap");
+		CaptureHeader header = new CaptureHeader("TEST",
+				Bitrate.Bitrate500kbps, 0, -1, 0, START_MILLIS);
+		try (CaptureWriter writer = new CaptureWriter(capture, header))
+		{
+			for (int i = 0; i < frames; i++)
+			{
+				writer.write(source.get(i), START_MILLIS * 1000 + cycleMicros
+						* i);
+			}
+		}
+		return capture;
+	}
+
+	private static boolean check(Path dir, String name, int frames,
+			Frames source) throws IOException
+	{
+		Path capture = write(dir, name, frames, source, 137);
+		return compare(name, capture, compress(capture));
+	}
+
+	private static Path compress(Path capture) throws IOException
+	{
+		Path compressed = capture.resolveSibling(capture.getFileName()
+				+ ".z");
+		CompressedCaptureWriter.compress(capture, compressed);
+		return compressed;
+	}
+
+	private static boolean compare(String name, Path capture, Path compressed)
+			throws IOException
+	{
+		int mismatches = 0;
+		long frames;
+		try (CaptureReader raw = new CaptureReader(capture);
+				CompressedCaptureReader reader = new CompressedCaptureReader(
+						compressed))
+		{
+			frames = raw.getFrameCount();
+			if (reader.getFrameCount() != frames)
+			{
+				System.out.println(name + ": " + reader.getFrameCount()
+						+ " frames instead of " + frames + "!");
+				return false;
+			}
+			CaptureFrame expected = new CaptureFrame();
+			DecodedBlock decoded = new DecodedBlock();
+			long index = 0;
+			for (int block = 0; block < reader.getBlockCount(); block++)
+			{
+				reader.decode(block, decoded);
+				for (int i = 0; i < decoded.getSize(); i++, index++)
+				{
+					raw.get(index, expected);
+					DecodedBlock.Frame actual = decoded.get(i);
+					if (expected.getTime() != actual.getTime()
+							|| expected.getTimestamp() != actual.getTimestamp()
+							|| expected.getId() != actual.getId()
+							|| expected.isExtendedID() != actual.isExtendedID()
+							|| expected.isRemoteFrame() != actual.isRemoteFrame()
+							|| expected.getReserver() != actual.getReserver()
+							|| expected.getLength() != actual.getLength()
+							|| expected.getDataLong() != actual.getDataLong())
+					{
+						if (mismatches++ < 3)
+						{
+							System.out.println(name + " frame " + index
+									+ ": expected " + expected + ", got "
+									+ actual);
+						}
+					}
+				}
+			}
+			if (index != frames)
+			{
+				System.out.println(name + ": decoded " + index
+						+ " frames instead of " + frames + "!");
+				return false;
+			}
+		}
+		System.out.println(name + ": " + frames + " frames, "
+				+ ratio(capture, compressed) + ", " + mismatches
+				+ " mismatches.");
+		return 0 == mismatches;
+	}
+
+	private static String ratio(Path capture, Path compressed)
+			throws IOException
+	{
+		return String.format("%d -> %d bytes (%.1fx)", Files.size(capture),
+				Files.size(compressed), (double) Files.size(capture)
+						/ Files.size(compressed));
+	}
+
+	private static boolean bus(Path dir) throws IOException
+	{
+		// 100 periodic IDs, counters and slowly changing signals
+		final Random random = new Random(42);
+		final int[] ids = new int[100];
+		final byte[][] payloads = new byte[ids.length][8];
+		for (int k = 0; k < ids.length; k++)
+		{
+			ids[k] = 0x100 + 7 * k;
+			random.nextBytes(payloads[k]);
+		}
+		Path capture = write(dir, "bus", BUS_FRAMES, i -> {
+			int k = i % ids.length;
+			byte[] data = payloads[k];
+			data[0]++;
+			if (0 == random.nextInt(4))
+			{
+				data[1 + random.nextInt(7)] += random.nextInt(3) - 1;
+			}
+			boolean extended = k >= 90;
+			return new NativeMessage(extended ? ids[k] << 12 : ids[k], i / 2,
+					extended, false, (byte) 0, (byte) (k < 10 ? 4 : 8), data);
+		}, 500);
+		long start = System.nanoTime();
+		Path compressed = compress(capture);
+		long compressNanos = System.nanoTime() - start;
+		boolean ok = compare("bus", capture, compressed);
+
+		long best = Long.MAX_VALUE;
+		long sink = 0;
+		try (CompressedCaptureReader reader = new CompressedCaptureReader(
+				compressed))
+		{
+			DecodedBlock decoded = new DecodedBlock();
+			for (int round = 0; round < DECODE_ROUNDS; round++)
+			{
+				start = System.nanoTime();
+				for (int block = 0; block < reader.getBlockCount(); block++)
+				{
+					reader.decode(block, decoded);
+					sink += decoded.getTime(decoded.getSize() - 1);
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+		}
+		long rawBytes = Files.size(capture);
+		System.out.println(String.format(
+				"bus: compressed %.0f MB/s, decoded %.0f MB/s of raw capture"
+						+ " (%.1f M frames/s)%s", rawBytes * 1000.0
+						/ compressNanos, rawBytes * 1000.0 / best, BUS_FRAMES
+						* 1000.0 / best, 0 == sink ? "" : "."));
+		return ok;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import de.hardwarespielerei.can.canusb.Bitrate;
+import de.hardwarespielerei.can.canusb.NativeMessage;
+import de.hardwarespielerei.can.canusb.capture.AscReader;
+import de.hardwarespielerei.can.canusb.capture.AscWriter;
+import de.hardwarespielerei.can.canusb.capture.CandumpReader;
+import de.hardwarespielerei.can.canusb.capture.CandumpWriter;
+import de.hardwarespielerei.can.canusb.capture.CaptureFrame;
+import de.hardwarespielerei.can.canusb.capture.CaptureHeader;
+import de.hardwarespielerei.can.canusb.capture.CaptureReader;
+import de.hardwarespielerei.can.canusb.capture.CaptureWriter;
+import de.hardwarespielerei.can.canusb.capture.PcapReader;
+import de.hardwarespielerei.can.canusb.capture.PcapWriter;
+
+/**
+ * Round trip test of the capture exports: exports a capture with standard,
+ * extended and remote frames of all lengths to candump, ASC, PCAP and PCAPNG,
+ * imports each export again and compares the frames. Runs without CANUSB
+ * hardware.
+ * 
+ * @author gabriel
+ */
+public class ExportRoundTripTest
+{
+	private static final int FRAMES = 20000;
+	private static final long START_MILLIS = 1700000000000L;
+
+	private static interface Format
+	{
+		long roundTrip(Path capture, Path export, Path back)
+				throws IOException;
+	}
+
+	/**
+	 * Runs the round trip test.
+	 * 
+	 * @param args
+	 *            references command line arguments.
+	 * @throws IOException
+	 *             if files can't be written or read.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		System.out.println("################################");
+		System.out.println("# CANUSB Export Round Trip     #");
+		System.out.println("################################");
+		System.out.println();
+		Path dir = Files.createTempDirectory("canusb");
+		Path capture = dir.resolve("frames.cap");
+		CaptureHeader header = new CaptureHeader("TEST",
+				Bitrate.Bitrate1Mbps, 0, -1, 0, START_MILLIS);
+		Random random = new Random(4711);
+		try (CaptureWriter writer = new CaptureWriter(capture, header))
+		{
+			for (int i = 0; i < FRAMES; i++)
+			{
+				boolean extended = random.nextBoolean();
+				boolean remote = 0 == random.nextInt(8);
+				int length = random.nextInt(9);
+				byte[] data = new byte[length];
+				if (!remote)
+				{
+					random.nextBytes(data);
+				}
+				writer.write(new NativeMessage(random.nextInt(extended ? 0x20000000
+						: 0x800), i, extended, remote, (byte) 0,
+						(byte) length, data), START_MILLIS * 1000 + 137L * i);
+			}
+		}
+		boolean ok = true;
+		ok &= check("candump", capture, dir, (c, e, b) -> {
+			CandumpWriter.export(c, e, "can0");
+			return CandumpReader.convert(e, b);
+		});
+		ok &= check("ASC", capture, dir, (c, e, b) -> {
+			AscWriter.export(c, e);
+			return AscReader.convert(e, b);
+		});
+		ok &= check("PCAP", capture, dir, (c, e, b) -> {
+			PcapWriter.export(c, e, false);
+			return PcapReader.convert(e, b);
+		});
+		ok &= check("PCAPNG", capture, dir, (c, e, b) -> {
+			PcapWriter.export(c, e, true);
+			return PcapReader.convert(e, b);
+		});
+		System.out.println(ok ? "PASSED" : "FAILED");
+	}
+
+	private static boolean check(String name, Path capture, Path dir,
+			Format format) throws IOException
+	{
+		Path export = dir.resolve("frames." + name.toLowerCase());
+		Path back = dir.resolve("back.cap");
+		long imported = format.roundTrip(capture, export, back);
+		int mismatches = 0;
+		int remote = 0;
+		try (CaptureReader original = new CaptureReader(capture);
+				CaptureReader copy = new CaptureReader(back))
+		{
+			CaptureFrame expected = new CaptureFrame();
+			CaptureFrame actual = new CaptureFrame();
+			for (long i = 0; i < original.getFrameCount(); i++)
+			{
+				original.get(i, expected);
+				if (i >= copy.getFrameCount())
+				{
+					mismatches++;
+					continue;
+				}
+				copy.get(i, actual);
+				if (expected.isRemoteFrame())
+				{
+					remote++;
+				}
+				if (expected.getId() != actual.getId()
+						|| expected.isExtendedID() != actual.isExtendedID()
+						|| expected.isRemoteFrame() != actual.isRemoteFrame()
+						|| expected.getLength() != actual.getLength()
+						|| expected.getTime() != actual.getTime()
+						|| (!expected.isRemoteFrame() && expected.getDataLong() != actual
+								.getDataLong()))
+				{
+					if (mismatches++ < 3)
+					{
+						System.out.println(name + " frame " + i + ": expected "
+								+ expected + ", got " + actual);
+					}
+				}
+			}
+		}
+		System.out.println(name + ": " + imported + " frames imported, "
+				+ remote + " remote frames, " + mismatches + " mismatches.");
+		return FRAMES == imported && 0 == mismatches;
+	}
+}
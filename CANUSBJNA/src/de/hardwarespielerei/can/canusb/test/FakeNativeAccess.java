@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jna.NativeLong;
+
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * Simulates one CANUSB adapter without hardware. Every native call waits a
+ * configurable time without using the CPU, like waiting for USB. Reading
+ * returns a numbered sequence of frames, writing checks the sequence numbers
+ * written by each writer.
+ * 
+ * Frames carry the writer number in data byte 0 and a big endian sequence
+ * number in data bytes 1..4.
+ * 
+ * @author gabriel
+ */
+public class FakeNativeAccess implements NativeAccess
+{
+	private static final byte[] SERIAL = "FAKE".getBytes();
+	private static final byte[] VERSION_INFO = "V0101 - N4711 - 2.0.2 - FAKE"
+			.getBytes();
+
+	private final int framesToReceive;
+	private final long callNanos;
+	private final AtomicInteger received = new AtomicInteger();
+	private final AtomicInteger written = new AtomicInteger();
+	private final AtomicInteger outOfSequence = new AtomicInteger();
+	private final AtomicIntegerArray nextWriterSequence;
+	private volatile NativeReceiveCallback callback;
+
+	/**
+	 * @param framesToReceive
+	 *            contains the number of frames that can be read.
+	 * @param writers
+	 *            contains the number of writers to check.
+	 * @param callNanos
+	 *            contains the duration of every native call in nanoseconds.
+	 */
+	public FakeNativeAccess(int framesToReceive, int writers, long callNanos)
+	{
+		this.framesToReceive = framesToReceive;
+		this.callNanos = callNanos;
+		this.nextWriterSequence = new AtomicIntegerArray(writers);
+	}
+
+	/**
+	 * @return number of frames written.
+	 */
+	public int getWritten()
+	{
+		return this.written.get();
+	}
+
+	/**
+	 * @return number of frames written out of sequence.
+	 */
+	public int getOutOfSequence()
+	{
+		return this.outOfSequence.get();
+	}
+
+	/**
+	 * Delivers the next frame to the receive call back, if set.
+	 * 
+	 * @return true if a frame was delivered, false otherwise.
+	 */
+	public boolean deliver()
+	{
+		NativeReceiveCallback cb = this.callback;
+		CANMsgByReference msg = new CANMsgByReference();
+		if (null == cb || !this.next(msg))
+		{
+			return false;
+		}
+		cb.callback(msg);
+		return true;
+	}
+
+	private boolean next(CANMsg msg)
+	{
+		int sequence = this.received.getAndIncrement();
+		if (sequence >= this.framesToReceive)
+		{
+			this.received.decrementAndGet();
+			return false;
+		}
+		msg.id = sequence & 0x7FF;
+		msg.timestamp = sequence;
+		msg.flags = 0;
+		msg.length = 5;
+		msg.data[0] = 0;
+		msg.data[1] = (byte) (sequence >>> 24);
+		msg.data[2] = (byte) (sequence >>> 16);
+		msg.data[3] = (byte) (sequence >>> 8);
+		msg.data[4] = (byte) sequence;
+		return true;
+	}
+
+	private void work()
+	{
+		// waiting for USB doesn't need the CPU...
+		LockSupport.parkNanos(this.callNanos);
+	}
+
+	private static int copy(byte[] source, byte[] target)
+	{
+		int length = Math.min(source.length, target.length - 1);
+		System.arraycopy(source, 0, target, 0, length);
+		target[length] = 0;
+		return length;
+	}
+
+	@Override
+	public int canusb_getFirstAdapter(byte[] szAdapter, int size)
+	{
+		copy(SERIAL, szAdapter);
+		return 1;
+	}
+
+	@Override
+	public int canusb_getNextAdapter(byte[] szAdapter, int size)
+	{
+		copy(SERIAL, szAdapter);
+		return 1;
+	}
+
+	@Override
+	public NativeLong canusb_Open(String szID, String szBitrate,
+			int acceptance_code, int acceptance_mask, int flags)
+	{
+		return new NativeLong(1);
+	}
+
+	@Override
+	public int canusb_Close(NativeLong h)
+	{
+		return ERROR_CANUSB_OK;
+	}
+
+	@Override
+	public int canusb_Status(NativeLong h)
+	{
+		this.work();
+		return 0;
+	}
+
+	@Override
+	public int canusb_VersionInfo(NativeLong h, byte[] verinfo)
+	{
+		copy(VERSION_INFO, verinfo);
+		return ERROR_CANUSB_OK;
+	}
+
+	@Override
+	public int canusb_Read(NativeLong h, CANMsg.ByReference msg)
+	{
+		this.work();
+		if (null != this.callback)
+		{
+			return ERROR_CANUSB_GENERAL;
+		}
+		return this.next((CANMsg) msg) ? ERROR_CANUSB_OK
+				: ERROR_CANUSB_NO_MESSAGE;
+	}
+
+	@Override
+	public int canusb_setReceiveCallBack(NativeLong handle,
+			NativeReceiveCallback fn)
+	{
+		this.callback = fn;
+		return ERROR_CANUSB_OK;
+	}
+
+	@Override
+	public int canusb_Write(NativeLong h, CANMsg msg)
+	{
+		this.work();
+		int writer = msg.data[0];
+		int sequence = ((msg.data[1] & 0xFF) << 24)
+				| ((msg.data[2] & 0xFF) << 16) | ((msg.data[3] & 0xFF) << 8)
+				| (msg.data[4] & 0xFF);
+		if (!this.nextWriterSequence.compareAndSet(writer, sequence,
+				sequence + 1))
+		{
+			this.outOfSequence.incrementAndGet();
+		}
+		this.written.incrementAndGet();
+		return ERROR_CANUSB_OK;
+	}
+}
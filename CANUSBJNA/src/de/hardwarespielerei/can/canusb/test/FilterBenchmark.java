@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.test;
+
+import java.util.Random;
+import java.util.function.Predicate;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.FrameFilter;
+import de.hardwarespielerei.can.canusb.NativeMessage;
+
+/**
+ * Benchmark of {@link FrameFilter}: evaluation cost per frame of a compiled
+ * filter expression compared to the same filter written in Java. Runs
+ * without CANUSB hardware.
+ * 
+ * @author gabriel
+ */
+public class FilterBenchmark
+{
+	private static final String EXPRESSION = "id in 0x100..0x1FF && data[0] > 10 && !rtr";
+	private static final int FRAMES = 4096;
+	private static final int ROUNDS = 5;
+	private static final int PASSES = 2000;
+
+	private static volatile int sink;
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            references command line arguments: optionally a filter
+	 *            expression replacing the default one.
+	 */
+	public static void main(String[] args)
+	{
+		System.out.println("################################");
+		System.out.println("# CANUSB Filter Benchmark      #");
+		System.out.println("################################");
+		System.out.println();
+		String expression = args.length > 0 ? args[0] : EXPRESSION;
+		FrameFilter filter = FrameFilter.compile(expression);
+		Predicate<CANMessage> java = msg -> msg.getId() >= 0x100
+				&& msg.getId() <= 0x1FF
+				&& msg.getLength() > 0
+				&& (msg.getData()[0] & 0xFF) > 10 && !msg.isRemoteFrame();
+
+		Random random = new Random(4711);
+		CANMessage[] frames = new CANMessage[FRAMES];
+		for (int i = 0; i < FRAMES; i++)
+		{
+			byte[] data = new byte[8];
+			random.nextBytes(data);
+			frames[i] = new NativeMessage(random.nextInt(0x400), i, false,
+					random.nextInt(16) == 0, (byte) 0, (byte) 8, data);
+		}
+		System.out.println("Filter: " + filter);
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			// first rounds warm up...
+			double compiledNanos = run(filter, frames);
+			double javaNanos = run(java, frames);
+			System.out.println(String.format(
+					"Round %d: compiled %.2f ns/frame, Java %.2f ns/frame",
+					Integer.valueOf(round), Double.valueOf(compiledNanos),
+					Double.valueOf(javaNanos)));
+		}
+		int differences = 0;
+		for (CANMessage frame : frames)
+		{
+			if (args.length == 0 && filter.test(frame) != java.test(frame))
+			{
+				differences++;
+			}
+		}
+		System.out.println(0 == differences ? "PASSED" : "FAILED: "
+				+ differences + " frames filtered differently!");
+	}
+
+	private static double run(Predicate<CANMessage> filter,
+			CANMessage[] frames)
+	{
+		int passed = 0;
+		long start = System.nanoTime();
+		for (int pass = 0; pass < PASSES; pass++)
+		{
+			for (CANMessage frame : frames)
+			{
+				if (filter.test(frame))
+				{
+					passed++;
+				}
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		sink = passed;
+		return (double) nanos / PASSES / frames.length;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import de.hardwarespielerei.can.canusb.Bitrate;
+import de.hardwarespielerei.can.canusb.NativeMessage;
+import de.hardwarespielerei.can.canusb.capture.CaptureFormat;
+import de.hardwarespielerei.can.canusb.capture.CaptureHeader;
+import de.hardwarespielerei.can.canusb.capture.CaptureReader;
+import de.hardwarespielerei.can.canusb.capture.CaptureRecovery;
+import de.hardwarespielerei.can.canusb.capture.CaptureWriter;
+import de.hardwarespielerei.can.canusb.capture.GroupCommit;
+
+/**
+ * Crash test of {@link GroupCommit} and {@link CaptureRecovery}: takes a
+ * snapshot of a capture while it is written, tears the last committed group
+ * of the snapshot in different ways and checks that recovery cuts off exactly
+ * that group. Runs without CANUSB hardware.
+ * 
+ * @author gabriel
+ */
+public class GroupCommitRecoveryTest
+{
+	private static final int GROUP_FRAMES = 100;
+	private static final int GROUPS = 10;
+	private static final int OPEN_FRAMES = 50;
+	private static final long START_MILLIS = 1700000000000L;
+
+	private static interface Tear
+	{
+		void apply(FileChannel file) throws IOException;
+	}
+
+	/**
+	 * Runs the crash test.
+	 * 
+	 * @param args
+	 *            references command line arguments.
+	 * @throws Exception
+	 *             if files can't be written or read.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		System.out.println("################################");
+		System.out.println("# CANUSB Group Commit Test     #");
+		System.out.println("################################");
+		System.out.println();
+		Path dir = Files.createTempDirectory("canusb");
+		Path capture = dir.resolve("capture.cap");
+		Path crash = dir.resolve("crash.cap");
+		CaptureHeader header = new CaptureHeader("TEST",
+				Bitrate.Bitrate500kbps, 0, -1, 0, START_MILLIS);
+		long committed = GROUPS * GROUP_FRAMES;
+		try (CaptureWriter writer = new CaptureWriter(capture, header,
+				64 << 10, false, new GroupCommit(GROUP_FRAMES, 1,
+						TimeUnit.HOURS, 2)))
+		{
+			for (int i = 0; i < committed + OPEN_FRAMES; i++)
+			{
+				writer.write(new NativeMessage(0x100 + i % 16, i, false, false,
+						(byte) 0, (byte) 8, new byte[] { (byte) i, 1, 2, 3, 4,
+								5, 6, 7 }), START_MILLIS * 1000 + i);
+			}
+			while (writer.getCommittedFrameCount() < committed)
+			{
+				Thread.sleep(1);
+			}
+			// the open group is still mapped only...
+			Files.copy(capture, crash);
+		}
+
+		boolean ok = true;
+		ok &= check(dir, crash, "open group lost", committed, file -> {
+			// nothing torn
+		});
+		ok &= check(dir, crash, "corrupted record", committed - GROUP_FRAMES,
+				file -> {
+					write(file, committed - GROUP_FRAMES / 2, 24, (byte) 0x55);
+				});
+		ok &= check(dir, crash, "half written group", committed
+				- GROUP_FRAMES, file -> {
+			for (long f = committed - GROUP_FRAMES / 2; f < committed; f++)
+			{
+				for (int b = 0; b < CaptureFormat.RECORD_SIZE; b++)
+				{
+					write(file, f, b, (byte) 0);
+				}
+			}
+		});
+		ok &= check(dir, crash, "wrong checksum", committed - GROUP_FRAMES,
+				file -> {
+					write(file, committed - 1, 20, (byte) 0x55);
+				});
+		System.out.println(ok ? "PASSED" : "FAILED");
+	}
+
+	private static void write(FileChannel file, long frame, int offset,
+			byte value) throws IOException
+	{
+		file.write(ByteBuffer.wrap(new byte[] { value }),
+				CaptureFormat.HEADER_SIZE + frame * CaptureFormat.RECORD_SIZE
+						+ offset);
+	}
+
+	private static boolean check(Path dir, Path crash, String name,
+			long expected, Tear tear) throws IOException
+	{
+		Path torn = dir.resolve("torn.cap");
+		Files.copy(crash, torn, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel file = FileChannel.open(torn,
+				StandardOpenOption.WRITE))
+		{
+			tear.apply(file);
+		}
+		long recovered = CaptureRecovery.recover(torn);
+		long frames;
+		try (CaptureReader reader = new CaptureReader(torn))
+		{
+			frames = reader.getFrameCount();
+		}
+		boolean ok = recovered == expected && frames == expected
+				&& Files.size(torn) == CaptureFormat.HEADER_SIZE + expected
+						* CaptureFormat.RECORD_SIZE;
+		System.out.println(name + ": recovered " + recovered + " of "
+				+ expected + " frames" + (ok ? "." : "!"));
+		return ok;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.util;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Adaptive wait strategy of a polling thread. While polls find work, the
+ * thread polls again immediately. When idle, it backs off progressively:
+ * first it spins, then it yields, then it parks with intervals doubling up to
+ * a maximum. Other threads, e. g. a receive call back, can wake it up
+ * immediately by {@link #signal()}.
+ * 
+ * Only one thread may call {@link #busy()} and {@link #idle()}, any thread
+ * may call {@link #signal()}. Statistics may be read by any thread.
+ * 
+ * @author gabriel
+ */
+public class AdaptiveWait
+{
+	/**
+	 * Default number of idle polls spinning.
+	 */
+	public static final int DEFAULT_SPINS = 100;
+
+	/**
+	 * Default number of idle polls yielding after spinning.
+	 */
+	public static final int DEFAULT_YIELDS = 10;
+
+	/**
+	 * Default first park interval in nanoseconds.
+	 */
+	public static final long DEFAULT_MIN_PARK_NANOS = 1000;
+
+	/**
+	 * Default maximum park interval in nanoseconds.
+	 */
+	public static final long DEFAULT_MAX_PARK_NANOS = 1000000;
+
+	private final int spins;
+	private final int yields;
+	private final long minParkNanos;
+	private final long maxParkNanos;
+	private int idlePolls;
+	private long parkNanos;
+	private volatile Thread waiter;
+	private volatile boolean signalled;
+	private volatile long busyPolls;
+	private volatile long emptyPolls;
+	private volatile long spinCount;
+	private volatile long yieldCount;
+	private volatile long parkCount;
+	private final LongAdder signalCount = new LongAdder();
+
+	/**
+	 * Constructs a wait strategy with default parameters.
+	 */
+	public AdaptiveWait()
+	{
+		this(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_MIN_PARK_NANOS,
+				DEFAULT_MAX_PARK_NANOS);
+	}
+
+	/**
+	 * @param spins
+	 *            contains the number of idle polls spinning.
+	 * @param yields
+	 *            contains the number of idle polls yielding after spinning.
+	 * @param minParkNanos
+	 *            contains the first park interval in nanoseconds.
+	 * @param maxParkNanos
+	 *            contains the maximum park interval in nanoseconds.
+	 */
+	public AdaptiveWait(int spins, int yields, long minParkNanos,
+			long maxParkNanos)
+	{
+		if (spins < 0 || yields < 0 || minParkNanos <= 0
+				|| maxParkNanos < minParkNanos)
+		{
+			throw new IllegalArgumentException("Invalid wait parameters!");
+		}
+		this.spins = spins;
+		this.yields = yields;
+		this.minParkNanos = minParkNanos;
+		this.maxParkNanos = maxParkNanos;
+		this.parkNanos = minParkNanos;
+	}
+
+	/**
+	 * Tells that the last poll found work, so the next idle poll starts
+	 * backing off from the beginning.
+	 */
+	public void busy()
+	{
+		this.busyPolls++;
+		this.idlePolls = 0;
+		this.parkNanos = this.minParkNanos;
+	}
+
+	/**
+	 * Tells that the last poll found no work and waits according to the
+	 * number of idle polls before. Returns immediately if signalled since the
+	 * last call.
+	 */
+	public void idle()
+	{
+		this.emptyPolls++;
+		if (this.signalled)
+		{
+			this.signalled = false;
+			return;
+		}
+		int n = this.idlePolls++;
+		if (n < this.spins)
+		{
+			this.spinCount++;
+			Thread.onSpinWait();
+		} else if (n < this.spins + this.yields)
+		{
+			this.yieldCount++;
+			Thread.yield();
+		} else
+		{
+			this.parkCount++;
+			this.waiter = Thread.currentThread();
+			// check again, signal() might have missed the waiter...
+			if (!this.signalled)
+			{
+				LockSupport.parkNanos(this, this.parkNanos);
+			}
+			this.waiter = null;
+			this.signalled = false;
+			this.parkNanos = Math.min(2 * this.parkNanos, this.maxParkNanos);
+		}
+	}
+
+	/**
+	 * Wakes up the polling thread, e. g. when new data arrived.
+	 */
+	public void signal()
+	{
+		if (!this.signalled)
+		{
+			this.signalled = true;
+		}
+		Thread thread = this.waiter;
+		if (null != thread)
+		{
+			this.signalCount.increment();
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * @return number of polls finding work.
+	 */
+	public long getBusyPolls()
+	{
+		return this.busyPolls;
+	}
+
+	/**
+	 * @return number of polls finding no work.
+	 */
+	public long getEmptyPolls()
+	{
+		return this.emptyPolls;
+	}
+
+	/**
+	 * @return number of idle polls spinning.
+	 */
+	public long getSpinCount()
+	{
+		return this.spinCount;
+	}
+
+	/**
+	 * @return number of idle polls yielding.
+	 */
+	public long getYieldCount()
+	{
+		return this.yieldCount;
+	}
+
+	/**
+	 * @return number of idle polls parking.
+	 */
+	public long getParkCount()
+	{
+		return this.parkCount;
+	}
+
+	/**
+	 * @return number of signals waking up a parked thread.
+	 */
+	public long getSignalCount()
+	{
+		return this.signalCount.sum();
+	}
+
+	/**
+	 * @return ratio of polls finding work to all polls, 0..1.
+	 */
+	public double getPollEfficiency()
+	{
+		long busy = this.busyPolls;
+		long all = busy + this.emptyPolls;
+		return 0 == all ? 0 : (double) busy / all;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Polls " + (this.busyPolls + this.emptyPolls) + ", efficiency "
+				+ Math.round(1000 * this.getPollEfficiency()) / 10.0
+				+ " %, spins " + this.spinCount + ", yields " + this.yieldCount
+				+ ", parks " + this.parkCount + ", wake-ups "
+				+ this.signalCount.sum();
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.util;
+
+/**
+ * Encodes and decodes hexadecimal, binary and decimal numbers as ASCII bytes using
+ * lookup tables, without creating any objects. Encoders write into a byte
+ * array and return the offset after the last byte written.
+ * 
+ * @author gabriel
+ */
+public final class Ascii
+{
+	private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5',
+			'6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	private static final byte[] HEX_PAIRS = new byte[512];
+	private static final byte[] HEX_VALUES = new byte[256];
+	private static final byte[] BINARY_OCTETS = new byte[2048];
+
+	static
+	{
+		for (int i = 0; i < 256; i++)
+		{
+			HEX_PAIRS[2 * i] = HEX_DIGITS[i >>> 4];
+			HEX_PAIRS[2 * i + 1] = HEX_DIGITS[i & 0x0F];
+			HEX_VALUES[i] = -1;
+			for (int bit = 0; bit < 8; bit++)
+			{
+				BINARY_OCTETS[8 * i + bit] = (byte) (0 == (i & (0x80 >>> bit)) ? '0'
+						: '1');
+			}
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			HEX_VALUES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++)
+		{
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	private Ascii()
+	{
+		// static helpers only
+	}
+
+	/**
+	 * Writes a byte as two upper case hex digits.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param value
+	 *            contains the byte.
+	 * @return offset after the digits.
+	 */
+	public static int putHexByte(byte[] target, int offset, int value)
+	{
+		int i = (value & 0xFF) << 1;
+		target[offset] = HEX_PAIRS[i];
+		target[offset + 1] = HEX_PAIRS[i + 1];
+		return offset + 2;
+	}
+
+	/**
+	 * Writes the lowest digits of a value as upper case hex digits, with
+	 * leading zeros.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param value
+	 *            contains the value.
+	 * @param digits
+	 *            contains the number of digits 1..16.
+	 * @return offset after the digits.
+	 */
+	public static int putHex(byte[] target, int offset, long value, int digits)
+	{
+		for (int i = digits - 1; i >= 0; i--)
+		{
+			target[offset + i] = HEX_DIGITS[(int) value & 0x0F];
+			value >>>= 4;
+		}
+		return offset + digits;
+	}
+
+	/**
+	 * Writes a byte as eight binary digits.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param value
+	 *            contains the byte.
+	 * @return offset after the digits.
+	 */
+	public static int putBinaryByte(byte[] target, int offset, int value)
+	{
+		System.arraycopy(BINARY_OCTETS, (value & 0xFF) << 3, target, offset, 8);
+		return offset + 8;
+	}
+
+	/**
+	 * Writes the lowest bytes of a value as binary digits, with leading zeros.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param value
+	 *            contains the value.
+	 * @param bytes
+	 *            contains the number of bytes 1..8, each giving 8 digits.
+	 * @return offset after the digits.
+	 */
+	public static int putBinary(byte[] target, int offset, long value,
+			int bytes)
+	{
+		for (int i = bytes - 1; i >= 0; i--)
+		{
+			offset = putBinaryByte(target, offset, (int) (value >>> (8 * i)));
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes a value as decimal digits without leading zeros.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param value
+	 *            contains the value.
+	 * @return offset after the digits.
+	 */
+	public static int putDecimal(byte[] target, int offset, long value)
+	{
+		if (value < 0)
+		{
+			if (Long.MIN_VALUE == value)
+			{
+				// can't be negated...
+				target[offset++] = '-';
+				target[offset++] = '9';
+				return putDecimal(target, offset, 223372036854775808L, 18);
+			}
+			target[offset++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10)
+		{
+			digits++;
+		}
+		return putDecimal(target, offset, value, digits);
+	}
+
+	/**
+	 * Writes the lowest digits of a non-negative value as decimal digits,
+	 * with leading zeros.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param value
+	 *            contains the value.
+	 * @param digits
+	 *            contains the number of digits.
+	 * @return offset after the digits.
+	 */
+	public static int putDecimal(byte[] target, int offset, long value,
+			int digits)
+	{
+		for (int i = digits - 1; i >= 0; i--)
+		{
+			target[offset + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return offset + digits;
+	}
+
+	/**
+	 * Writes the characters of a string, which must be ASCII.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param text
+	 *            references the string.
+	 * @return offset after the characters.
+	 */
+	public static int putAscii(byte[] target, int offset, String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			target[offset++] = (byte) text.charAt(i);
+		}
+		return offset;
+	}
+
+	/**
+	 * @param digit
+	 *            contains an ASCII character.
+	 * @return value of the hex digit or -1 if it isn't a hex digit.
+	 */
+	public static int hexValue(byte digit)
+	{
+		return HEX_VALUES[digit & 0xFF];
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.util;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+
+/**
+ * Formats CAN frames as text without creating any objects per frame. Digits
+ * are taken from the lookup tables of {@link Ascii}, times are printed in
+ * UTC.
+ * 
+ * A formatter keeps a scratch buffer for {@link #format(StringBuilder,
+ * CANMessage, long)}, so every thread needs an instance of its own.
+ * 
+ * @author gabriel
+ */
+public class FrameFormatter
+{
+	/**
+	 * Upper bound of the number of bytes a single frame is formatted to.
+	 */
+	public static final int MAX_LENGTH = 512;
+
+	/**
+	 * Output styles.
+	 * 
+	 * @author gabriel
+	 */
+	public enum Style
+	{
+		/**
+		 * One line per frame: time, ID, flags, length, data bytes and
+		 * timestamp, e. g.
+		 * 
+		 * <pre>
+		 * 2014-06-01T12:00:00.123456Z 123 -- [3] 01 02 03 4711
+		 * </pre>
+		 */
+		COMPACT(),
+
+		/**
+		 * One line per field like {@link Object#toString()} of
+		 * {@link de.hardwarespielerei.can.canusb.NativeMessage}, including
+		 * binary digits of ID and data bytes.
+		 */
+		VERBOSE(),
+
+		/**
+		 * One JSON object per line, e. g.
+		 * 
+		 * <pre>
+		 * {"time":1401624000123456,"id":291,"extended":false,"remote":false,"reserver":0,"timestamp":4711,"length":3,"data":"010203"}
+		 * </pre>
+		 */
+		JSON();
+	}
+
+	private static final byte[] TIME = "Time:        ".getBytes();
+	private static final byte[] ID = "ID:          0x".getBytes();
+	private static final byte[] TIMESTAMP = "Timestamp:   0x".getBytes();
+	private static final byte[] EXTENDED = "ExtendedID:  ".getBytes();
+	private static final byte[] REMOTE = "RemoteFrame: ".getBytes();
+	private static final byte[] RESERVER = "Reserver:    0x".getBytes();
+	private static final byte[] LENGTH = "Length:      ".getBytes();
+	private static final byte[] DATA = "Data:".getBytes();
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+	private static final byte[] JSON_TIME = "{\"time\":".getBytes();
+	private static final byte[] JSON_ID = ",\"id\":".getBytes();
+	private static final byte[] JSON_EXTENDED = ",\"extended\":".getBytes();
+	private static final byte[] JSON_REMOTE = ",\"remote\":".getBytes();
+	private static final byte[] JSON_RESERVER = ",\"reserver\":".getBytes();
+	private static final byte[] JSON_TIMESTAMP = ",\"timestamp\":".getBytes();
+	private static final byte[] JSON_LENGTH = ",\"length\":".getBytes();
+	private static final byte[] JSON_DATA = ",\"data\":\"".getBytes();
+
+	private final Style style;
+	private final byte[] scratch = new byte[MAX_LENGTH];
+
+	/**
+	 * @param style
+	 *            references the output style.
+	 */
+	public FrameFormatter(Style style)
+	{
+		this.style = style;
+	}
+
+	/**
+	 * @return output style.
+	 */
+	public Style getStyle()
+	{
+		return this.style;
+	}
+
+	/**
+	 * Appends a formatted frame, terminated by a line feed.
+	 * 
+	 * @param target
+	 *            references the builder to append to.
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @return target.
+	 */
+	public StringBuilder format(StringBuilder target, CANMessage msg,
+			long timeMicros)
+	{
+		int length = this.format(this.scratch, 0, msg, timeMicros);
+		for (int i = 0; i < length; i++)
+		{
+			target.append((char) this.scratch[i]);
+		}
+		return target;
+	}
+
+	/**
+	 * Writes a formatted frame as ASCII, terminated by a line feed.
+	 * 
+	 * @param target
+	 *            references the array to write to. At least
+	 *            {@link #MAX_LENGTH} bytes must be left at offset.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param msg
+	 *            references the CAN message.
+	 * @param timeMicros
+	 *            contains the receive time in microseconds since epoch.
+	 * @return offset after the line feed.
+	 */
+	public int format(byte[] target, int offset, CANMessage msg,
+			long timeMicros)
+	{
+		switch (this.style)
+		{
+			case VERBOSE:
+				return verbose(target, offset, msg, timeMicros);
+			case JSON:
+				return json(target, offset, msg, timeMicros);
+			default:
+				return compact(target, offset, msg, timeMicros);
+		}
+	}
+
+	private static int compact(byte[] b, int p, CANMessage msg,
+			long timeMicros)
+	{
+		p = putTime(b, p, timeMicros);
+		b[p++] = ' ';
+		p = msg.isExtendedID() ? Ascii.putHex(b, p, msg.getId(), 8) : Ascii
+				.putHex(b, p, msg.getId(), 3);
+		b[p++] = ' ';
+		b[p++] = (byte) (msg.isExtendedID() ? 'X' : '-');
+		b[p++] = (byte) (msg.isRemoteFrame() ? 'R' : '-');
+		b[p++] = ' ';
+		b[p++] = '[';
+		p = Ascii.putDecimal(b, p, msg.getLength() & 0xFF);
+		b[p++] = ']';
+		byte[] data = msg.getData();
+		int valid = validBytes(msg, data);
+		for (int i = 0; i < valid; i++)
+		{
+			b[p++] = ' ';
+			p = Ascii.putHexByte(b, p, data[i]);
+		}
+		b[p++] = ' ';
+		p = Ascii.putDecimal(b, p, msg.getTimestamp() & 0xFFFFFFFFL);
+		b[p++] = '\n';
+		return p;
+	}
+
+	private static int verbose(byte[] b, int p, CANMessage msg,
+			long timeMicros)
+	{
+		p = put(b, p, TIME);
+		p = putTime(b, p, timeMicros);
+		b[p++] = '\n';
+		p = put(b, p, ID);
+		p = Ascii.putHex(b, p, msg.getId(), 8);
+		b[p++] = '\t';
+		p = Ascii.putBinary(b, p, msg.getId(), 4);
+		b[p++] = '\n';
+		p = put(b, p, TIMESTAMP);
+		p = Ascii.putHex(b, p, msg.getTimestamp(), 8);
+		b[p++] = '\t';
+		p = Ascii.putDecimal(b, p, msg.getTimestamp() & 0xFFFFFFFFL);
+		b[p++] = ' ';
+		b[p++] = 'm';
+		b[p++] = 's';
+		b[p++] = '\n';
+		p = put(b, p, EXTENDED);
+		p = put(b, p, msg.isExtendedID() ? TRUE : FALSE);
+		b[p++] = '\n';
+		p = put(b, p, REMOTE);
+		p = put(b, p, msg.isRemoteFrame() ? TRUE : FALSE);
+		b[p++] = '\n';
+		p = put(b, p, RESERVER);
+		p = Ascii.putHexByte(b, p, msg.getReserver());
+		b[p++] = '\n';
+		p = put(b, p, LENGTH);
+		p = Ascii.putDecimal(b, p, msg.getLength());
+		b[p++] = '\t';
+		b[p++] = '0';
+		b[p++] = 'x';
+		p = Ascii.putHexByte(b, p, msg.getLength());
+		b[p++] = '\n';
+		byte[] data = msg.getData();
+		int valid = validBytes(msg, data);
+		for (int i = 0; i < valid; i++)
+		{
+			if (0 == i)
+			{
+				p = put(b, p, DATA);
+			}
+			b[p++] = '\t';
+			p = Ascii.putDecimal(b, p, data[i]);
+			b[p++] = '\t';
+			b[p++] = '0';
+			b[p++] = 'x';
+			p = Ascii.putHexByte(b, p, data[i]);
+			b[p++] = '\t';
+			p = Ascii.putBinaryByte(b, p, data[i]);
+			b[p++] = '\n';
+		}
+		return p;
+	}
+
+	private static int json(byte[] b, int p, CANMessage msg, long timeMicros)
+	{
+		p = put(b, p, JSON_TIME);
+		p = Ascii.putDecimal(b, p, timeMicros);
+		p = put(b, p, JSON_ID);
+		p = Ascii.putDecimal(b, p, msg.getId() & 0xFFFFFFFFL);
+		p = put(b, p, JSON_EXTENDED);
+		p = put(b, p, msg.isExtendedID() ? TRUE : FALSE);
+		p = put(b, p, JSON_REMOTE);
+		p = put(b, p, msg.isRemoteFrame() ? TRUE : FALSE);
+		p = put(b, p, JSON_RESERVER);
+		p = Ascii.putDecimal(b, p, msg.getReserver());
+		p = put(b, p, JSON_TIMESTAMP);
+		p = Ascii.putDecimal(b, p, msg.getTimestamp() & 0xFFFFFFFFL);
+		p = put(b, p, JSON_LENGTH);
+		p = Ascii.putDecimal(b, p, msg.getLength() & 0xFF);
+		p = put(b, p, JSON_DATA);
+		byte[] data = msg.getData();
+		int valid = validBytes(msg, data);
+		for (int i = 0; i < valid; i++)
+		{
+			p = Ascii.putHexByte(b, p, data[i]);
+		}
+		b[p++] = '"';
+		b[p++] = '}';
+		b[p++] = '\n';
+		return p;
+	}
+
+	private static int validBytes(CANMessage msg, byte[] data)
+	{
+		if (null == data || msg.isRemoteFrame())
+		{
+			return 0;
+		}
+		return Math.min(Math.min(msg.getLength() & 0xFF, 8), data.length);
+	}
+
+	private static int put(byte[] target, int offset, byte[] text)
+	{
+		System.arraycopy(text, 0, target, offset, text.length);
+		return offset + text.length;
+	}
+
+	/**
+	 * Writes a time in ISO 8601 format in UTC with microseconds, e. g.
+	 * 2014-06-01T12:00:00.123456Z.
+	 * 
+	 * @param target
+	 *            references the array to write to.
+	 * @param offset
+	 *            contains the offset to write at.
+	 * @param timeMicros
+	 *            contains the time in microseconds since epoch.
+	 * @return offset after the time.
+	 */
+	public static int putTime(byte[] target, int offset, long timeMicros)
+	{
+		long days = Math.floorDiv(timeMicros, 86400000000L);
+		long micros = Math.floorMod(timeMicros, 86400000000L);
+		// civil date from days since epoch, proleptic Gregorian calendar...
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+				- dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long monthIndex = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		int p = Ascii.putDecimal(target, offset, year, 4);
+		target[p++] = '-';
+		p = Ascii.putDecimal(target, p, month, 2);
+		target[p++] = '-';
+		p = Ascii.putDecimal(target, p, day, 2);
+		target[p++] = 'T';
+		p = Ascii.putDecimal(target, p, micros / 3600000000L, 2);
+		target[p++] = ':';
+		p = Ascii.putDecimal(target, p, micros / 60000000 % 60, 2);
+		target[p++] = ':';
+		p = Ascii.putDecimal(target, p, micros / 1000000 % 60, 2);
+		target[p++] = '.';
+		p = Ascii.putDecimal(target, p, micros % 1000000, 6);
+		target[p++] = 'Z';
+		return p;
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hardwarespielerei.can.canusb.CANMessage;
+import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
+import de.hardwarespielerei.can.canusb.capture.TextLogWriter;
+import de.hardwarespielerei.can.canusb.capture.TimedFrame;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+
+/**
+ * Decouples receiving from logging. The receiving thread only copies each
+ * frame into a pre-allocated ring of primitive arrays. A writer thread takes
+ * all frames queued so far as one batch, formats them with a
+ * {@link TextLogWriter} into its buffer and flushes the buffer once per batch,
+ * so the log is written in large chunks while staying up to date.
+ * 
+ * Install an instance as receive call back or call
+ * {@link #callback(CANMessage)} from one reading thread. If the ring is full,
+ * frames are dropped and counted instead of blocking the receiving thread.
+ * 
+ * @author gabriel
+ */
+public class LogPipeline implements ReceiveCallback, Closeable
+{
+	private static final long IDLE_PARK_NANOS = 100000000;
+
+	private final TextLogWriter writer;
+	private final int mask;
+	private final long[] times;
+	private final int[] ids;
+	private final int[] timestamps;
+	private final byte[] flags;
+	private final byte[] lengths;
+	private final byte[] data;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final MicroClock clock = new MicroClock();
+	private final Thread thread;
+	private final AdaptiveWait wait = new AdaptiveWait(
+			AdaptiveWait.DEFAULT_SPINS, AdaptiveWait.DEFAULT_YIELDS,
+			AdaptiveWait.DEFAULT_MIN_PARK_NANOS, IDLE_PARK_NANOS);
+	private volatile boolean running = true;
+	private volatile long dropped;
+	private volatile IOException error;
+
+	/**
+	 * Constructs and starts a pipeline.
+	 * 
+	 * @param capacity
+	 *            contains the number of frames the ring can hold. It is
+	 *            rounded up to a power of two.
+	 * @param writer
+	 *            references the writer formatting and writing the frames. It
+	 *            is closed with this pipeline.
+	 */
+	public LogPipeline(int capacity, TextLogWriter writer)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("Capacity must be positive!");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{
+			size <<= 1;
+		}
+		this.writer = writer;
+		this.mask = size - 1;
+		this.times = new long[size];
+		this.ids = new int[size];
+		this.timestamps = new int[size];
+		this.flags = new byte[size];
+		this.lengths = new byte[size];
+		this.data = new byte[8 * size];
+		this.thread = new Thread(this::drain, "CANUSB log writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues a received message with the current time.
+	 * 
+	 * @param msg
+	 *            references the received CAN message.
+	 */
+	@Override
+	public void callback(CANMessage msg)
+	{
+		long t = this.tail.get();
+		if (t - this.head.get() > this.mask)
+		{
+			this.dropped++;
+			return;
+		}
+		int i = (int) (t & this.mask);
+		this.times[i] = this.clock.now();
+		this.ids[i] = msg.getId();
+		this.timestamps[i] = msg.getTimestamp();
+		this.flags[i] = ResponseMatcher.flags(msg);
+		int length = Math.min(msg.getLength() & 0xFF, 8);
+		this.lengths[i] = (byte) length;
+		byte[] bytes = msg.getData();
+		int valid = null == bytes ? 0 : Math.min(length, bytes.length);
+		if (valid > 0)
+		{
+			System.arraycopy(bytes, 0, this.data, 8 * i, valid);
+		}
+		this.tail.set(t + 1);
+		this.wait.signal();
+	}
+
+	private void drain()
+	{
+		TimedFrame frame = new TimedFrame();
+		byte[] bytes = frame.getData();
+		while (true)
+		{
+			long h = this.head.get();
+			long t = this.tail.get();
+			if (h == t)
+			{
+				if (!this.running)
+				{
+					break;
+				}
+				this.wait.idle();
+				continue;
+			}
+			this.wait.busy();
+			try
+			{
+				// one batch: everything queued so far...
+				for (; h < t; h++)
+				{
+					int i = (int) (h & this.mask);
+					byte f = this.flags[i];
+					frame.set(this.times[i], this.ids[i],
+							0 != (f & NativeAccess.CANMSG_EXTENDED),
+							0 != (f & NativeAccess.CANMSG_RTR), this.lengths[i])
+							.setTimestamp(this.timestamps[i])
+							.setReserver((byte) (f & 0x3F));
+					System.arraycopy(this.data, 8 * i, bytes, 0,
+							this.lengths[i]);
+					this.writer.write(frame, this.times[i]);
+					this.head.set(h + 1);
+				}
+				this.writer.flush();
+			} catch (IOException e)
+			{
+				this.error = e;
+				this.head.set(t);
+			}
+		}
+	}
+
+	/**
+	 * @return number of frames dropped because the ring was full.
+	 */
+	public long getDropped()
+	{
+		return this.dropped;
+	}
+
+	/**
+	 * @return number of frames queued but not yet written.
+	 */
+	public int getBacklog()
+	{
+		return (int) (this.tail.get() - this.head.get());
+	}
+
+	/**
+	 * @return wait strategy of the writer thread, e. g. for statistics.
+	 */
+	public AdaptiveWait getWait()
+	{
+		return this.wait;
+	}
+
+	/**
+	 * Writes all queued frames, stops the writer thread and closes the
+	 * writer.
+	 * 
+	 * @throws IOException
+	 *             if writing failed, now or before.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.running = false;
+		this.wait.signal();
+		try
+		{
+			this.thread.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		this.writer.close();
+		if (null != this.error)
+		{
+			throw this.error;
+		}
+	}
+}
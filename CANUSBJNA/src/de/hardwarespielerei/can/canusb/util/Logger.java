@@ -24,8 +24,18 @@
 
 package de.hardwarespielerei.can.canusb.util;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.jna.Platform;
 
@@ -38,15 +48,36 @@ import de.hardwarespielerei.can.canusb.CANMessage;
 import de.hardwarespielerei.can.canusb.CANUSBException;
 import de.hardwarespielerei.can.canusb.Channel;
 import de.hardwarespielerei.can.canusb.Flag;
+import de.hardwarespielerei.can.canusb.FrameFilter;
 import de.hardwarespielerei.can.canusb.Library;
 import de.hardwarespielerei.can.canusb.NoMessageException;
 import de.hardwarespielerei.can.canusb.ReceiveCallback;
+import de.hardwarespielerei.can.canusb.ResponseMatcher;
 import de.hardwarespielerei.can.canusb.Status;
 import de.hardwarespielerei.can.canusb.Version;
+import de.hardwarespielerei.can.canusb.capture.CandumpWriter;
+import de.hardwarespielerei.can.canusb.capture.CaptureHeader;
+import de.hardwarespielerei.can.canusb.capture.CaptureWriter;
+import de.hardwarespielerei.can.canusb.capture.FlightRecorder;
+import de.hardwarespielerei.can.canusb.capture.FormattedLogWriter;
+import de.hardwarespielerei.can.canusb.capture.GroupCommit;
+import de.hardwarespielerei.can.canusb.capture.TextLogWriter;
+import de.hardwarespielerei.can.canusb.capture.SegmentedCaptureWriter;
+import de.hardwarespielerei.can.canusb.jna.NativeAccess;
+import de.hardwarespielerei.can.canusb.stage.ChangeDetector;
+import de.hardwarespielerei.can.canusb.stage.CycleStatistics;
+import de.hardwarespielerei.can.canusb.stage.RateLimiter;
 
 /**
  * Simple CAN sniffer and logger.
  * 
+ * With {@code -recorder <file>} frames are kept in a ring in memory and only
+ * dumped when a trigger fires: {@code -pre <s>} and {@code -post <s>} set the
+ * windows before and after the trigger, {@code -pre 0} dumps the whole ring,
+ * {@code -frames <n>} sets the number of frames in the ring. Each
+ * {@code -trigger <id>} fires on a CAN ID, see {@link #parseTrigger(String)};
+ * an error passive or bus error status fires when it appears.
+ * 
  * @author gabriel
  */
 public class Logger
@@ -67,27 +98,62 @@ public class Logger
 		/**
 		 * Logger will register a call back to read messages from the channel.
 		 */
-		CALLBACK();
+		CALLBACK(),
+
+		/**
+		 * Logger will loop and read messages from the channel, polling
+		 * tightly while messages are flowing and backing off progressively
+		 * while the bus is idle.
+		 */
+		ADAPTIVE();
 	}
 
-	private static class LogReceiveCallback implements ReceiveCallback
+	private static final int LOG_CAPACITY = 65536;
+	private static final int RECORDER_FRAMES_PER_SECOND = 20000;
+	private static final int RECORDER_MAX_FRAMES = 1 << 24;
+	private static final int RECORDER_DEFAULT_FRAMES = 10 * RECORDER_FRAMES_PER_SECOND;
+	private static final int RECORDER_STATUS_TRIGGER = NativeAccess.CANSTATUS_BUS_ERROR
+			| NativeAccess.CANSTATUS_ERROR_PASSIVE;
+
+	private static class ConsoleChannel implements WritableByteChannel
 	{
+		private boolean open = true;
+
+		@Override
+		public int write(ByteBuffer src)
+		{
+			int length = src.remaining();
+			System.out.write(src.array(), src.arrayOffset() + src.position(),
+					length);
+			System.out.flush();
+			src.position(src.limit());
+			return length;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return this.open;
+		}
+
 		@Override
-		public void callback(CANMessage msg)
+		public void close()
 		{
-			System.out.println("[" + new Date(System.currentTimeMillis())
-					+ "][MSGRECEIVE]");
-			System.out.println(msg);
+			// standard output stays open for the final messages...
+			System.out.flush();
+			this.open = false;
 		}
 	}
 
 	private static class ShutdownHook extends Thread
 	{
 		private Channel channel;
+		private Closeable output;
 
-		protected ShutdownHook(Channel channel)
+		protected ShutdownHook(Channel channel, Closeable output)
 		{
 			this.channel = channel;
+			this.output = output;
 		}
 
 		@Override
@@ -104,17 +170,66 @@ public class Logger
 			{
 				Library.unload();
 			}
+			if (null != this.output)
+			{
+				try
+				{
+					this.output.close();
+				} catch (IOException e)
+				{
+					System.err.println("ERROR: Can't close capture properly!");
+					e.printStackTrace();
+				}
+			}
 			System.out.println("INFO: CANUSB log ends.");
 		}
 	}
 
+	/**
+	 * Parses the CAN ID of a trigger: hexadecimal, optionally prefixed by
+	 * "0x". An extended ID is marked by an "x" suffix as in ASC logs, e. g.
+	 * "18FEF100x", or given with eight digits as in candump logs, e. g.
+	 * "18FEF100" or "00000100". Other IDs are standard IDs.
+	 * 
+	 * @param arg
+	 *            references the trigger argument.
+	 * @return matcher of the frames firing the trigger.
+	 * @throws NumberFormatException
+	 *             if the argument isn't a valid ID.
+	 */
+	private static ResponseMatcher parseTrigger(String arg)
+	{
+		String digits = arg;
+		boolean extended = false;
+		if (digits.length() > 1
+				&& Character.toLowerCase(digits.charAt(digits.length() - 1)) == 'x')
+		{
+			extended = true;
+			digits = digits.substring(0, digits.length() - 1);
+		}
+		if (digits.startsWith("0x") || digits.startsWith("0X"))
+		{
+			digits = digits.substring(2);
+		}
+		extended |= 8 == digits.length();
+		int id = Integer.parseInt(digits, 16);
+		if (id < 0 || id > (extended ? 0x1FFFFFFF : 0x7FF))
+		{
+			throw new NumberFormatException("Invalid CAN ID " + arg + "!");
+		}
+		return new ResponseMatcher(id, extended);
+	}
+
 	/**
 	 * @param args
 	 *            references command line arguments.
 	 * @throws CANUSBException
 	 *             on errors while accessing CANUSB.
+	 * @throws IOException
+	 *             on errors while creating the capture file.
 	 */
-	public static void main(String[] args) throws CANUSBException
+	public static void main(String[] args) throws CANUSBException,
+			IOException
 	{
 		System.out.println("###############################");
 		System.out.println("# CANUSB Logger               #");
@@ -135,6 +250,21 @@ public class Logger
 				Mode mode = Mode.CALLBACK;
 				Bitrate bitrate = Bitrate.Bitrate250kbps;
 				String serialNumber = null;
+				String captureFile = null;
+				String logFile = null;
+				String logFormat = "compact";
+				long segmentMiB = 0;
+				long segmentMinutes = 0;
+				long commitMillis = 0;
+				String recorderFile = null;
+				long preSeconds = 10;
+				long postSeconds = 5;
+				int recorderFrames = 0;
+				List<ResponseMatcher> triggers = new ArrayList<ResponseMatcher>();
+				FrameFilter filter = null;
+				long heartbeatMillis = -1;
+				double maxRate = 0;
+				boolean statistics = false;
 
 				// parse command line arguments
 				int argPos = 0;
@@ -197,6 +327,67 @@ public class Logger
 							case "-sn":
 								serialNumber = args[argPos++];
 								break;
+							case "-log":
+								logFile = args[argPos++];
+								break;
+							case "-format":
+								logFormat = args[argPos++];
+								break;
+							case "-capture":
+								captureFile = args[argPos++];
+								break;
+							case "-segmentsize":
+								segmentMiB = Long.parseLong(args[argPos++]);
+								break;
+							case "-segmenttime":
+								segmentMinutes = Long.parseLong(args[argPos++]);
+								break;
+							case "-commit":
+								commitMillis = Long.parseLong(args[argPos++]);
+								break;
+							case "-filter":
+								String filterArg = args[argPos++];
+								try
+								{
+									filter = FrameFilter.compile(filterArg);
+								} catch (IllegalArgumentException e)
+								{
+									System.err.println("WARNING: "
+											+ e.getMessage());
+								}
+								break;
+							case "-changes":
+								heartbeatMillis = Long.parseLong(args[argPos++]);
+								break;
+							case "-rate":
+								maxRate = Double.parseDouble(args[argPos++]);
+								break;
+							case "-stats":
+								statistics = true;
+								break;
+							case "-recorder":
+								recorderFile = args[argPos++];
+								break;
+							case "-pre":
+								preSeconds = Long.parseLong(args[argPos++]);
+								break;
+							case "-post":
+								postSeconds = Long.parseLong(args[argPos++]);
+								break;
+							case "-frames":
+								recorderFrames = Integer.parseInt(args[argPos++]);
+								if (recorderFrames <= 0
+										|| recorderFrames > RECORDER_MAX_FRAMES)
+								{
+									System.err
+											.println("WARNING: Invalid number of frames "
+													+ recorderFrames + "!");
+									recorderFrames = 0;
+								}
+								break;
+							case "-trigger":
+								triggers.add(parseTrigger(args[argPos++]));
+								break;
 							default:
 								System.err
 										.println("WARNING: Unkown argument \""
@@ -207,6 +398,10 @@ public class Logger
 						System.err
 								.println("WARNING: Missing parameter for option \""
 										+ arg + "\"!");
+					} catch (NumberFormatException e)
+					{
+						System.err.println("WARNING: Invalid number for option \""
+								+ arg + "\"!");
 					}
 				}
 
@@ -249,36 +444,214 @@ public class Logger
 				Channel channel = adapterToUse.openChannel(bitrate,
 						AcceptanceCode.AcceptAll, AcceptanceMask.AcceptAll,
 						flags);
+				if (null != filter)
+				{
+					System.out.println("Filtering by \"" + filter + "\"...");
+					channel.setReceiveFilter(filter);
+				}
+				// write received messages to the console or to a capture...
+				ReceiveCallback output;
+				Closeable capture = null;
+				LogPipeline log = null;
+				FlightRecorder recorder = null;
+				if (null != recorderFile)
+				{
+					// ...or keep them in memory until a trigger fires
+					if (0 == recorderFrames)
+					{
+						recorderFrames = 0 == preSeconds ? RECORDER_DEFAULT_FRAMES
+								: (int) Math.min(preSeconds
+										* RECORDER_FRAMES_PER_SECOND,
+										RECORDER_MAX_FRAMES);
+					}
+					System.out.println("Recording " + preSeconds + " s before and "
+							+ postSeconds + " s after triggers to "
+							+ recorderFile + " keeping " + recorderFrames
+							+ " frames...");
+					recorder = new FlightRecorder(Paths.get(recorderFile),
+							new CaptureHeader(adapterToUse.getSerialNumber(),
+									bitrate,
+									NativeAccess.CANUSB_ACCEPTANCE_CODE_ALL,
+									NativeAccess.CANUSB_ACCEPTANCE_MASK_ALL,
+									NativeAccess.CANUSB_FLAG_TIMESTAMP,
+									System.currentTimeMillis()),
+							recorderFrames, preSeconds * 1000000, postSeconds * 1000000);
+					for (ResponseMatcher trigger : triggers)
+					{
+						recorder.addTrigger(trigger);
+					}
+					recorder.setStatusTrigger(RECORDER_STATUS_TRIGGER);
+					output = recorder;
+					capture = recorder;
+				} else if (null == captureFile)
+				{
+					// ...formatted by a writer thread in batches
+					WritableByteChannel target;
+					if (null == logFile)
+					{
+						target = new ConsoleChannel();
+					} else
+					{
+						System.out.println("Logging to " + logFile + "...");
+						target = FileChannel.open(Paths.get(logFile),
+								StandardOpenOption.CREATE,
+								StandardOpenOption.TRUNCATE_EXISTING,
+								StandardOpenOption.WRITE);
+					}
+					TextLogWriter writer;
+					if ("candump".equalsIgnoreCase(logFormat))
+					{
+						writer = new CandumpWriter(target,
+								adapterToUse.getSerialNumber());
+					} else
+					{
+						FrameFormatter.Style style = FrameFormatter.Style.COMPACT;
+						try
+						{
+							style = FrameFormatter.Style.valueOf(logFormat
+									.toUpperCase());
+						} catch (IllegalArgumentException e)
+						{
+							System.err.println("WARNING: \"" + logFormat
+									+ "\" is not a valid format!");
+						}
+						writer = new FormattedLogWriter(target, style);
+					}
+					log = new LogPipeline(LOG_CAPACITY, writer);
+					output = log;
+					capture = log;
+				} else
+				{
+					CaptureHeader header = new CaptureHeader(
+							adapterToUse.getSerialNumber(), bitrate,
+							NativeAccess.CANUSB_ACCEPTANCE_CODE_ALL,
+							NativeAccess.CANUSB_ACCEPTANCE_MASK_ALL,
+							NativeAccess.CANUSB_FLAG_TIMESTAMP,
+							System.currentTimeMillis());
+					GroupCommit groupCommit = null;
+					if (commitMillis > 0)
+					{
+						groupCommit = new GroupCommit(
+								GroupCommit.DEFAULT_FRAMES, commitMillis,
+								TimeUnit.MILLISECONDS);
+						System.out.println(groupCommit + "...");
+					}
+					if (segmentMiB > 0 || segmentMinutes > 0)
+					{
+						System.out.println("Capturing to segments of "
+								+ captureFile + "...");
+						SegmentedCaptureWriter segments = new SegmentedCaptureWriter(
+								Paths.get(captureFile), header,
+								segmentMiB > 0 ? Math.min(segmentMiB << 20,
+										Integer.MAX_VALUE)
+										: CaptureWriter.DEFAULT_REGION_SIZE,
+								segmentMinutes * 60000, true, groupCommit);
+						output = segments;
+						capture = segments;
+					} else
+					{
+						System.out.println("Capturing to " + captureFile
+								+ "...");
+						CaptureWriter writer = new CaptureWriter(
+								Paths.get(captureFile), header,
+								CaptureWriter.DEFAULT_REGION_SIZE, true,
+								groupCommit);
+						output = writer;
+						capture = writer;
+					}
+				}
+				ChangeDetector changes = null;
+				if (heartbeatMillis >= 0)
+				{
+					// ...but only if changed or the heartbeat is due
+					System.out.println("Passing changes"
+							+ (heartbeatMillis > 0 ? " and heartbeats every "
+									+ heartbeatMillis + " ms" : "") + "...");
+					changes = new ChangeDetector(output, heartbeatMillis,
+							TimeUnit.MILLISECONDS);
+					output = changes;
+				}
+				RateLimiter limiter = null;
+				if (maxRate > 0)
+				{
+					// ...at most at the given rate per ID
+					System.out.println("Passing at most " + maxRate
+							+ " messages per second and ID...");
+					limiter = new RateLimiter(output);
+					limiter.setDefaultLimit(RateLimiter.toInterval(maxRate), 1);
+					output = limiter;
+				}
+				CycleStatistics cycles = null;
+				if (statistics)
+				{
+					// ...and analyze the cycle times of all messages
+					System.out.println("Analyzing cycle times...");
+					cycles = new CycleStatistics(output);
+					output = cycles;
+				}
 				try
 				{
 					System.out.println("Press [Control+C] to stop logging...");
-					ShutdownHook shutdownHook = new ShutdownHook(channel);
+					ShutdownHook shutdownHook = new ShutdownHook(channel,
+							capture);
 					Runtime.getRuntime().addShutdownHook(shutdownHook);
 
 					// start logging...
 					if (mode.equals(Mode.CALLBACK))
 					{
 						// set log receive callback
-						channel.setReceiveCallBack(new LogReceiveCallback());
+						channel.setReceiveCallBack(output);
 
 					}
 					try
 					{
 						boolean goon = true;
 						long lastStatusMillis = 0;
+						long lastPrintMillis = 0;
+						AdaptiveWait wait = new AdaptiveWait();
 						do
 						{
-							// log status every second
+							// log status every 10 seconds, check it for the
+							// flight recorder every second
 							long now = System.currentTimeMillis();
-							if (now - lastStatusMillis >= 10000)
+							if (now - lastStatusMillis >= (null == recorder ? 10000
+									: 1000))
 							{
 								try
 								{
 									Status status = channel.getStatus();
-									System.out.println("["
-											+ new Date(System
-													.currentTimeMillis())
-											+ "][STATUS][" + status + "]");
+									if (null != recorder
+											&& recorder.status(status))
+									{
+										System.out.println("["
+												+ new Date(now)
+												+ "][TRIGGER][" + status
+												+ "]");
+									}
+									if (now - lastPrintMillis >= 10000)
+									{
+										System.out.println("["
+												+ new Date(System
+														.currentTimeMillis())
+												+ "][STATUS][" + status + "]"
+												+ (null == log ? ""
+														: "[DROPPED "
+																+ log.getDropped()
+																+ "]")
+												+ (null == changes ? "" : "["
+														+ changes + "]")
+												+ (null == limiter ? "" : "["
+														+ limiter + "]")
+												+ (mode.equals(Mode.ADAPTIVE) ? "["
+														+ wait + "]"
+														: ""));
+										if (null != cycles)
+										{
+											System.out.print(cycles
+													.toStatisticsString());
+										}
+										lastPrintMillis = now;
+									}
 								} catch (CANUSBException e)
 								{
 									System.err.println("["
@@ -297,11 +670,7 @@ public class Logger
 								{
 									// try to read a message
 									CANMessage msg = channel.read();
-									System.out.println("["
-											+ new Date(System
-													.currentTimeMillis())
-											+ "][MSGRECEIVE]");
-									System.out.println(msg);
+									output.callback(msg);
 								} catch (NoMessageException e)
 								{
 									// no more messages waiting, stop loop and
@@ -322,6 +691,30 @@ public class Logger
 											+ "]");
 									e.printStackTrace(System.err);
 								}
+							} else if (mode.equals(Mode.ADAPTIVE))
+							{
+								try
+								{
+									// poll tightly while messages are flowing...
+									CANMessage msg = channel.poll();
+									if (null == msg)
+									{
+										wait.idle();
+									} else
+									{
+										wait.busy();
+										output.callback(msg);
+									}
+								} catch (CANUSBException e)
+								{
+									System.err.println("["
+											+ new Date(System
+													.currentTimeMillis())
+											+ "][ERROR][" + e.getMessage()
+											+ "]");
+									e.printStackTrace(System.err);
+									wait.idle();
+								}
 							} else
 							{
 								// sleep for a while...
@@ -345,6 +738,10 @@ public class Logger
 				} finally
 				{
 					channel.close();
+					if (null != capture)
+					{
+						capture.close();
+					}
 				}
 			} finally
 			{
@@ -0,0 +1,68 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Gabriel Schmidt
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package de.hardwarespielerei.can.canusb.util;
+
+/**
+ * Clock of receive times in microseconds since epoch. The wall clock is read
+ * once at construction; later times are measured by
+ * {@link System#nanoTime()}, so they are steady and cheap to read but don't
+ * follow adjustments of the system time.
+ * 
+ * @author gabriel
+ */
+public final class MicroClock
+{
+	private final long startMicros;
+	private final long startNanos;
+
+	/**
+	 * Starts a clock at the current time.
+	 */
+	public MicroClock()
+	{
+		this(System.currentTimeMillis() * 1000);
+	}
+
+	/**
+	 * Starts a clock at a given time.
+	 * 
+	 * @param startMicros
+	 *            contains the time of now in microseconds since epoch, e. g.
+	 *            the start time of a capture header.
+	 */
+	public MicroClock(long startMicros)
+	{
+		this.startMicros = startMicros;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return current time in microseconds since epoch.
+	 */
+	public long now()
+	{
+		return this.startMicros + (System.nanoTime() - this.startNanos) / 1000;
+	}
+}